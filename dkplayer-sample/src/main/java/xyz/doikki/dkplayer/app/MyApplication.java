@@ -6,6 +6,7 @@ import androidx.multidex.MultiDexApplication;
 
 import com.danikula.videocache.Logger;
 
+import xyz.doikki.dkplayer.util.cache.ProxyVideoCacheManager;
 import xyz.doikki.videoplayer.BuildConfig;
 import xyz.doikki.videoplayer.DKManager;
 import xyz.doikki.videoplayer.DKPlayerConfig;
@@ -65,6 +66,13 @@ public class MyApplication extends MultiDexApplication {
         Logger.setDebug(BuildConfig.DEBUG);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // VideoCache 内存缓存
+        ProxyVideoCacheManager.trimMemory(level);
+    }
+
     public static MyApplication getInstance() {
         return instance;
     }
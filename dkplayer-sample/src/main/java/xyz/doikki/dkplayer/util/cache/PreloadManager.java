@@ -4,12 +4,9 @@ import android.content.Context;
 
 import com.danikula.videocache.HttpProxyCacheServer;
 
-import java.io.File;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import xyz.doikki.videoplayer.util.L;
 
@@ -20,11 +17,6 @@ public class PreloadManager {
 
     private static PreloadManager sPreloadManager;
 
-    /**
-     * 单线程池，按照添加顺序依次执行{@link PreloadTask}
-     */
-    private final ExecutorService mExecutorService = Executors.newSingleThreadExecutor();
-
     /**
      * 保存正在预加载的{@link PreloadTask}
      */
@@ -35,6 +27,13 @@ public class PreloadManager {
      */
     private boolean mIsStartPreload = true;
 
+    /**
+     * 当前滑到的位置和滑动方向，用于确定下一个要播放的视频
+     */
+    private int mCurrentPosition;
+
+    private boolean mIsReverseScroll;
+
     private final HttpProxyCacheServer mHttpProxyCacheServer;
 
     /**
@@ -63,7 +62,8 @@ public class PreloadManager {
      * @param rawUrl 原始视频地址
      */
     public void addPreloadTask(String rawUrl, int position) {
-        if (isPreloaded(rawUrl)) return;
+        // 在小黑屋里的地址不再预加载
+        if (PreloadTask.isInBlackList(rawUrl) || isPreloaded(rawUrl)) return;
         PreloadTask task = new PreloadTask();
         task.mRawUrl = rawUrl;
         task.mPosition = position;
@@ -72,33 +72,36 @@ public class PreloadManager {
         mPreloadTasks.put(rawUrl, task);
 
         if (mIsStartPreload) {
-            //开始预加载
-            task.executeOn(mExecutorService);
+            //开始预加载，下一个视频优先，其余先添加的任务先开始
+            task.execute(getPriority(position));
         }
     }
 
     /**
-     * 判断该播放地址是否已经预加载
+     * 下一个要播放的视频使用高优先级，其余视频使用低优先级
+     */
+    private int getPriority(int position) {
+        int nextPosition = mIsReverseScroll ? mCurrentPosition - 1 : mCurrentPosition + 1;
+        return position == nextPosition ? HttpProxyCacheServer.PRIORITY_NEAR_PRELOAD : HttpProxyCacheServer.PRIORITY_FAR_PRELOAD;
+    }
+
+    /**
+     * 判断该播放地址是否已经预加载，通过VideoCache的内存索引判断，不访问磁盘，可在主线程调用
      */
     private boolean isPreloaded(String rawUrl) {
-        //先判断是否有缓存文件，如果已经存在缓存文件，并且其大小大于1KB，则表示已经预加载完成了
-        File cacheFile = mHttpProxyCacheServer.getCacheFile(rawUrl);
-        if (cacheFile.exists()) {
-            if (cacheFile.length() >= 1024) {
+        long cachedBytes = mHttpProxyCacheServer.getCachedBytes(rawUrl);
+        //先判断是否已经完整缓存，如果已经完整缓存，并且其大小大于1KB，则表示已经预加载完成了
+        if (mHttpProxyCacheServer.isCached(rawUrl)) {
+            if (cachedBytes >= 1024) {
                 return true;
             } else {
                 //这种情况一般是缓存出错，把缓存删掉，重新缓存
-                cacheFile.delete();
+                mHttpProxyCacheServer.deleteCache(rawUrl);
                 return false;
             }
         }
-        //再判断是否有临时缓存文件，如果已经存在临时缓存文件，并且临时缓存文件超过了预加载大小，则表示已经预加载完成了
-        File tempCacheFile = mHttpProxyCacheServer.getTempCacheFile(rawUrl);
-        if (tempCacheFile.exists()) {
-            return tempCacheFile.length() >= PRELOAD_LENGTH;
-        }
-
-        return false;
+        //再判断部分缓存的数据是否超过了预加载大小，超过则表示已经预加载完成了
+        return cachedBytes >= PRELOAD_LENGTH;
     }
 
     /**
@@ -111,6 +114,8 @@ public class PreloadManager {
     public void pausePreload(int position, boolean isReverseScroll) {
         L.d("pausePreload：" + position + " isReverseScroll: " + isReverseScroll);
         mIsStartPreload = false;
+        mCurrentPosition = position;
+        mIsReverseScroll = isReverseScroll;
         for (Map.Entry<String, PreloadTask> next : mPreloadTasks.entrySet()) {
             PreloadTask task = next.getValue();
             if (isReverseScroll) {
@@ -135,18 +140,20 @@ public class PreloadManager {
     public void resumePreload(int position, boolean isReverseScroll) {
         L.d("resumePreload：" + position + " isReverseScroll: " + isReverseScroll);
         mIsStartPreload = true;
+        mCurrentPosition = position;
+        mIsReverseScroll = isReverseScroll;
         for (Map.Entry<String, PreloadTask> next : mPreloadTasks.entrySet()) {
             PreloadTask task = next.getValue();
             if (isReverseScroll) {
                 if (task.mPosition < position) {
                     if (!isPreloaded(task.mRawUrl)) {
-                        task.executeOn(mExecutorService);
+                        task.execute(getPriority(task.mPosition));
                     }
                 }
             } else {
                 if (task.mPosition > position) {
                     if (!isPreloaded(task.mRawUrl)) {
-                        task.executeOn(mExecutorService);
+                        task.execute(getPriority(task.mPosition));
                     }
                 }
             }
@@ -1,24 +1,20 @@
 package xyz.doikki.dkplayer.util.cache;
 
 import com.danikula.videocache.HttpProxyCacheServer;
+import com.danikula.videocache.PreloadHandle;
 
-import java.io.BufferedInputStream;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
 
 import xyz.doikki.videoplayer.util.L;
 
 /**
- * 原理：主动去请求VideoCache生成的代理地址，触发VideoCache缓存机制
- * 缓存到 PreloadManager.PRELOAD_LENGTH 的数据之后停止请求，完成预加载
+ * 原理：通过{@link HttpProxyCacheServer#preload(String, long, int)}直接驱动VideoCache缓存机制，
+ * 缓存到 PreloadManager.PRELOAD_LENGTH 的数据之后停止，完成预加载，不占用本地连接
  * 播放器去播放VideoCache生成的代理地址的时候，VideoCache会直接返回缓存数据，
  * 从而提升播放速度
  */
-public class PreloadTask implements Runnable {
+public class PreloadTask {
 
     /**
      * 原始地址
@@ -36,84 +32,55 @@ public class PreloadTask implements Runnable {
     public HttpProxyCacheServer mCacheServer;
 
     /**
-     * 是否被取消
+     * 正在进行的预加载
      */
-    private boolean mIsCanceled;
-
-    /**
-     * 是否正在预加载
-     */
-    private boolean mIsExecuted;
+    private PreloadHandle mHandle;
 
     private final static List<String> blackList = new ArrayList<>();
 
-    @Override
-    public void run() {
-        if (!mIsCanceled) {
-            start();
+    /**
+     * 开始预加载，正在以相同或更高优先级预加载时不重复开始
+     *
+     * @param priority 优先级，优先级高的预加载先开始
+     */
+    public void execute(int priority) {
+        checkFailed();
+        // 如果在小黑屋里不加载
+        if (isInBlackList(mRawUrl)) return;
+        if (mHandle != null && !mHandle.isDone()) {
+            if (mHandle.getPriority() >= priority) return;
+            // 变成下一个要播放的视频，以高优先级重新开始，已缓存的数据不会重新下载
+            mHandle.cancel();
         }
-        mIsExecuted = false;
-        mIsCanceled = false;
+        L.i("预加载开始：" + mPosition);
+        mHandle = mCacheServer.preload(mRawUrl, PreloadManager.PRELOAD_LENGTH, priority);
     }
 
     /**
-     * 开始预加载
+     * 取消预加载任务，立即停止从服务器读取数据
      */
-    private void start() {
-        // 如果在小黑屋里不加载
-        if (blackList.contains(mRawUrl)) return;
-        L.i("预加载开始：" + mPosition);
-        HttpURLConnection connection = null;
-        try {
-            //获取HttpProxyCacheServer的代理地址
-            String proxyUrl = mCacheServer.getProxyUrl(mRawUrl);
-            URL url = new URL(proxyUrl);
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setConnectTimeout(5_000);
-            connection.setReadTimeout(5_000);
-            InputStream in = new BufferedInputStream(connection.getInputStream());
-            int length;
-            int read = -1;
-            byte[] bytes = new byte[8 * 1024];
-            while ((length = in.read(bytes)) != -1) {
-                read += length;
-                //预加载完成或者取消预加载
-                if (mIsCanceled || read >= PreloadManager.PRELOAD_LENGTH) {
-                    if (mIsCanceled) {
-                        L.i("预加载取消：" + mPosition + " 读取数据：" + read + " Byte");
-                    } else {
-                        L.i("预加载成功：" + mPosition + " 读取数据：" + read + " Byte");
-                    }
-                    break;
-                }
-            }
-        } catch (Exception e) {
-            L.i("预加载异常：" + mPosition + " 异常信息："+ e.getMessage());
-            // 关入小黑屋
-            blackList.add(mRawUrl);
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
-            L.i("预加载结束: " + mPosition);
+    public void cancel() {
+        checkFailed();
+        if (mHandle != null && !mHandle.isDone()) {
+            L.i("预加载取消：" + mPosition);
+            mHandle.cancel();
         }
     }
 
     /**
-     * 将预加载任务提交到线程池，准备执行
+     * 地址是否在小黑屋里，在小黑屋里的地址不再预加载
      */
-    public void executeOn(ExecutorService executorService) {
-        if (mIsExecuted) return;
-        mIsExecuted = true;
-        executorService.submit(this);
+    public static boolean isInBlackList(String rawUrl) {
+        return blackList.contains(rawUrl);
     }
 
     /**
-     * 取消预加载任务
+     * 上次预加载异常时把地址关入小黑屋
      */
-    public void cancel() {
-        if (mIsExecuted) {
-            mIsCanceled = true;
+    private void checkFailed() {
+        if (mHandle != null && mHandle.isFailed() && !blackList.contains(mRawUrl)) {
+            L.i("预加载异常：" + mPosition);
+            blackList.add(mRawUrl);
         }
     }
 }
@@ -3,9 +3,6 @@ package xyz.doikki.dkplayer.util.cache;
 import android.content.Context;
 
 import com.danikula.videocache.HttpProxyCacheServer;
-import com.danikula.videocache.StorageUtils;
-
-import java.io.File;
 
 public class ProxyVideoCacheManager {
 
@@ -27,13 +24,22 @@ public class ProxyVideoCacheManager {
     }
 
 
+    /**
+     * 系统内存不足时释放视频缓存的内存部分，未创建代理时不做处理
+     * @param level {@link android.content.ComponentCallbacks2} 的内存等级
+     */
+    public static void trimMemory(int level) {
+        if (sharedProxy != null) {
+            sharedProxy.trimMemory(level);
+        }
+    }
+
     /**
      * 删除所有缓存文件
      * @return 返回缓存是否删除成功
      */
     public static boolean clearAllCache(Context context) {
-        getProxy(context);
-        return StorageUtils.deleteFiles(sharedProxy.getCacheRoot());
+        return getProxy(context).clearCache();
     }
 
     /**
@@ -41,11 +47,6 @@ public class ProxyVideoCacheManager {
      * @return 返回缓存是否删除成功
      */
     public static boolean clearDefaultCache(Context context, String url) {
-        getProxy(context);
-        File pathTmp = sharedProxy.getTempCacheFile(url);
-        File path = sharedProxy.getCacheFile(url);
-        return StorageUtils.deleteFile(pathTmp.getAbsolutePath()) &&
-                StorageUtils.deleteFile(path.getAbsolutePath());
-
+        return getProxy(context).deleteCache(url);
     }
 }
\ No newline at end of file
@@ -0,0 +1,107 @@
+package com.danikula.videocache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of fixed-size buffers shared by request and data paths of {@link HttpProxyCacheServer}.
+ * <p/>
+ * Direct buffers are used where data is read by channels (e.g. requests), heap arrays are used where data is passed
+ * through streams and {@link Cache}s. Released buffers exceeding pool size are left for garbage collector.
+ */
+public final class BufferPool {
+
+    private final int bufferSize;
+    private final int maxBuffers;
+    private final ArrayDeque<byte[]> arrays = new ArrayDeque<>();          // guarded by this
+    private final ArrayDeque<ByteBuffer> directBuffers = new ArrayDeque<>(); // guarded by this
+    private final AtomicLong hitsCount = new AtomicLong();
+    private final AtomicLong missesCount = new AtomicLong();
+
+    /**
+     * @param bufferSize size of every buffer in bytes.
+     * @param maxBuffers max count of free buffers kept by pool, {@code 0} disables pooling.
+     */
+    BufferPool(int bufferSize, int maxBuffers) {
+        Preconditions.checkArgument(bufferSize > 0 && maxBuffers >= 0);
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    byte[] acquire() {
+        byte[] array;
+        synchronized (this) {
+            array = arrays.poll();
+        }
+        count(array != null);
+        return array != null ? array : new byte[bufferSize];
+    }
+
+    void release(byte[] array) {
+        if (array != null && array.length == bufferSize) {
+            synchronized (this) {
+                if (arrays.size() + directBuffers.size() < maxBuffers) {
+                    arrays.push(array);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns cleared direct buffer.
+     */
+    ByteBuffer acquireDirect() {
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = directBuffers.poll();
+        }
+        count(buffer != null);
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.isDirect() && buffer.capacity() == bufferSize) {
+            synchronized (this) {
+                if (arrays.size() + directBuffers.size() < maxBuffers) {
+                    directBuffers.push(buffer);
+                }
+            }
+        }
+    }
+
+    private void count(boolean hit) {
+        if (hit) {
+            hitsCount.incrementAndGet();
+        } else {
+            missesCount.incrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns count of buffers taken from pool.
+     */
+    public long getHitsCount() {
+        return hitsCount.get();
+    }
+
+    /**
+     * Returns count of buffers allocated because pool was empty.
+     */
+    public long getMissesCount() {
+        return missesCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BufferPool{hits=" + hitsCount + ", misses=" + missesCount + "}";
+    }
+}
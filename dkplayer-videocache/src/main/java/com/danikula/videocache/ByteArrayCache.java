@@ -1,16 +1,21 @@
 package com.danikula.videocache;
 
-import java.io.ByteArrayInputStream;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Simple memory based {@link Cache} implementation.
+ * <p/>
+ * Data is kept in fixed-size chunks, so appending data doesn't copy data cached before.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
 public class ByteArrayCache implements Cache {
 
-    private volatile byte[] data;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final List<byte[]> chunks = new ArrayList<>(); // guarded by this
+    private long length;                                   // guarded by this
     private volatile boolean completed;
 
     public ByteArrayCache() {
@@ -18,33 +23,68 @@ public class ByteArrayCache implements Cache {
     }
 
     public ByteArrayCache(byte[] data) {
-        this.data = Preconditions.checkNotNull(data);
+        Preconditions.checkNotNull(data);
+        try {
+            write(data, 0, data.length);
+        } catch (ProxyCacheException e) {
+            throw new IllegalStateException("Error writing initial data", e);
+        }
     }
 
     @Override
-    public int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
-        if (offset >= data.length) {
+    public synchronized int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
+        if (offset >= this.length) {
             return -1;
         }
-        if (offset > Integer.MAX_VALUE) {
-            throw new IllegalArgumentException("Too long offset for memory cache " + offset);
+        int count = (int) Math.min(Math.min(length, buffer.length), this.length - offset);
+        int copied = 0;
+        while (copied < count) {
+            long position = offset + copied;
+            byte[] chunk = chunks.get((int) (position / CHUNK_SIZE));
+            int chunkOffset = (int) (position % CHUNK_SIZE);
+            int chunkCount = Math.min(count - copied, CHUNK_SIZE - chunkOffset);
+            System.arraycopy(chunk, chunkOffset, buffer, copied, chunkCount);
+            copied += chunkCount;
         }
-        return new ByteArrayInputStream(data).read(buffer, (int) offset, length);
+        return copied;
     }
 
     @Override
-    public long available() throws ProxyCacheException {
-        return data.length;
+    public synchronized long available() throws ProxyCacheException {
+        return length;
     }
 
     @Override
-    public void append(byte[] newData, int length) throws ProxyCacheException {
-        Preconditions.checkNotNull(data);
+    public synchronized long available(long offset) throws ProxyCacheException {
+        return Math.max(0, length - offset);
+    }
+
+    @Override
+    public synchronized void append(byte[] newData, int length) throws ProxyCacheException {
+        write(newData, this.length, length);
+    }
+
+    @Override
+    public synchronized void write(byte[] newData, long offset, int length) throws ProxyCacheException {
+        Preconditions.checkNotNull(newData);
         Preconditions.checkArgument(length >= 0 && length <= newData.length);
+        if (offset > this.length) {
+            throw new ProxyCacheException("Memory cache doesn't support gaps: offset " + offset + " > " + this.length);
+        }
 
-        byte[] appendedData = Arrays.copyOf(data, data.length + length);
-        System.arraycopy(newData, 0, appendedData, data.length, length);
-        data = appendedData;
+        int written = 0;
+        while (written < length) {
+            long position = offset + written;
+            int index = (int) (position / CHUNK_SIZE);
+            if (index == chunks.size()) {
+                chunks.add(new byte[CHUNK_SIZE]);
+            }
+            int chunkOffset = (int) (position % CHUNK_SIZE);
+            int chunkCount = Math.min(length - written, CHUNK_SIZE - chunkOffset);
+            System.arraycopy(newData, written, chunks.get(index), chunkOffset, chunkCount);
+            written += chunkCount;
+        }
+        this.length = Math.max(this.length, offset + length);
     }
 
     @Override
@@ -7,12 +7,25 @@ package com.danikula.videocache;
  */
 public interface Cache {
 
+    /**
+     * Returns count of bytes cached contiguously from the beginning of cache.
+     */
     long available() throws ProxyCacheException;
 
+    /**
+     * Returns count of bytes cached contiguously starting from {@code offset}, {@code 0} if data for offset is not cached.
+     */
+    long available(long offset) throws ProxyCacheException;
+
     int read(byte[] buffer, long offset, int length) throws ProxyCacheException;
 
     void append(byte[] data, int length) throws ProxyCacheException;
 
+    /**
+     * Writes data with particular offset. Data may be written beyond {@link #available()} if cache supports gaps.
+     */
+    void write(byte[] data, long offset, int length) throws ProxyCacheException;
+
     void close() throws ProxyCacheException;
 
     void complete() throws ProxyCacheException;
@@ -0,0 +1,15 @@
+package com.danikula.videocache;
+
+/**
+ * Custom rule of {@link CacheKeyNormalizer}, e.g. for CDN urls with signature in path.
+ */
+public interface CacheKeyExtractor {
+
+    /**
+     * Returns key for caching data of url, urls with equal keys share the same cache file.
+     *
+     * @param key url or key produced by previous rules of normalizer.
+     * @return new key or passed key if rule isn't applicable, never {@code null}.
+     */
+    String extract(String key);
+}
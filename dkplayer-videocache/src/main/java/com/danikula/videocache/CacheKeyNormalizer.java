@@ -0,0 +1,152 @@
+package com.danikula.videocache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+/**
+ * Turns urls into keys for caching, so urls of the same content share cache file, e.g. CDN urls with rotating
+ * signatures or access tokens in query.
+ * <p/>
+ * Rules are applied in order: host aliases are replaced by hosts, query parameters are filtered, then custom
+ * {@link CacheKeyExtractor}s are applied in order of adding. Url is used as key as is if there are no rules.
+ * Normalizer must be configured before it is passed to {@link HttpProxyCacheServer.Builder}. Effect of rules on
+ * cache hits can be checked on trace of requested urls by {@code CacheKeySimulator} from tests of library.
+ */
+public final class CacheKeyNormalizer {
+
+    private final Set<String> ignoredParameters = new HashSet<>();
+    private final Set<String> keptParameters = new HashSet<>();
+    private final Map<String, String> hostAliases = new HashMap<>();
+    private final List<CacheKeyExtractor> extractors = new ArrayList<>();
+
+    public CacheKeyNormalizer() {
+    }
+
+    CacheKeyNormalizer(CacheKeyNormalizer normalizer) {
+        ignoredParameters.addAll(normalizer.ignoredParameters);
+        keptParameters.addAll(normalizer.keptParameters);
+        hostAliases.putAll(normalizer.hostAliases);
+        extractors.addAll(normalizer.extractors);
+    }
+
+    /**
+     * Removes query parameters with names from key, e.g. {@code token} or {@code expires}.
+     *
+     * @return this normalizer.
+     */
+    public CacheKeyNormalizer ignoreQueryParameters(String... names) {
+        Collections.addAll(ignoredParameters, checkNotNull(names));
+        return this;
+    }
+
+    /**
+     * Keeps only query parameters with names in key, all other parameters are removed.
+     *
+     * @return this normalizer.
+     */
+    public CacheKeyNormalizer keepQueryParameters(String... names) {
+        Collections.addAll(keptParameters, checkNotNull(names));
+        return this;
+    }
+
+    /**
+     * Replaces host alias by host in key, e.g. if the same content is served by several CDN hosts.
+     * Hosts are compared ignoring case, port is a part of host.
+     *
+     * @return this normalizer.
+     */
+    public CacheKeyNormalizer hostAlias(String alias, String host) {
+        hostAliases.put(checkNotNull(alias).toLowerCase(Locale.US), checkNotNull(host));
+        return this;
+    }
+
+    /**
+     * Adds custom rule applied after built-in rules.
+     *
+     * @return this normalizer.
+     */
+    public CacheKeyNormalizer extractor(CacheKeyExtractor extractor) {
+        extractors.add(checkNotNull(extractor));
+        return this;
+    }
+
+    /**
+     * Returns key for caching data of url.
+     */
+    public String normalize(String url) {
+        String key = url;
+        if (!hostAliases.isEmpty()) {
+            key = replaceHost(key);
+        }
+        if (!ignoredParameters.isEmpty() || !keptParameters.isEmpty()) {
+            key = filterQuery(key);
+        }
+        for (CacheKeyExtractor extractor : extractors) {
+            key = extractor.extract(key);
+            if (key == null) {
+                throw new NullPointerException("Extractor " + extractor + " returned null key for " + url);
+            }
+        }
+        return key;
+    }
+
+    private String replaceHost(String url) {
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd < 0) {
+            return url;
+        }
+        int hostStart = schemeEnd + 3;
+        int hostEnd = hostStart;
+        while (hostEnd < url.length() && "/?#".indexOf(url.charAt(hostEnd)) < 0) {
+            hostEnd++;
+        }
+        String host = hostAliases.get(url.substring(hostStart, hostEnd).toLowerCase(Locale.US));
+        return host == null ? url : url.substring(0, hostStart) + host + url.substring(hostEnd);
+    }
+
+    private String filterQuery(String url) {
+        int queryStart = url.indexOf('?');
+        if (queryStart < 0) {
+            return url;
+        }
+        int queryEnd = url.indexOf('#', queryStart);
+        queryEnd = queryEnd < 0 ? url.length() : queryEnd;
+        StringBuilder key = new StringBuilder(url.length()).append(url, 0, queryStart);
+        boolean first = true;
+        int start = queryStart + 1;
+        while (start <= queryEnd) {
+            int end = url.indexOf('&', start);
+            end = end < 0 || end > queryEnd ? queryEnd : end;
+            int nameEnd = url.indexOf('=', start);
+            nameEnd = nameEnd < 0 || nameEnd > end ? end : nameEnd;
+            if (end > start && isKept(url.substring(start, nameEnd))) {
+                key.append(first ? '?' : '&').append(url, start, end);
+                first = false;
+            }
+            start = end + 1;
+        }
+        return key.append(url, queryEnd, url.length()).toString();
+    }
+
+    private boolean isKept(String parameter) {
+        return !ignoredParameters.contains(parameter) && (keptParameters.isEmpty() || keptParameters.contains(parameter));
+    }
+
+    @Override
+    public String toString() {
+        return "CacheKeyNormalizer{" +
+                "ignored=" + ignoredParameters +
+                ", kept=" + keptParameters +
+                ", hostAliases=" + hostAliases +
+                ", extractors=" + extractors +
+                '}';
+    }
+}
@@ -0,0 +1,120 @@
+package com.danikula.videocache;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers cache progress to {@link CacheListener}s of all urls.
+ * <p/>
+ * Progress is coalesced per url: only the latest progress of url is delivered. Progress of all urls is delivered
+ * by single dispatch not often than once per interval, on main thread or on executor provided by user.
+ */
+final class CacheListenerDispatcher {
+
+    private final long intervalMs;
+    private final Executor executor;
+    private final Handler mainHandler;
+    private final ScheduledExecutorService timer;
+    private final Runnable dispatchTask = new DispatchTask();
+    private final Runnable handOffTask = new HandOffTask();
+    private Map<String, Progress> pending = new LinkedHashMap<>();
+    private boolean scheduled;
+    private long lastDispatchTimeMs;
+
+    /**
+     * @param intervalMs min interval between dispatches in milliseconds.
+     * @param executor   executor to notify listeners on or {@code null} to notify them on main thread.
+     */
+    CacheListenerDispatcher(long intervalMs, Executor executor) {
+        this.intervalMs = intervalMs;
+        this.executor = executor;
+        this.mainHandler = executor == null ? new Handler(Looper.getMainLooper()) : null;
+        this.timer = executor == null ? null : Executors.newSingleThreadScheduledExecutor();
+    }
+
+    synchronized void onCacheAvailable(File file, String url, int percentsAvailable, List<CacheListener> listeners) {
+        pending.put(url, new Progress(file, percentsAvailable, listeners));
+        if (!scheduled) {
+            scheduled = true;
+            long delayMs = Math.max(0, lastDispatchTimeMs + intervalMs - uptimeMillis());
+            schedule(delayMs);
+        }
+    }
+
+    synchronized void shutdown() {
+        pending.clear();
+        if (mainHandler != null) {
+            mainHandler.removeCallbacks(dispatchTask);
+        } else {
+            timer.shutdownNow();
+        }
+    }
+
+    private void schedule(long delayMs) {
+        if (mainHandler != null) {
+            mainHandler.postDelayed(dispatchTask, delayMs);
+        } else if (delayMs == 0) {
+            executor.execute(dispatchTask);
+        } else if (!timer.isShutdown()) {
+            timer.schedule(handOffTask, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void dispatch() {
+        Map<String, Progress> progresses;
+        synchronized (this) {
+            progresses = pending;
+            pending = new LinkedHashMap<>();
+            scheduled = false;
+            lastDispatchTimeMs = uptimeMillis();
+        }
+        for (Map.Entry<String, Progress> entry : progresses.entrySet()) {
+            Progress progress = entry.getValue();
+            for (CacheListener listener : progress.listeners) {
+                listener.onCacheAvailable(progress.file, entry.getKey(), progress.percentsAvailable);
+            }
+        }
+    }
+
+    private long uptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static final class Progress {
+
+        final File file;
+        final int percentsAvailable;
+        final List<CacheListener> listeners;
+
+        Progress(File file, int percentsAvailable, List<CacheListener> listeners) {
+            this.file = file;
+            this.percentsAvailable = percentsAvailable;
+            this.listeners = listeners;
+        }
+    }
+
+    private final class DispatchTask implements Runnable {
+
+        @Override
+        public void run() {
+            dispatch();
+        }
+    }
+
+    private final class HandOffTask implements Runnable {
+
+        @Override
+        public void run() {
+            executor.execute(dispatchTask);
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package com.danikula.videocache;
 
+import com.danikula.videocache.file.CacheIndex;
 import com.danikula.videocache.file.DiskUsage;
 import com.danikula.videocache.file.FileNameGenerator;
+import com.danikula.videocache.file.MappedFileWindows;
+import com.danikula.videocache.file.MemoryBlockCache;
 import com.danikula.videocache.headers.HeaderInjector;
 import com.danikula.videocache.sourcestorage.SourceInfoStorage;
 
 import java.io.File;
+import java.util.concurrent.Executor;
 
 /**
  * Configuration for proxy cache.
@@ -19,13 +23,46 @@ class Config {
     public final DiskUsage diskUsage;
     public final SourceInfoStorage sourceInfoStorage;
     public final HeaderInjector headerInjector;
+    public final SourceFactory sourceFactory;
+    public final int nioSelectorsCount;
+    public final int parallelConnectionsCount;
+    public final long listenerIntervalMs;
+    public final Executor listenerExecutor;
+    public final boolean hlsEnabled;
+    public final int hlsPrefetchSegmentsCount;
+    public final long preloadBitrate;
+    public final int maxConcurrentDownloads;
+    public final long minForegroundBuffer;
+    public final MemoryBlockCache memoryCache;
+    public final BufferPool bufferPool;
+    public final BufferPool segmentPool;
+    public final MappedFileWindows mappedWindows;
+    public final CacheKeyNormalizer cacheKeyNormalizer;
+    public final CacheIndex cacheIndex;
 
-    Config(File cacheRoot, FileNameGenerator fileNameGenerator, DiskUsage diskUsage, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
+    Config(File cacheRoot, FileNameGenerator fileNameGenerator, DiskUsage diskUsage, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector, SourceFactory sourceFactory, int nioSelectorsCount, int parallelConnectionsCount, long listenerIntervalMs, Executor listenerExecutor, boolean hlsEnabled, int hlsPrefetchSegmentsCount, long preloadBitrate, int maxConcurrentDownloads, long minForegroundBuffer, MemoryBlockCache memoryCache, BufferPool bufferPool, MappedFileWindows mappedWindows, CacheKeyNormalizer cacheKeyNormalizer) {
         this.cacheRoot = cacheRoot;
         this.fileNameGenerator = fileNameGenerator;
         this.diskUsage = diskUsage;
         this.sourceInfoStorage = sourceInfoStorage;
         this.headerInjector = headerInjector;
+        this.sourceFactory = sourceFactory;
+        this.nioSelectorsCount = nioSelectorsCount;
+        this.parallelConnectionsCount = parallelConnectionsCount;
+        this.listenerIntervalMs = listenerIntervalMs;
+        this.listenerExecutor = listenerExecutor;
+        this.hlsEnabled = hlsEnabled;
+        this.hlsPrefetchSegmentsCount = hlsPrefetchSegmentsCount;
+        this.preloadBitrate = preloadBitrate;
+        this.maxConcurrentDownloads = maxConcurrentDownloads;
+        this.minForegroundBuffer = minForegroundBuffer;
+        this.memoryCache = memoryCache;
+        this.bufferPool = bufferPool;
+        // segments of player's source and one preload are kept
+        this.segmentPool = ParallelHttpUrlSource.newSegmentPool(ParallelHttpUrlSource.DEFAULT_SEGMENT_SIZE, parallelConnectionsCount, parallelConnectionsCount > 1 ? 2 : 0);
+        this.mappedWindows = mappedWindows;
+        this.cacheKeyNormalizer = cacheKeyNormalizer;
+        this.cacheIndex = new CacheIndex(cacheRoot, diskUsage);
     }
 
     File generateCacheFile(String url) {
@@ -0,0 +1,168 @@
+package com.danikula.videocache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opens and releases connections to origin servers for {@link HttpUrlSource}.
+ * <p/>
+ * This is not a connection pool and it doesn't know whether sockets are reused. Releasing is best effort only:
+ * {@link HttpURLConnection} may keep socket alive for next request to the same host only if response is read to the end,
+ * so short unread rest of response (e.g. after seek near the end of segment) is drained in background, longer rest is
+ * dropped by closing socket. Whether drained socket is really reused is decided by http stack and isn't reported.
+ * Use {@link SourceFactory} returning own {@link Source} to use alternative http stack with own pool.
+ */
+public class ConnectionReleaser {
+
+    private static final long MAX_DRAINED_BYTES = 64 * 1024;
+    private static final int MAX_PENDING_DRAINS = 16;
+    // shared by all releasers, drain isn't worth thread per source; thread stops when there is nothing to drain
+    private static final ExecutorService DRAIN_EXECUTOR = newDrainExecutor();
+
+    private long requestsCount;
+    private long drainedCount;
+
+    /**
+     * Opens new not connected connection for url.
+     */
+    protected HttpURLConnection newConnection(URL url) throws IOException {
+        return (HttpURLConnection) url.openConnection();
+    }
+
+    HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection connection = newConnection(url);
+        onOpen();
+        return connection;
+    }
+
+    /**
+     * Releases connection without blocking caller. Response read to the end is closed, so http stack may keep
+     * the socket alive. Short unread rest of response is drained in background for the same purpose, otherwise
+     * the socket is closed because long rest can't be skipped cheaply.
+     *
+     * @param connection connection to release.
+     * @param remaining  count of unread bytes of response, {@code 0} if response is read to the end,
+     *                   negative value if connection must be closed (e.g. response length is unknown).
+     */
+    void release(HttpURLConnection connection, long remaining) {
+        if (remaining == 0) {
+            close(connection);
+        } else if (remaining > 0 && remaining <= MAX_DRAINED_BYTES) {
+            try {
+                DRAIN_EXECUTOR.execute(new DrainRunnable(connection));
+            } catch (RejectedExecutionException e) {
+                connection.disconnect(); // too many drains are pending
+            }
+        } else {
+            connection.disconnect();
+        }
+    }
+
+    private void close(HttpURLConnection connection) {
+        try {
+            connection.getInputStream().close();
+        } catch (IOException e) {
+            Logger.warn("Error releasing connection to " + connection.getURL() + ", close it");
+            connection.disconnect();
+        }
+    }
+
+    private void drainInBackground(HttpURLConnection connection) {
+        try {
+            InputStream in = connection.getInputStream();
+            if (drain(in)) {
+                in.close();
+                onDrained();
+                return;
+            }
+        } catch (IOException e) {
+            Logger.warn("Error draining connection to " + connection.getURL() + ", close it");
+        }
+        connection.disconnect();
+    }
+
+    /**
+     * Reads the rest of response.
+     *
+     * @return {@code true} if response is read to the end.
+     */
+    private boolean drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
+        long drained = 0;
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            drained += read;
+            if (drained > MAX_DRAINED_BYTES) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized void onOpen() {
+        requestsCount++;
+    }
+
+    private synchronized void onDrained() {
+        drainedCount++;
+    }
+
+    /**
+     * Returns count of requests to origin servers.
+     */
+    public synchronized long getRequestsCount() {
+        return requestsCount;
+    }
+
+    /**
+     * Returns count of responses drained to the end, so http stack could reuse their sockets.
+     * It is not count of reused sockets, it isn't known.
+     */
+    public synchronized long getDrainedCount() {
+        return drainedCount;
+    }
+
+    private static ExecutorService newDrainExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_PENDING_DRAINS), new DrainThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConnectionReleaser{requests=" + requestsCount + ", drained=" + drainedCount + "}";
+    }
+
+    private final class DrainRunnable implements Runnable {
+
+        private final HttpURLConnection connection;
+
+        DrainRunnable(HttpURLConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void run() {
+            drainInBackground(connection);
+        }
+    }
+
+    private static final class DrainThreadFactory implements ThreadFactory {
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Connection drainer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.danikula.videocache;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Schedules fetching data from origin servers for all sources of proxy.
+ * <p/>
+ * Every active source reader is a transfer with priority: playback is foreground, preloads have lower priorities.
+ * Foreground transfers are never paused. Besides them, only {@code maxTransfers} transfers with highest priorities
+ * fetch data at once, others are paused: they close connections before waiting (data buffered by socket is cheaper
+ * to drop than to leave connection throttled by flow control only) and reopen them from the same offset when they
+ * are resumed. While buffer of any running foreground transfer (data fetched ahead of player's position) is lower
+ * than threshold, all lower-priority transfers are paused.
+ */
+final class DownloadScheduler {
+
+    static final int PRIORITY_FOREGROUND = Integer.MAX_VALUE;
+
+    private final int maxTransfers;
+    private final long minForegroundBuffer;
+    private final List<Transfer> transfers = new ArrayList<>(); // guarded by this
+    private long sequence;                                       // guarded by this
+
+    /**
+     * @param maxTransfers        max count of transfers running at once.
+     * @param minForegroundBuffer min count of bytes fetched ahead of foreground player, lower-priority transfers
+     *                            are paused while buffer is smaller, {@code 0} disables pausing.
+     */
+    DownloadScheduler(int maxTransfers, long minForegroundBuffer) {
+        this.maxTransfers = maxTransfers;
+        this.minForegroundBuffer = minForegroundBuffer;
+    }
+
+    synchronized Transfer register(int priority) {
+        Transfer transfer = new Transfer(priority, sequence++);
+        transfers.add(transfer);
+        notifyAll();
+        return transfer;
+    }
+
+    private boolean isAllowed(Transfer transfer) {
+        if (transfer.priority == PRIORITY_FOREGROUND) {
+            return true; // playback must not wait for other transfers
+        }
+        int higherCount = 0;
+        for (Transfer other : transfers) {
+            if (other.isStarving()) {
+                return false;
+            }
+            if (other != transfer && other.outranks(transfer)) {
+                higherCount++;
+            }
+        }
+        return higherCount < maxTransfers;
+    }
+
+    /**
+     * Transfer of data of one source. All methods must be called by source reader's thread,
+     * except {@link #setPriority(int)} that can be called by any thread.
+     */
+    final class Transfer {
+
+        private final long sequence;
+        private int priority;                     // guarded by DownloadScheduler.this
+        private long buffered = Long.MIN_VALUE;   // guarded by DownloadScheduler.this, unknown until first chunk
+        private boolean released;                 // guarded by DownloadScheduler.this
+
+        private Transfer(int priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        void setPriority(int priority) {
+            synchronized (DownloadScheduler.this) {
+                if (this.priority != priority) {
+                    this.priority = priority;
+                    buffered = Long.MIN_VALUE; // buffer of lower-priority transfer is not tracked
+                    DownloadScheduler.this.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Updates buffer of transfer and checks if transfer is allowed to fetch next chunk.
+         *
+         * @param buffered count of bytes fetched ahead of player's position, it is used only for foreground transfer.
+         */
+        boolean proceed(long buffered) {
+            synchronized (DownloadScheduler.this) {
+                boolean wasStarving = isStarving();
+                this.buffered = buffered;
+                if (wasStarving && !isStarving()) {
+                    DownloadScheduler.this.notifyAll();
+                }
+                return isAllowed(this);
+            }
+        }
+
+        /**
+         * Waits while transfer is not allowed to fetch data.
+         */
+        void await() throws InterruptedException {
+            synchronized (DownloadScheduler.this) {
+                clearBuffer(); // paused transfer doesn't consume its buffer
+                while (!isAllowed(this)) {
+                    DownloadScheduler.this.wait();
+                }
+            }
+        }
+
+        void release() {
+            synchronized (DownloadScheduler.this) {
+                if (!released) {
+                    released = true;
+                    clearBuffer();
+                    transfers.remove(this);
+                    DownloadScheduler.this.notifyAll();
+                }
+            }
+        }
+
+        private void clearBuffer() {
+            if (isStarving()) {
+                DownloadScheduler.this.notifyAll();
+            }
+            buffered = Long.MAX_VALUE;
+        }
+
+        private boolean isStarving() {
+            return priority == PRIORITY_FOREGROUND && buffered < minForegroundBuffer;
+        }
+
+        private boolean outranks(Transfer other) {
+            return priority > other.priority || priority == other.priority && sequence < other.sequence;
+        }
+    }
+}
@@ -1,13 +1,9 @@
 package com.danikula.videocache;
 
-import android.text.TextUtils;
-
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 import static com.danikula.videocache.Preconditions.checkNotNull;
 
@@ -18,46 +14,51 @@ import static com.danikula.videocache.Preconditions.checkNotNull;
  */
 class GetRequest {
 
-    private static final Pattern RANGE_HEADER_PATTERN = Pattern.compile("[R,r]ange:[ ]?bytes=(\\d*)-");
-    private static final Pattern URL_PATTERN = Pattern.compile("GET /(.*) HTTP");
-
     public final String uri;
     public final long rangeOffset;
     public final boolean partial;
+    public final List<ByteRange> ranges;
+    public final boolean keepAlive;
+    final long receivedNanos = System.nanoTime();
+    private String url;
 
-    public GetRequest(String request) {
-        checkNotNull(request);
-        long offset = findRangeOffset(request);
-        this.rangeOffset = Math.max(0, offset);
-        this.partial = offset >= 0;
-        this.uri = findUri(request);
-    }
-
-    public static GetRequest read(InputStream inputStream) throws IOException {
-        BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
-        StringBuilder stringRequest = new StringBuilder();
-        String line;
-        while (!TextUtils.isEmpty(line = reader.readLine())) { // until new line (headers ending)
-            stringRequest.append(line).append('\n');
-        }
-        return new GetRequest(stringRequest.toString());
+    /**
+     * @param uri       not decoded uri without leading slash.
+     * @param ranges    requested ranges, empty if whole content is requested.
+     * @param keepAlive {@code true} if client allows to reuse connection for next request.
+     */
+    GetRequest(String uri, List<ByteRange> ranges, boolean keepAlive) {
+        this.uri = checkNotNull(uri);
+        this.ranges = checkNotNull(ranges);
+        this.partial = !ranges.isEmpty();
+        this.rangeOffset = partial ? Math.max(0, ranges.get(0).first) : 0;
+        this.keepAlive = keepAlive;
     }
 
-    private long findRangeOffset(String request) {
-        Matcher matcher = RANGE_HEADER_PATTERN.matcher(request);
-        if (matcher.find()) {
-            String rangeValue = matcher.group(1);
-            return Long.parseLong(rangeValue);
+    /**
+     * Reads request from stream. Stream isn't read beyond request's headers, so next request sent by the same
+     * persistent connection stays in stream.
+     *
+     * @param buffer buffer for request's bytes, can be reused for next requests. Longer request is read to new buffer.
+     * @return request or {@code null} if stream is closed before request is started.
+     */
+    public static GetRequest read(InputStream inputStream, ByteBuffer buffer) throws IOException {
+        ByteBuffer requestBuffer = RequestParser.read(inputStream, buffer);
+        if (requestBuffer == null) {
+            return null;
         }
-        return -1;
+        return RequestParser.parse(requestBuffer, requestBuffer.position());
     }
 
-    private String findUri(String request) {
-        Matcher matcher = URL_PATTERN.matcher(request);
-        if (matcher.find()) {
-            return matcher.group(1);
+    /**
+     * Returns proxied url, it is decoded from uri on first call.
+     */
+    public String url() {
+        if (url == null) {
+            boolean encoded = uri.indexOf('%') >= 0 || uri.indexOf('+') >= 0;
+            url = encoded ? ProxyCacheUtils.decode(uri) : uri;
         }
-        throw new IllegalArgumentException("Invalid request `" + request + "`: url not found!");
+        return url;
     }
 
     @Override
@@ -65,7 +66,63 @@ class GetRequest {
         return "GetRequest{" +
                 "rangeOffset=" + rangeOffset +
                 ", partial=" + partial +
+                ", ranges=" + ranges +
+                ", keepAlive=" + keepAlive +
                 ", uri='" + uri + '\'' +
                 '}';
     }
+
+    /**
+     * Range of bytes from {@code Range} header in terms of RFC 7233: {@code first-last} with inclusive bounds,
+     * {@code last} is {@code -1} for range up to the end, {@code first} is {@code -1} for the last {@code last} bytes.
+     */
+    static final class ByteRange {
+
+        final long first;
+        final long last;
+
+        ByteRange(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        boolean isSuffix() {
+            return first < 0;
+        }
+
+        /**
+         * Returns offset of the first byte of range in source with {@code length} or {@code -1} if it can't be resolved.
+         */
+        long start(long length) {
+            if (!isSuffix()) {
+                return first;
+            }
+            return length >= 0 ? Math.max(0, length - last) : -1;
+        }
+
+        /**
+         * Returns offset of the byte after range in source with {@code length}, {@code -1} for unknown end.
+         */
+        long end(long length) {
+            if (isSuffix() || last < 0) {
+                return length;
+            }
+            return length >= 0 ? Math.min(last + 1, length) : last + 1;
+        }
+
+        /**
+         * Returns {@code true} if range contains any byte of source with {@code length}.
+         */
+        boolean isSatisfiable(long length) {
+            if (length < 0) {
+                return !isSuffix();
+            }
+            return isSuffix() ? last > 0 && length > 0 : first < length;
+        }
+
+        @Override
+        public String toString() {
+            return (first >= 0 ? first : "") + "-" + (last >= 0 ? last : "");
+        }
+    }
 }
@@ -0,0 +1,108 @@
+package com.danikula.videocache;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HLS playlist rewritten to be played through {@link HttpProxyCacheServer}: uris of segments, keys, init sections
+ * and nested playlists are resolved against playlist's url and replaced with proxy urls.
+ */
+final class HlsPlaylist {
+
+    private static final Pattern URI_ATTRIBUTE = Pattern.compile("URI=\"([^\"]*)\"");
+    private static final String TAG_SEGMENT = "#EXTINF";
+    private static final String TAG_INIT_SECTION = "#EXT-X-MAP";
+
+    final String url;
+    final String body;
+    final List<String> segments;
+    final List<String> initSections;
+
+    private HlsPlaylist(String url, String body, List<String> segments, List<String> initSections) {
+        this.url = url;
+        this.body = body;
+        this.segments = Collections.unmodifiableList(segments);
+        this.initSections = Collections.unmodifiableList(initSections);
+    }
+
+    /**
+     * Returns {@code true} if url's path has {@code .m3u8} extension.
+     */
+    static boolean isPlaylistUrl(String url) {
+        int end = url.length();
+        int query = url.indexOf('?');
+        end = query >= 0 ? query : end;
+        int fragment = url.indexOf('#');
+        end = fragment >= 0 && fragment < end ? fragment : end;
+        return url.substring(0, end).toLowerCase(Locale.US).endsWith(".m3u8");
+    }
+
+    /**
+     * Parses playlist and rewrites its uris.
+     *
+     * @param content content of playlist.
+     * @param url     url of playlist, relative uris are resolved against it.
+     * @param proxy   proxy that should serve rewritten uris.
+     * @return rewritten playlist.
+     * @throws ProxyCacheException if url or uri in playlist is malformed.
+     */
+    static HlsPlaylist rewrite(String content, String url, HttpProxyCacheServer proxy) throws ProxyCacheException {
+        URL base;
+        try {
+            base = new URL(url);
+        } catch (MalformedURLException e) {
+            throw new ProxyCacheException("Invalid playlist url " + url, e);
+        }
+        List<String> segments = new ArrayList<>();
+        List<String> initSections = new ArrayList<>();
+        StringBuilder body = new StringBuilder(content.length() * 2);
+        boolean segmentExpected = false;
+        for (String line : content.split("\r?\n")) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty()) {
+                body.append(line);
+            } else if (trimmed.startsWith("#")) {
+                segmentExpected |= trimmed.startsWith(TAG_SEGMENT);
+                Matcher matcher = URI_ATTRIBUTE.matcher(line);
+                StringBuffer rewritten = new StringBuffer(line.length() * 2);
+                while (matcher.find()) {
+                    String uri = resolve(base, matcher.group(1));
+                    if (trimmed.startsWith(TAG_INIT_SECTION)) {
+                        initSections.add(uri);
+                    }
+                    matcher.appendReplacement(rewritten, Matcher.quoteReplacement("URI=\"" + proxy.getProxyUrl(uri, false) + "\""));
+                }
+                matcher.appendTail(rewritten);
+                body.append(rewritten);
+            } else {
+                String uri = resolve(base, trimmed);
+                if (segmentExpected) {
+                    segments.add(uri);
+                    segmentExpected = false;
+                }
+                body.append(proxy.getProxyUrl(uri, false));
+            }
+            body.append('\n');
+        }
+        return new HlsPlaylist(url, body.toString(), segments, initSections);
+    }
+
+    private static String resolve(URL base, String uri) throws ProxyCacheException {
+        try {
+            return new URL(base, uri).toString();
+        } catch (MalformedURLException e) {
+            throw new ProxyCacheException("Invalid uri " + uri + " in playlist " + base, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "HlsPlaylist{url='" + url + "', segments=" + segments.size() + "}";
+    }
+}
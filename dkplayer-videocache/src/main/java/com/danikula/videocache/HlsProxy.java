@@ -0,0 +1,258 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static java.lang.String.format;
+
+/**
+ * Serves HLS streams: playlists are fetched from origin on every request (they may be updated for live streams)
+ * and rewritten by {@link HlsPlaylist}, so segments are requested through proxy and cached as separate files.
+ * <p/>
+ * Segments and init sections are cached with keys without query of url, so cache stays valid when playlist
+ * provides urls with new access tokens. If urls of playlist differ only by query from each other or from urls of other
+ * known playlists (e.g. variants of stream selected by query), full urls are used as keys. Keys without query are
+ * persisted by {@link SegmentKeys}, so segment's key is the same after restart before its playlist is fetched again.
+ * When segment is requested, next segments of its playlist are prefetched in background.
+ */
+final class HlsProxy {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_PLAYLIST_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_PLAYLISTS_COUNT = 8;
+
+    private final HttpProxyCacheServer proxy;
+    private final Config config;
+    private final int prefetchSegmentsCount;
+    private final ExecutorService prefetchThread = Executors.newSingleThreadExecutor();
+    private final Map<String, HlsPlaylist> playlists = new PlaylistsMap();
+    private final Map<String, SegmentRef> segments = new HashMap<>();
+    private final SegmentKeys segmentKeys;
+    private final Set<String> prefetchQueue = new LinkedHashSet<>();
+    private boolean prefetching;
+
+    HlsProxy(HttpProxyCacheServer proxy, Config config, int prefetchSegmentsCount) {
+        this.proxy = proxy;
+        this.config = config;
+        this.prefetchSegmentsCount = prefetchSegmentsCount;
+        this.segmentKeys = new SegmentKeys(config.cacheRoot);
+    }
+
+    /**
+     * Returns response with rewritten playlist or {@code null} if url isn't url of HLS playlist.
+     * Playlists are small, so whole playlist is always returned: {@code Range} of request is ignored and only
+     * {@code Connection} header of request is taken into account for keep-alive.
+     */
+    ProxyResponse newPlaylistResponse(GetRequest request) throws ProxyCacheException {
+        String url = request.url();
+        if (!HlsPlaylist.isPlaylistUrl(url)) {
+            return null;
+        }
+        HlsPlaylist playlist = HlsPlaylist.rewrite(fetch(url), url, proxy);
+        register(playlist);
+        byte[] body = playlist.body.getBytes(UTF_8);
+        String headers = new StringBuilder()
+                .append("HTTP/1.1 200 OK\n")
+                .append(request.keepAlive ? "Connection: keep-alive\n" : "Connection: close\n")
+                .append(format("Content-Length: %d\n", body.length))
+                .append("Content-Type: application/vnd.apple.mpegurl\n")
+                .append("Cache-Control: no-cache\n")
+                .append("\n") // headers end
+                .toString();
+        return new ProxyResponse(headers, Collections.singletonList(new ProxyResponse.Part(body, 0, 0)), request.keepAlive);
+    }
+
+    /**
+     * Returns key to be used for caching data of url, segment's key is normalized too.
+     */
+    synchronized String getCacheKey(String url) {
+        SegmentRef segment = segments.get(url);
+        if (segment != null) {
+            return config.cacheKeyNormalizer.normalize(segment.cacheKey);
+        }
+        String stripped = stripQuery(url);
+        return config.cacheKeyNormalizer.normalize(segmentKeys.contains(stripped) ? stripped : url);
+    }
+
+    /**
+     * Schedules prefetching of segments following requested one. Segments are prefetched one by one,
+     * previously scheduled segments are not prefetched anymore.
+     */
+    synchronized void onRequest(String url) {
+        SegmentRef segment = segments.get(url);
+        if (segment == null || segment.index < 0 || prefetchSegmentsCount == 0) {
+            return;
+        }
+        HlsPlaylist playlist = playlists.get(segment.playlistKey);
+        prefetchQueue.clear();
+        int end = Math.min(playlist.segments.size(), segment.index + 1 + prefetchSegmentsCount);
+        for (String next : playlist.segments.subList(segment.index + 1, end)) {
+            if (!config.cacheIndex.isCompleted(config.fileNameGenerator.generate(getCacheKey(next)))) {
+                prefetchQueue.add(next);
+            }
+        }
+        if (!prefetching && !prefetchQueue.isEmpty()) {
+            prefetching = true;
+            prefetchThread.submit(new PrefetchTask());
+        }
+    }
+
+    void shutdown() {
+        prefetchThread.shutdownNow();
+        segmentKeys.shutdown();
+    }
+
+    private String fetch(String url) throws ProxyCacheException {
+        Source source = config.sourceFactory.newSource(url, SourceInfoStorageFactory.newEmptySourceInfoStorage(), config.headerInjector);
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buffer = config.bufferPool.acquire();
+        try {
+            source.open(0);
+            int readBytes;
+            while ((readBytes = source.read(buffer)) != -1) {
+                content.write(buffer, 0, readBytes);
+                if (content.size() > MAX_PLAYLIST_SIZE) {
+                    throw new ProxyCacheException("Playlist " + url + " is too big");
+                }
+            }
+        } finally {
+            config.bufferPool.release(buffer);
+            source.close();
+        }
+        return new String(content.toByteArray(), UTF_8);
+    }
+
+    private synchronized void register(HlsPlaylist playlist) {
+        String playlistKey = stripQuery(playlist.url);
+        forget(playlists.remove(playlistKey));
+        playlists.put(playlistKey, playlist);
+        Set<String> urls = new HashSet<>(playlist.segments);
+        urls.addAll(playlist.initSections);
+        Set<String> keys = new HashSet<>();
+        for (String url : urls) {
+            keys.add(stripQuery(url));
+        }
+        // otherwise urls differ by query only
+        boolean stripQuery = keys.size() == urls.size() && !hasOtherUrls(keys, urls);
+        if (stripQuery) {
+            segmentKeys.addAll(keys);
+        } else {
+            segmentKeys.removeAll(keys);
+        }
+        for (String url : playlist.initSections) {
+            segments.put(url, new SegmentRef(playlistKey, -1, stripQuery ? stripQuery(url) : url));
+        }
+        for (int i = 0; i < playlist.segments.size(); i++) {
+            String url = playlist.segments.get(i);
+            segments.put(url, new SegmentRef(playlistKey, i, stripQuery ? stripQuery(url) : url));
+        }
+    }
+
+    /**
+     * Checks if other playlists have urls that differ from {@code urls} only by query.
+     */
+    private boolean hasOtherUrls(Set<String> keys, Set<String> urls) {
+        for (String url : segments.keySet()) {
+            if (!urls.contains(url) && keys.contains(stripQuery(url))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void forget(HlsPlaylist playlist) {
+        if (playlist != null) {
+            segments.keySet().removeAll(playlist.segments);
+            segments.keySet().removeAll(playlist.initSections);
+        }
+    }
+
+    private void prefetch(String url) {
+        try {
+            HttpProxyCacheServerClients clients = proxy.getClients(url);
+            HttpProxyCache proxyCache = clients.startProcessRequest(HttpProxyCacheServer.PRIORITY_NEAR_PRELOAD);
+            try {
+                // segment is read to the end into cache only, data isn't copied anywhere
+                long prefetched = proxyCache.preload(Long.MAX_VALUE);
+                Logger.debug("Segment " + url + " is prefetched: " + prefetched + " bytes");
+            } finally {
+                clients.finishProcessRequest(HttpProxyCacheServer.PRIORITY_NEAR_PRELOAD);
+            }
+        } catch (ProxyCacheException e) {
+            Logger.warn("Error prefetching segment " + url + ": " + e.getMessage());
+        }
+    }
+
+    private static String stripQuery(String url) {
+        int query = url.indexOf('?');
+        int fragment = url.indexOf('#');
+        int end = query >= 0 ? query : url.length();
+        return url.substring(0, fragment >= 0 && fragment < end ? fragment : end);
+    }
+
+    private static final class SegmentRef {
+
+        final String playlistKey;
+        final int index;
+        final String cacheKey;
+
+        /**
+         * @param index index of segment in playlist or {@code -1} for init section.
+         */
+        SegmentRef(String playlistKey, int index, String cacheKey) {
+            this.playlistKey = playlistKey;
+            this.index = index;
+            this.cacheKey = cacheKey;
+        }
+    }
+
+    private final class PlaylistsMap extends LinkedHashMap<String, HlsPlaylist> {
+
+        private static final long serialVersionUID = 1L;
+
+        PlaylistsMap() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HlsPlaylist> eldest) {
+            if (size() > MAX_PLAYLISTS_COUNT) {
+                forget(eldest.getValue());
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private final class PrefetchTask implements Runnable {
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                String url;
+                synchronized (HlsProxy.this) {
+                    Iterator<String> queue = prefetchQueue.iterator();
+                    if (!queue.hasNext()) {
+                        prefetching = false;
+                        return;
+                    }
+                    url = queue.next();
+                    queue.remove();
+                }
+                prefetch(url);
+            }
+        }
+    }
+}
@@ -4,14 +4,16 @@ import android.text.TextUtils;
 
 import com.danikula.videocache.file.FileCache;
 
-import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 
-import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
-
 /**
  * {@link ProxyCache} that read http url and writes data to {@link Socket}
  *
@@ -19,83 +21,305 @@ import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
  */
 class HttpProxyCache extends ProxyCache {
 
-    private static final float NO_CACHE_BARRIER = .2f;
-
-    private final HttpUrlSource source;
+    private final String url;
+    private final Source source;
+    private final Source dataSource;
     private final FileCache cache;
+    private final UrlMetrics metrics;
+    private final BufferPool bufferPool;
     private CacheListener listener;
 
     public HttpProxyCache(HttpUrlSource source, FileCache cache) {
-        super(source, cache);
+        this(source.getUrl(), source, source, cache, null, null, new BufferPool(ProxyCacheUtils.DEFAULT_BUFFER_SIZE, 0));
+    }
+
+    /**
+     * @param url        url of source.
+     * @param source     source of content info (length, mime), content info of source other than {@link HttpUrlSource}
+     *                   is read from its first response.
+     * @param dataSource source of data, can fetch data of {@code source} by other means (e.g. parallel connections).
+     * @param cache      cache.
+     * @param scheduler  scheduler of fetching data or {@code null} to fetch data without limits.
+     * @param metrics    metrics of source or {@code null} if they are not collected.
+     * @param bufferPool pool of buffers for source data and responses.
+     */
+    HttpProxyCache(String url, Source source, Source dataSource, FileCache cache, DownloadScheduler scheduler, UrlMetrics metrics,
+                   BufferPool bufferPool) {
+        super(dataSource, cache, scheduler, metrics, bufferPool);
+        this.url = url;
         this.cache = cache;
         this.source = source;
+        this.dataSource = dataSource;
+        this.metrics = metrics;
+        this.bufferPool = bufferPool;
     }
 
     public void registerCacheListener(CacheListener cacheListener) {
         this.listener = cacheListener;
     }
 
-    public void processRequest(GetRequest request, Socket socket) throws IOException, ProxyCacheException {
-        OutputStream out = new BufferedOutputStream(socket.getOutputStream());
-        String responseHeaders = newResponseHeaders(request);
-        out.write(responseHeaders.getBytes("UTF-8"));
+    /**
+     * Writes response for request to socket.
+     *
+     * @return {@code true} if connection can be reused for next request.
+     */
+    public boolean processRequest(GetRequest request, Socket socket) throws IOException, ProxyCacheException {
+        // socket's stream isn't wrapped by buffered stream, data is written by buffer-sized chunks anyway
+        OutputStream out = socket.getOutputStream();
+        ProxyResponse response = newResponse(request);
+        out.write(response.headers.getBytes("UTF-8"));
 
-        long offset = request.rangeOffset;
-        if (isUseCache(request)) {
-            responseWithCache(out, offset);
-        } else {
-            responseWithoutCache(out, offset);
+        SocketChannel channel = socket.getChannel();
+        boolean complete = true;
+        boolean bodyStarted = false;
+        byte[] buffer = bufferPool.acquire();
+        try {
+            for (ProxyResponse.Part part : response.parts) {
+                out.write(part.prefix);
+                long offset;
+                if (channel != null && cache.isCompleted()) {
+                    offset = responseWithTransfer(channel, request, part.start, part.end, bodyStarted);
+                } else {
+                    offset = responseWithCache(out, buffer, request, part.start, part.end, bodyStarted);
+                }
+                bodyStarted |= offset > part.start;
+                // response interrupted by stopping proxy is shorter than declared, so connection can't be reused
+                complete &= !part.isBounded() || offset == part.end;
+            }
+            out.flush();
+        } finally {
+            bufferPool.release(buffer);
+            onRequestFinished();
         }
+        return response.keepAlive && complete;
     }
 
-    private boolean isUseCache(GetRequest request) throws ProxyCacheException {
-        long sourceLength = source.length();
-        boolean sourceLengthKnown = sourceLength > 0;
-        long cacheAvailable = cache.available();
-        // do not use cache for partial requests which too far from available cache. It seems user seek video.
-        return !sourceLengthKnown || !request.partial || request.rangeOffset <= cacheAvailable + sourceLength * NO_CACHE_BARRIER;
+    boolean isCacheCompleted() {
+        return cache.isCompleted();
+    }
+
+    /**
+     * Transfers data of completed cache directly to channel.
+     *
+     * @return count of transferred bytes or {@code -1} if there is no more data.
+     */
+    long transfer(long offset, long maxCount, WritableByteChannel channel) throws ProxyCacheException {
+        long length = cache.available();
+        if (offset >= length) {
+            return -1;
+        }
+        long transferred = cache.transferTo(offset, Math.min(maxCount, length - offset), channel);
+        notifyIfCompleted();
+        return transferred;
+    }
+
+    /**
+     * Creates response for request. Single range is sent as {@code 206} response, several ranges are sent as
+     * {@code multipart/byteranges} body, overlapping and adjacent ranges are merged.
+     * Method is blocked while source info is fetched.
+     */
+    ProxyResponse newResponse(GetRequest request) throws IOException, ProxyCacheException {
+        if (isSourceInfoAwaited(request)) {
+            // source info is read from headers of the first data response, so it isn't fetched by separate request
+            try {
+                waitForData(request.rangeOffset, 1);
+            } catch (ProxyCacheException e) {
+                onSourceInfoError(request);
+            }
+        }
+        return newPreparedResponse(request);
     }
 
-    private String newResponseHeaders(GetRequest request) throws IOException, ProxyCacheException {
-        String mime = source.getMime();
-        boolean mimeKnown = !TextUtils.isEmpty(mime);
+    /**
+     * Non-blocking preparing of response for {@link #newPreparedResponse(GetRequest)}. If source info is not known yet,
+     * the first data of source is requested and {@code callback} will be called once when it is available.
+     *
+     * @return {@code true} if response can be created without waiting for source.
+     */
+    boolean prepareResponse(GetRequest request, DataCallback callback) {
+        if (!isSourceInfoAwaited(request)) {
+            return true;
+        }
+        try {
+            return !waitForDataNow(request.rangeOffset, 1, callback);
+        } catch (ProxyCacheException e) {
+            onSourceInfoError(request);
+            return true;
+        }
+    }
+
+    private boolean isSourceInfoAwaited(GetRequest request) {
+        GetRequest.ByteRange firstRange = request.partial ? request.ranges.get(0) : null;
+        return !cache.isCompleted() && !isSourceInfoKnown() && (firstRange == null || !firstRange.isSuffix());
+    }
+
+    private void onSourceInfoError(GetRequest request) {
+        // e.g. requested offset is beyond source's end, source info will be fetched by separate request
+        Logger.warn("Error reading data for " + request + ", fetch source info separately");
+    }
+
+    /**
+     * Creates response for request prepared by {@link #prepareResponse(GetRequest, DataCallback)}.
+     */
+    ProxyResponse newPreparedResponse(GetRequest request) throws IOException, ProxyCacheException {
+        if (metrics != null) {
+            metrics.onRequest();
+        }
+        // completed cache doesn't need source, e.g. HLS segment cached by url with other access token
+        boolean probeNeeded = source instanceof HttpUrlSource && (!cache.isCompleted() || isSourceInfoKnown());
+        String mime = probeNeeded ? ((HttpUrlSource) source).getMime() : ProxyCacheUtils.getSupposablyMime(url);
         long length = cache.isCompleted() ? cache.available() : source.length();
+        setSourceLength(length);
+        List<long[]> ranges = resolveRanges(request.ranges, length);
         boolean lengthKnown = length >= 0;
-        long contentLength = request.partial ? length - request.rangeOffset : length;
-        boolean addRange = lengthKnown && request.partial;
-        return new StringBuilder()
-                .append(request.partial ? "HTTP/1.1 206 PARTIAL CONTENT\n" : "HTTP/1.1 200 OK\n")
+        if (request.partial && ranges.isEmpty() && lengthKnown) {
+            String headers = new StringBuilder()
+                    .append("HTTP/1.1 416 REQUESTED RANGE NOT SATISFIABLE\n")
+                    .append(request.keepAlive ? "Connection: keep-alive\n" : "Connection: close\n")
+                    .append("Content-Length: 0\n")
+                    .append(format("Content-Range: bytes */%d\n", length))
+                    .append("\n") // headers end
+                    .toString();
+            return new ProxyResponse(headers, Collections.<ProxyResponse.Part>emptyList(), request.keepAlive);
+        }
+        if (ranges.size() > 1) {
+            return newMultipartResponse(request, ranges, mime, length);
+        }
+        boolean partial = !ranges.isEmpty();
+        long start = partial ? ranges.get(0)[0] : 0;
+        long end = partial ? ranges.get(0)[1] : length;
+        boolean bounded = end >= 0;
+        boolean keepAlive = request.keepAlive && bounded;
+        String headers = new StringBuilder()
+                .append(partial ? "HTTP/1.1 206 PARTIAL CONTENT\n" : "HTTP/1.1 200 OK\n")
                 .append("Accept-Ranges: bytes\n")
-                .append(lengthKnown ? format("Content-Length: %d\n", contentLength) : "")
-                .append(addRange ? format("Content-Range: bytes %d-%d/%d\n", request.rangeOffset, length - 1, length) : "")
-                .append(mimeKnown ? format("Content-Type: %s\n", mime) : "")
+                .append(keepAlive ? "Connection: keep-alive\n" : "Connection: close\n")
+                .append(bounded ? format("Content-Length: %d\n", end - start) : "")
+                .append(partial && bounded ? format("Content-Range: bytes %d-%d/%s\n", start, end - 1, lengthKnown ? length : "*") : "")
+                .append(!TextUtils.isEmpty(mime) ? format("Content-Type: %s\n", mime) : "")
                 .append("\n") // headers end
                 .toString();
+        return new ProxyResponse(headers, Collections.singletonList(new ProxyResponse.Part(null, start, end)), keepAlive);
     }
 
-    private void responseWithCache(OutputStream out, long offset) throws ProxyCacheException, IOException {
-        byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
+    private ProxyResponse newMultipartResponse(GetRequest request, List<long[]> ranges, String mime, long length) throws IOException {
+        String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(length);
+        List<ProxyResponse.Part> parts = new ArrayList<>(ranges.size() + 1);
+        long contentLength = 0;
+        for (long[] range : ranges) {
+            String partHeaders = new StringBuilder()
+                    .append("\r\n--").append(boundary).append("\r\n")
+                    .append(!TextUtils.isEmpty(mime) ? format("Content-Type: %s\r\n", mime) : "")
+                    .append(format("Content-Range: bytes %d-%d/%s\r\n", range[0], range[1] - 1, length >= 0 ? length : "*"))
+                    .append("\r\n")
+                    .toString();
+            byte[] prefix = partHeaders.getBytes("UTF-8");
+            parts.add(new ProxyResponse.Part(prefix, range[0], range[1]));
+            contentLength += prefix.length + range[1] - range[0];
+        }
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes("UTF-8");
+        parts.add(new ProxyResponse.Part(closing, 0, 0));
+        contentLength += closing.length;
+        String headers = new StringBuilder()
+                .append("HTTP/1.1 206 PARTIAL CONTENT\n")
+                .append("Accept-Ranges: bytes\n")
+                .append(request.keepAlive ? "Connection: keep-alive\n" : "Connection: close\n")
+                .append(format("Content-Length: %d\n", contentLength))
+                .append(format("Content-Type: multipart/byteranges; boundary=%s\n", boundary))
+                .append("\n") // headers end
+                .toString();
+        return new ProxyResponse(headers, parts, request.keepAlive);
+    }
+
+    /**
+     * Converts requested ranges to list of satisfiable {@code [start, end)} ranges, end is {@code -1} if it is unknown.
+     * Overlapping and adjacent ranges are merged. If length is unknown, only single not suffix range can be served,
+     * otherwise ranges are ignored and whole source is sent.
+     */
+    private List<long[]> resolveRanges(List<GetRequest.ByteRange> requested, long length) {
+        List<long[]> ranges = new ArrayList<>(requested.size());
+        if (length < 0 && (requested.size() != 1 || requested.get(0).isSuffix())) {
+            return ranges;
+        }
+        for (GetRequest.ByteRange range : requested) {
+            if (!range.isSatisfiable(length)) {
+                continue;
+            }
+            long start = range.start(length);
+            long end = range.end(length);
+            // ranges may be out of order, so range is merged with all overlapping ones and takes place of the first
+            int position = ranges.size();
+            for (int i = ranges.size() - 1; i >= 0; i--) {
+                long[] other = ranges.get(i);
+                if (start <= other[1] && end >= other[0]) {
+                    start = Math.min(start, other[0]);
+                    end = Math.max(end, other[1]);
+                    ranges.remove(i);
+                    position = i;
+                }
+            }
+            ranges.add(position, new long[]{start, end});
+        }
+        return ranges;
+    }
+
+    private long responseWithCache(OutputStream out, byte[] buffer, GetRequest request, long offset, long end, boolean bodyStarted) throws ProxyCacheException, IOException {
+        long cachedEnd = cachedEnd(offset);
         int readBytes;
-        while ((readBytes = read(buffer, offset, buffer.length)) != -1) {
+        while (end < 0 || offset < end) {
+            int length = end < 0 ? buffer.length : (int) Math.min(buffer.length, end - offset);
+            if ((readBytes = read(buffer, offset, length)) == -1) {
+                break;
+            }
             out.write(buffer, 0, readBytes);
+            onServed(request, !bodyStarted, offset, readBytes, cachedEnd);
+            bodyStarted = true;
             offset += readBytes;
         }
-        out.flush();
+        return offset;
     }
 
-    private void responseWithoutCache(OutputStream out, long offset) throws ProxyCacheException, IOException {
-        HttpUrlSource newSourceNoCache = new HttpUrlSource(this.source);
-        try {
-            newSourceNoCache.open((int) offset);
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-            int readBytes;
-            while ((readBytes = newSourceNoCache.read(buffer)) != -1) {
-                out.write(buffer, 0, readBytes);
-                offset += readBytes;
+    private long responseWithTransfer(WritableByteChannel channel, GetRequest request, long offset, long end, boolean bodyStarted) throws ProxyCacheException {
+        long transferred;
+        while (end < 0 || offset < end) {
+            long maxCount = end < 0 ? Long.MAX_VALUE : end - offset;
+            if ((transferred = transfer(offset, maxCount, channel)) == -1) {
+                break;
             }
-            out.flush();
-        } finally {
-            newSourceNoCache.close();
+            onServed(request, !bodyStarted, offset, transferred, Long.MAX_VALUE);
+            bodyStarted = true;
+            offset += transferred;
+        }
+        return offset;
+    }
+
+    /**
+     * Returns end of data available for serving from {@code offset} before it is requested, bytes after it are
+     * counted as fetched from origin.
+     */
+    long cachedEnd(long offset) throws ProxyCacheException {
+        return cache.isCompleted() ? Long.MAX_VALUE : offset + available(offset);
+    }
+
+    /**
+     * Counts {@code count} bytes of response body from {@code offset} served for request.
+     *
+     * @param firstByte {@code true} if these are the first bytes of response body.
+     * @param cachedEnd value of {@link #cachedEnd(long)} when serving of response part is started.
+     */
+    void onServed(GetRequest request, boolean firstByte, long offset, long count, long cachedEnd) {
+        if (metrics != null) {
+            long fromCache = Math.max(0, Math.min(count, cachedEnd - offset));
+            metrics.onServed(request.receivedNanos, firstByte, fromCache, count - fromCache);
+        }
+    }
+
+    /**
+     * Notifies metrics listeners about served request, it must be called once per request.
+     */
+    void onRequestFinished() {
+        if (metrics != null) {
+            metrics.onChanged();
         }
     }
 
@@ -106,7 +330,24 @@ class HttpProxyCache extends ProxyCache {
     @Override
     protected void onCachePercentsAvailableChanged(int percents) {
         if (listener != null) {
-            listener.onCacheAvailable(cache.file, source.getUrl(), percents);
+            listener.onCacheAvailable(cache.file, url, percents);
         }
     }
+
+    @Override
+    protected void abortSource() {
+        if (dataSource instanceof ParallelHttpUrlSource) {
+            ((ParallelHttpUrlSource) dataSource).abort();
+        } else if (source instanceof HttpUrlSource) {
+            ((HttpUrlSource) source).abort();
+        }
+    }
+
+    /**
+     * Returns {@code true} if content info is known without reading source, it is never known for sources
+     * other than {@link HttpUrlSource} until the first response.
+     */
+    private boolean isSourceInfoKnown() {
+        return source instanceof HttpUrlSource && ((HttpUrlSource) source).isSourceInfoKnown();
+    }
 }
@@ -1,11 +1,14 @@
 package com.danikula.videocache;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.net.Uri;
 
 import com.danikula.videocache.file.DiskUsage;
 import com.danikula.videocache.file.FileNameGenerator;
+import com.danikula.videocache.file.MappedFileWindows;
 import com.danikula.videocache.file.Md5FileNameGenerator;
+import com.danikula.videocache.file.MemoryBlockCache;
 import com.danikula.videocache.file.TotalCountLruDiskUsage;
 import com.danikula.videocache.file.TotalSizeLruDiskUsage;
 import com.danikula.videocache.headers.EmptyHeadersInjector;
@@ -13,18 +16,29 @@ import com.danikula.videocache.headers.HeaderInjector;
 import com.danikula.videocache.sourcestorage.SourceInfoStorage;
 import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.danikula.videocache.Preconditions.checkAllNotNull;
 import static com.danikula.videocache.Preconditions.checkNotNull;
@@ -50,12 +64,33 @@ import static com.danikula.videocache.Preconditions.checkNotNull;
  */
 public class HttpProxyCacheServer {
 
+    /**
+     * Priority of preloading media that is likely to be played soon, e.g. the next video in feed.
+     */
+    public static final int PRIORITY_NEAR_PRELOAD = 1;
+    /**
+     * Priority of preloading media that may be played later.
+     */
+    public static final int PRIORITY_FAR_PRELOAD = 0;
+
     private static final String PROXY_HOST = "127.0.0.1";
+    // persistent connection occupies thread of blocking mode while it is idle, so few of them wait shortly
+    private static final int KEEP_ALIVE_TIMEOUT_MS = 1000;
+    private static final int MAX_IDLE_CONNECTIONS = 2;
+    private static final int SOCKET_PROCESSOR_THREADS = 8;
 
     private final Object clientsLock = new Object();
-    private final ExecutorService socketProcessor = Executors.newFixedThreadPool(8);
+    private final ExecutorService socketProcessor = Executors.newFixedThreadPool(SOCKET_PROCESSOR_THREADS);
     private final Map<String, HttpProxyCacheServerClients> clientsMap = new ConcurrentHashMap<>();
+    private final AtomicInteger idleConnectionsCount = new AtomicInteger();
+    private final ProxyStats stats = new ProxyStats();
+    private final CacheListenerDispatcher listenerDispatcher;
+    private final HlsProxy hlsProxy;
+    private final Preloader preloader;
+    private final DownloadScheduler downloadScheduler;
+    private final MetricsCollector metrics;
     private final ServerSocket serverSocket;
+    private final NioProxyEngine nioEngine;
     private final int port;
     private final Thread waitConnectionThread;
     private final Config config;
@@ -66,17 +101,38 @@ public class HttpProxyCacheServer {
 
     private HttpProxyCacheServer(Config config) {
         this.config = checkNotNull(config);
+        this.listenerDispatcher = new CacheListenerDispatcher(config.listenerIntervalMs, config.listenerExecutor);
+        this.hlsProxy = config.hlsEnabled ? new HlsProxy(this, config, config.hlsPrefetchSegmentsCount) : null;
+        this.preloader = new Preloader(this);
+        this.downloadScheduler = new DownloadScheduler(config.maxConcurrentDownloads, config.minForegroundBuffer);
+        this.metrics = new MetricsCollector(config.diskUsage, config.listenerIntervalMs);
+        config.cacheIndex.load();
         try {
             InetAddress inetAddress = InetAddress.getByName(PROXY_HOST);
-            this.serverSocket = new ServerSocket(0, 8, inetAddress);
-            this.port = serverSocket.getLocalPort();
-            IgnoreHostProxySelector.install(PROXY_HOST, port);
-            CountDownLatch startSignal = new CountDownLatch(1);
-            this.waitConnectionThread = new Thread(new WaitRequestsRunnable(startSignal));
-            this.waitConnectionThread.start();
-            startSignal.await(); // freeze thread, wait for server starts
+            if (config.nioSelectorsCount > 0) {
+                this.serverSocket = null;
+                this.waitConnectionThread = null;
+                this.nioEngine = new NioProxyEngine(inetAddress, config.nioSelectorsCount, socketProcessor, new ClientsProvider(), stats, metrics, config.bufferPool);
+                this.port = nioEngine.getPort();
+                IgnoreHostProxySelector.install(PROXY_HOST, port);
+                nioEngine.start();
+            } else {
+                this.nioEngine = null;
+                // socket is created by channel to make channels of accepted sockets available for zero-copy transfer
+                this.serverSocket = ServerSocketChannel.open().socket();
+                this.serverSocket.bind(new InetSocketAddress(inetAddress, 0), 8);
+                this.port = serverSocket.getLocalPort();
+                IgnoreHostProxySelector.install(PROXY_HOST, port);
+                CountDownLatch startSignal = new CountDownLatch(1);
+                this.waitConnectionThread = new Thread(new WaitRequestsRunnable(startSignal));
+                this.waitConnectionThread.start();
+                startSignal.await(); // freeze thread, wait for server starts
+            }
         } catch (IOException | InterruptedException e) {
             socketProcessor.shutdown();
+            preloader.shutdown();
+            metrics.shutdown();
+            config.cacheIndex.shutdown();
             throw new IllegalStateException("Error starting local proxy server", e);
         }
     }
@@ -107,7 +163,7 @@ public class HttpProxyCacheServer {
      * @return a wrapped by proxy url if file is not fully cached or url pointed to cache file otherwise (if {@code allowCachedFileUri} is {@code true}).
      */
     public String getProxyUrl(String url, boolean allowCachedFileUri) {
-        if (allowCachedFileUri && getCacheFile(url).exists()) {
+        if (allowCachedFileUri && isCached(url)) {
             File cacheFile = getCacheFile(url);
             touchFileSafely(cacheFile);
             return Uri.fromFile(cacheFile).toString();
@@ -148,22 +204,181 @@ public class HttpProxyCacheServer {
 
     /**
      * Checks is cache contains fully cached file for particular url.
+     * It is checked by in-memory index of cache without disk access, so it can be called on main thread.
+     * Url is reported as not cached until index is loaded in background after proxy is created.
      *
      * @param url an url cache file will be checked for.
      * @return {@code true} if cache contains fully cached file for passed in parameters url.
      */
     public boolean isCached(String url) {
         checkNotNull(url, "Url can't be null!");
-        return getCacheFile(url).exists();
+        return config.cacheIndex.isCompleted(config.fileNameGenerator.generate(getCacheKey(url)));
+    }
+
+    /**
+     * Returns count of bytes of url cached from the beginning, e.g. to check if url is preloaded.
+     * It is checked by in-memory index of cache without disk access, so it can be called on main thread.
+     * Url is reported as not cached until index is loaded in background after proxy is created.
+     *
+     * @param url an url cache will be checked for.
+     * @return length of fully cached file, count of bytes cached from the beginning of partially cached file
+     * or {@code 0} if url is not cached.
+     */
+    public long getCachedBytes(String url) {
+        checkNotNull(url, "Url can't be null!");
+        return config.cacheIndex.getCachedBytes(config.fileNameGenerator.generate(getCacheKey(url)));
+    }
+
+    /**
+     * Deletes fully and partially cached files of url. Files of cache should be deleted by this method or
+     * {@link #clearCache()}, otherwise partially cached files deleted by other means are still reported by
+     * {@link #getCachedBytes(String)}.
+     *
+     * @param url an url cache to be deleted for.
+     * @return {@code true} if files are deleted or didn't exist.
+     */
+    public boolean deleteCache(String url) {
+        checkNotNull(url, "Url can't be null!");
+        return config.cacheIndex.delete(config.fileNameGenerator.generate(getCacheKey(url)));
+    }
+
+    /**
+     * Deletes all cached files.
+     *
+     * @return {@code true} if all files are deleted.
+     */
+    public boolean clearCache() {
+        return config.cacheIndex.clear();
+    }
+
+    /**
+     * Starts caching the first {@code length} bytes of url in background, e.g. to make start of the next video
+     * in feed instant. Data is fetched into cache directly, without local connection to proxy, and is shared
+     * with players that request the same url meanwhile.
+     * <p>
+     * Playback always has higher priority than preloading: preloads are paused while player of any url
+     * has too small buffer, see {@link Builder#maxConcurrentDownloads(int, long)}.
+     * </p>
+     *
+     * @param url      an url to preload.
+     * @param length   count of bytes to preload from the beginning of url.
+     * @param priority preloads with higher priority are started and fetched first, preloads with equal priority are
+     *                 started in order of calls. Usually {@link #PRIORITY_NEAR_PRELOAD} or {@link #PRIORITY_FAR_PRELOAD}.
+     * @return handle to watch or cancel preloading.
+     */
+    public PreloadHandle preload(String url, long length, int priority) {
+        checkNotNull(url, "Url can't be null!");
+        if (length < 0) {
+            throw new IllegalArgumentException("Length must not be negative!");
+        }
+        if (priority == DownloadScheduler.PRIORITY_FOREGROUND) {
+            throw new IllegalArgumentException("Priority of preloading must be lower than priority of playback!");
+        }
+        return preloader.preload(url, length, priority);
+    }
+
+    /**
+     * Starts caching the first {@code duration} of url in background. Duration is converted to bytes
+     * with bitrate set by {@link Builder#preloadBitrate(long)}, use {@link #preload(String, long, int)}
+     * if size of data is known better.
+     *
+     * @param url      an url to preload.
+     * @param duration duration of media to preload from the beginning of url.
+     * @param unit     unit of duration.
+     * @param priority preloads with higher priority are started first.
+     * @return handle to watch or cancel preloading.
+     */
+    public PreloadHandle preload(String url, long duration, TimeUnit unit, int priority) {
+        long length = checkNotNull(unit).toMillis(duration) * config.preloadBitrate / 8 / 1000;
+        return preload(url, length, priority);
+    }
+
+    /**
+     * Returns statistics of local connections to proxy.
+     *
+     * @return live statistics, updated while proxy works.
+     */
+    public ProxyStats getStats() {
+        return stats;
+    }
+
+    /**
+     * Returns metrics of sources and cache: time to first byte, throughput, cache hit ratio, evictions and errors.
+     *
+     * @return snapshot of metrics, it isn't updated.
+     */
+    public ProxyMetrics getMetrics() {
+        return metrics.snapshot();
+    }
+
+    /**
+     * Registers listener to be notified about changes of metrics.
+     *
+     * @see MetricsListener#onMetricsChanged(SourceMetrics, SourceMetrics)
+     */
+    public void registerMetricsListener(MetricsListener listener) {
+        metrics.registerListener(checkNotNull(listener));
+    }
+
+    public void unregisterMetricsListener(MetricsListener listener) {
+        metrics.unregisterListener(checkNotNull(listener));
+    }
+
+    /**
+     * Returns pool of buffers used for serving requests and fetching data, it counts reused and allocated buffers.
+     */
+    public BufferPool getBufferPool() {
+        return config.bufferPool;
+    }
+
+    /**
+     * Returns memory-mapped windows used for reading completed files or {@code null} if mapped reads are disabled.
+     *
+     * @see Builder#mappedReads(long)
+     */
+    public MappedFileWindows getMappedFileWindows() {
+        return config.mappedWindows;
+    }
+
+    /**
+     * Releases memory cache and mapped windows when system is low on memory, it should be called from
+     * {@link ComponentCallbacks2#onTrimMemory(int)} of application.
+     *
+     * @param level level of trimming, one of {@code ComponentCallbacks2.TRIM_MEMORY_*} constants.
+     */
+    public void trimMemory(int level) {
+        boolean critical = level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+        boolean low = level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW;
+        MemoryBlockCache memoryCache = config.memoryCache;
+        if (memoryCache != null) {
+            memoryCache.trim(critical ? 0 : low ? memoryCache.getSize() / 2 : memoryCache.getSize());
+        }
+        MappedFileWindows mappedWindows = config.mappedWindows;
+        if (mappedWindows != null) {
+            mappedWindows.trim(critical ? 0 : low ? mappedWindows.getMappedBytes() / 2 : mappedWindows.getMappedBytes());
+        }
     }
 
     public void shutdown() {
         Logger.info("Shutdown proxy server");
 
         shutdownClients();
+        listenerDispatcher.shutdown();
+        preloader.shutdown();
+        metrics.shutdown();
+        config.cacheIndex.shutdown();
+        if (hlsProxy != null) {
+            hlsProxy.shutdown();
+        }
 
         config.sourceInfoStorage.release();
 
+        if (nioEngine != null) {
+            nioEngine.shutdown();
+            socketProcessor.shutdown();
+            return;
+        }
+
         waitConnectionThread.interrupt();
         try {
             if (!serverSocket.isClosed()) {
@@ -172,6 +387,7 @@ public class HttpProxyCacheServer {
         } catch (IOException e) {
             onError(new ProxyCacheException("Error shutting down proxy server", e));
         }
+        socketProcessor.shutdown();
     }
 
     private String appendToProxyUrl(String url) {
@@ -179,17 +395,24 @@ public class HttpProxyCacheServer {
     }
 
     public File getCacheFile(String url) {
-        File cacheDir = config.cacheRoot;
-        String fileName = config.fileNameGenerator.generate(url);
-        return new File(cacheDir, fileName);
+        return config.generateCacheFile(getCacheKey(url));
     }
 
     public File getTempCacheFile(String url) {
         File cacheDir = config.cacheRoot;
-        String fileName = config.fileNameGenerator.generate(url) + ".download";
+        String fileName = config.fileNameGenerator.generate(getCacheKey(url)) + ".download";
         return new File(cacheDir, fileName);
     }
 
+    /**
+     * Returns key to be used for caching data of url, urls with equal keys share cache file and clients.
+     *
+     * @see Builder#cacheKeyNormalizer(CacheKeyNormalizer)
+     */
+    String getCacheKey(String url) {
+        return hlsProxy != null ? hlsProxy.getCacheKey(url) : config.cacheKeyNormalizer.normalize(url);
+    }
+
     public File getCacheRoot() {
         return config.cacheRoot;
     }
@@ -216,7 +439,14 @@ public class HttpProxyCacheServer {
             while (!Thread.currentThread().isInterrupted()) {
                 Socket socket = serverSocket.accept();
                 Logger.debug("Accept new socket " + socket);
-                socketProcessor.submit(new SocketProcessorRunnable(socket));
+                stats.onConnectionAccepted();
+                try {
+                    socketProcessor.submit(new SocketProcessorRunnable(socket));
+                } catch (RejectedExecutionException e) {
+                    Logger.debug("Proxy is stopped, close socket " + socket);
+                    socket.close();
+                    return;
+                }
             }
         } catch (IOException e) {
             onError(new ProxyCacheException("Error during waiting connection", e));
@@ -224,12 +454,44 @@ public class HttpProxyCacheServer {
     }
 
     private void processSocket(Socket socket) {
+        ByteBuffer requestBuffer = null;
+        boolean idle = false;
         try {
-            GetRequest request = GetRequest.read(socket.getInputStream());
-            Logger.debug("Request to cache proxy:" + request);
-            String url = ProxyCacheUtils.decode(request.uri);
-            HttpProxyCacheServerClients clients = getClients(url);
-            clients.processRequest(request, socket);
+            // stream is shared by all requests of persistent connection, buffered but not read requests are kept in it
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            requestBuffer = config.bufferPool.acquireDirect();
+            boolean keepAlive = true;
+            int requestsCount = 0;
+            while (keepAlive) {
+                GetRequest request = GetRequest.read(in, requestBuffer);
+                if (idle) {
+                    idleConnectionsCount.decrementAndGet();
+                    idle = false;
+                }
+                if (request == null) {
+                    break; // connection is closed by client between requests
+                }
+                Logger.debug("Request to cache proxy:" + request);
+                stats.onRequest(requestsCount++ > 0);
+                socket.setSoTimeout(0);
+                ProxyResponse directResponse = newDirectResponse(request);
+                if (directResponse != null) {
+                    keepAlive = writeDirectResponse(directResponse, socket);
+                } else {
+                    keepAlive = getRequestClients(request.url()).processRequest(request, socket);
+                }
+                if (keepAlive) {
+                    if (idleConnectionsCount.incrementAndGet() > MAX_IDLE_CONNECTIONS) {
+                        // keep threads for new connections, client reconnects for next request
+                        idleConnectionsCount.decrementAndGet();
+                        break;
+                    }
+                    idle = true;
+                    socket.setSoTimeout(KEEP_ALIVE_TIMEOUT_MS); // don't occupy thread by idle connection for too long
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            Logger.debug("Closing idle persistent connection " + socket);
         } catch (SocketException e) {
             // There is no way to determine that client closed connection http://stackoverflow.com/a/10241044/999458
             // So just to prevent log flooding don't log stacktrace
@@ -237,17 +499,44 @@ public class HttpProxyCacheServer {
         } catch (ProxyCacheException | IOException e) {
             onError(new ProxyCacheException("Error processing request", e));
         } finally {
+            if (idle) {
+                idleConnectionsCount.decrementAndGet();
+            }
+            config.bufferPool.release(requestBuffer);
             releaseSocket(socket);
             Logger.debug("Opened connections: " + getClientsCount());
         }
     }
 
-    private HttpProxyCacheServerClients getClients(String url) throws ProxyCacheException {
+    private ProxyResponse newDirectResponse(GetRequest request) throws ProxyCacheException {
+        return hlsProxy != null ? hlsProxy.newPlaylistResponse(request) : null;
+    }
+
+    private boolean writeDirectResponse(ProxyResponse response, Socket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(response.headers.getBytes("UTF-8"));
+        for (ProxyResponse.Part part : response.parts) {
+            out.write(part.prefix);
+        }
+        return response.keepAlive;
+    }
+
+    private HttpProxyCacheServerClients getRequestClients(String url) throws ProxyCacheException {
+        if (hlsProxy != null) {
+            hlsProxy.onRequest(url);
+        }
+        return getClients(url);
+    }
+
+    HttpProxyCacheServerClients getClients(String url) throws ProxyCacheException {
+        String cacheKey = getCacheKey(url);
         synchronized (clientsLock) {
-            HttpProxyCacheServerClients clients = clientsMap.get(url);
+            HttpProxyCacheServerClients clients = clientsMap.get(cacheKey);
             if (clients == null) {
-                clients = new HttpProxyCacheServerClients(url, config);
-                clientsMap.put(url, clients);
+                clients = new HttpProxyCacheServerClients(url, cacheKey, config, listenerDispatcher, downloadScheduler, metrics);
+                clientsMap.put(cacheKey, clients);
+            } else {
+                clients.setUrl(url);
             }
             return clients;
         }
@@ -304,7 +593,8 @@ public class HttpProxyCacheServer {
     }
 
     private void onError(Throwable e) {
-        Logger.error("HttpProxyCacheServer error");
+        Logger.error("HttpProxyCacheServer error: " + e);
+        metrics.onError(e);
     }
 
     private final class WaitRequestsRunnable implements Runnable {
@@ -336,25 +626,72 @@ public class HttpProxyCacheServer {
         }
     }
 
+    private final class ClientsProvider implements NioProxyEngine.ClientsProvider {
+
+        @Override
+        public HttpProxyCacheServerClients getClients(String url) throws ProxyCacheException {
+            return getRequestClients(url);
+        }
+
+        @Override
+        public boolean isDirectRequest(GetRequest request) {
+            return hlsProxy != null && HlsPlaylist.isPlaylistUrl(request.url());
+        }
+
+        @Override
+        public ProxyResponse newDirectResponse(GetRequest request) throws ProxyCacheException {
+            return HttpProxyCacheServer.this.newDirectResponse(request);
+        }
+    }
+
     /**
      * Builder for {@link HttpProxyCacheServer}.
      */
     public static final class Builder {
 
         private static final long DEFAULT_MAX_SIZE = 512 * 1024 * 1024;
+        private static final long DEFAULT_LISTENER_INTERVAL_MS = 16;
+        private static final long DEFAULT_PRELOAD_BITRATE = 2 * 1000 * 1000;
+        private static final int DEFAULT_MAX_CONCURRENT_DOWNLOADS = 4;
+        private static final long DEFAULT_MIN_FOREGROUND_BUFFER = 1024 * 1024;
+        private static final long DEFAULT_MEMORY_CACHE_BYTES_PER_FILE = 1024 * 1024;
+        private static final int DEFAULT_BUFFER_POOL_SIZE = 128;
 
         private File cacheRoot;
         private FileNameGenerator fileNameGenerator;
         private DiskUsage diskUsage;
         private SourceInfoStorage sourceInfoStorage;
         private HeaderInjector headerInjector;
+        private SourceFactory sourceFactory;
+        private int nioSelectorsCount;
+        private int parallelConnectionsCount = 1;
+        private long listenerIntervalMs = DEFAULT_LISTENER_INTERVAL_MS;
+        private Executor listenerExecutor;
+        private boolean hlsEnabled;
+        private int hlsPrefetchSegmentsCount;
+        private long preloadBitrate = DEFAULT_PRELOAD_BITRATE;
+        private int maxConcurrentDownloads = DEFAULT_MAX_CONCURRENT_DOWNLOADS;
+        private long minForegroundBuffer = DEFAULT_MIN_FOREGROUND_BUFFER;
+        private long memoryCacheSize;
+        private long memoryCacheBytesPerFile = DEFAULT_MEMORY_CACHE_BYTES_PER_FILE;
+        private int bufferPoolSize = DEFAULT_BUFFER_POOL_SIZE;
+        private long maxMappedBytes;
+        private CacheKeyNormalizer cacheKeyNormalizer = new CacheKeyNormalizer();
 
         public Builder(Context context) {
-            this.sourceInfoStorage = SourceInfoStorageFactory.newSourceInfoStorage(context);
-            this.cacheRoot = StorageUtils.getIndividualCacheDirectory(context);
+            this(StorageUtils.getIndividualCacheDirectory(context), SourceInfoStorageFactory.newSourceInfoStorage(context));
+        }
+
+        /**
+         * Creates builder without {@link Context}, e.g. for running proxy on JVM.
+         */
+        Builder(File cacheRoot, SourceInfoStorage sourceInfoStorage) {
+            this.sourceInfoStorage = checkNotNull(sourceInfoStorage);
+            this.cacheRoot = checkNotNull(cacheRoot);
             this.diskUsage = new TotalSizeLruDiskUsage(DEFAULT_MAX_SIZE);
             this.fileNameGenerator = new Md5FileNameGenerator();
             this.headerInjector = new EmptyHeadersInjector();
+            this.sourceFactory = new HttpUrlSourceFactory();
         }
 
         /**
@@ -385,6 +722,25 @@ public class HttpProxyCacheServer {
             return this;
         }
 
+        /**
+         * Sets rules for turning urls into cache keys, so urls of the same content are cached in the same file,
+         * e.g. CDN urls with rotating signatures or access tokens in query:
+         * <pre>
+         * new HttpProxyCacheServer.Builder(context)
+         *     .cacheKeyNormalizer(new CacheKeyNormalizer().ignoreQueryParameters("token", "expires"))
+         *     .build();
+         * </pre>
+         * Url is used as key as is by default. Keys are passed to {@link FileNameGenerator}, so changing rules
+         * makes data cached by previous keys unavailable.
+         *
+         * @param normalizer configured normalizer, later changes of it are not taken into account.
+         * @return a builder.
+         */
+        public Builder cacheKeyNormalizer(CacheKeyNormalizer normalizer) {
+            this.cacheKeyNormalizer = new CacheKeyNormalizer(checkNotNull(normalizer));
+            return this;
+        }
+
         /**
          * Sets max cache size in bytes.
          * <p>
@@ -436,6 +792,198 @@ public class HttpProxyCacheServer {
             return this;
         }
 
+        /**
+         * Sets factory of sources used for fetching data from origin servers.
+         * <p>
+         * By default {@link HttpUrlSourceFactory} is used, it releases connections so http stack may reuse them.
+         * Use {@link HttpUrlSourceFactory#HttpUrlSourceFactory(ConnectionReleaser)} with own {@link ConnectionReleaser}
+         * to watch count of requests to origin servers, or own factory of {@link Source}s to plug alternative http stack.
+         * </p>
+         *
+         * @param sourceFactory a factory of sources, can't be null.
+         * @return a builder.
+         */
+        public Builder sourceFactory(SourceFactory sourceFactory) {
+            this.sourceFactory = checkNotNull(sourceFactory);
+            return this;
+        }
+
+        /**
+         * Enables non-blocking mode: local connections are served by {@code selectorsCount} selector loops
+         * instead of a thread per connection, so hundreds of concurrent players and preloads can be served.
+         * By default (or if count is {@code 0}) blocking mode with pool of 8 threads is used.
+         *
+         * @param selectorsCount count of threads with selector loops, usually 1 or 2 are enough.
+         * @return a builder.
+         */
+        public Builder nioSelectors(int selectorsCount) {
+            if (selectorsCount < 0) {
+                throw new IllegalArgumentException("Selectors count must not be negative!");
+            }
+            this.nioSelectorsCount = selectorsCount;
+            return this;
+        }
+
+        /**
+         * Enables parallel fetching: data of sources with known length is downloaded by {@code connectionsCount}
+         * range requests at once, bytes nearest to play position are fetched first.
+         * Useful for fast servers that throttle bandwidth per connection. By default single connection is used.
+         *
+         * @param connectionsCount count of connections per source, {@code 1} disables parallel fetching.
+         * @return a builder.
+         */
+        public Builder parallelConnections(int connectionsCount) {
+            if (connectionsCount < 1) {
+                throw new IllegalArgumentException("Connections count must be positive!");
+            }
+            this.parallelConnectionsCount = connectionsCount;
+            return this;
+        }
+
+        /**
+         * Sets min interval between notifications of {@link CacheListener}s.
+         * <p>
+         * Progress of every url is coalesced, so listeners get only the latest progress, and progress of all urls
+         * is delivered by single dispatch. Default value is 16 ms (about once per frame).
+         * </p>
+         *
+         * @param interval min interval between notifications, {@code 0} to notify listeners as soon as possible.
+         * @param unit     unit of interval.
+         * @return a builder.
+         */
+        public Builder cacheListenerInterval(long interval, TimeUnit unit) {
+            if (interval < 0) {
+                throw new IllegalArgumentException("Interval must not be negative!");
+            }
+            this.listenerIntervalMs = checkNotNull(unit).toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Sets executor to notify {@link CacheListener}s on. By default listeners are notified on main thread.
+         *
+         * @param executor an executor for notifying listeners, can't be null.
+         * @return a builder.
+         */
+        public Builder cacheListenerExecutor(Executor executor) {
+            this.listenerExecutor = checkNotNull(executor);
+            return this;
+        }
+
+        /**
+         * Enables HLS mode: playlists (urls with {@code .m3u8} path) are fetched on every request and rewritten,
+         * so segments, keys and nested playlists are requested through proxy too.
+         * <p>
+         * Every segment is cached as separate file with key that doesn't depend on query of segment's url
+         * (e.g. on access tokens), so cache stays valid when playlist is reloaded. Segments following requested one
+         * are prefetched in background.
+         * </p>
+         *
+         * @param prefetchSegmentsCount count of segments to prefetch, {@code 0} disables prefetching.
+         * @return a builder.
+         */
+        public Builder hls(int prefetchSegmentsCount) {
+            if (prefetchSegmentsCount < 0) {
+                throw new IllegalArgumentException("Prefetch segments count must not be negative!");
+            }
+            this.hlsEnabled = true;
+            this.hlsPrefetchSegmentsCount = prefetchSegmentsCount;
+            return this;
+        }
+
+        /**
+         * Sets bitrate used to convert duration of preloading to bytes by
+         * {@link HttpProxyCacheServer#preload(String, long, TimeUnit, int)}. Default value is 2 Mbit/s.
+         *
+         * @param bitsPerSecond expected bitrate of preloaded media.
+         * @return a builder.
+         */
+        public Builder preloadBitrate(long bitsPerSecond) {
+            if (bitsPerSecond <= 0) {
+                throw new IllegalArgumentException("Bitrate must be positive!");
+            }
+            this.preloadBitrate = bitsPerSecond;
+            return this;
+        }
+
+        /**
+         * Sets limits of fetching data from origin servers. Sources of players are always fetched, besides them
+         * only {@code maxDownloads} sources with highest priority (preloads by their priorities) are fetched at once,
+         * others wait.
+         * While any player has less than {@code minForegroundBuffer} bytes fetched ahead of its position,
+         * all preloads are paused, so player gets whole bandwidth of slow network.
+         * By default 4 sources are fetched at once and min buffer is 1 Mb.
+         *
+         * @param maxDownloads        max count of sources fetched at once besides sources of players.
+         * @param minForegroundBuffer min buffer of players in bytes, {@code 0} disables pausing preloads.
+         * @return a builder.
+         */
+        public Builder maxConcurrentDownloads(int maxDownloads, long minForegroundBuffer) {
+            if (maxDownloads < 1) {
+                throw new IllegalArgumentException("Max downloads count must be positive!");
+            }
+            if (minForegroundBuffer < 0) {
+                throw new IllegalArgumentException("Min foreground buffer must not be negative!");
+            }
+            this.maxConcurrentDownloads = maxDownloads;
+            this.minForegroundBuffer = minForegroundBuffer;
+            return this;
+        }
+
+        /**
+         * Sets size of memory cache for beginnings of cached files, so starts of recently played and preloaded media
+         * are served without reading disk. Memory is taken by fixed-size blocks, blocks of least recently used files
+         * are dropped when cache is full or {@link HttpProxyCacheServer#trimMemory(int)} is called.
+         * Memory cache takes heap, so it is disabled by default. E.g. 8 Mb keeping the first 1 Mb of every file
+         * is enough for starting of several recently played clips without disk reads.
+         *
+         * @param maxSize         max size of memory cache in bytes, {@code 0} disables memory cache.
+         * @param maxBytesPerFile count of bytes from the beginning of every file to be kept in memory.
+         * @return a builder.
+         */
+        public Builder memoryCache(long maxSize, long maxBytesPerFile) {
+            if (maxSize < 0 || maxBytesPerFile <= 0) {
+                throw new IllegalArgumentException("Memory cache size must not be negative and bytes per file must be positive!");
+            }
+            this.memoryCacheSize = maxSize;
+            this.memoryCacheBytesPerFile = maxBytesPerFile;
+            return this;
+        }
+
+        /**
+         * Sets max count of free buffers kept for reuse by request handling, source reading and cache writing,
+         * so these paths don't allocate new buffers for every request. Every buffer is 8 Kb, 128 buffers are kept by default.
+         *
+         * @param maxBuffers max count of pooled buffers, {@code 0} disables pooling.
+         * @return a builder.
+         * @see HttpProxyCacheServer#getBufferPool()
+         */
+        public Builder bufferPool(int maxBuffers) {
+            if (maxBuffers < 0) {
+                throw new IllegalArgumentException("Buffer pool size must not be negative!");
+            }
+            this.bufferPoolSize = maxBuffers;
+            return this;
+        }
+
+        /**
+         * Enables serving of completed cache files from memory-mapped windows of 1 Mb instead of system call
+         * per chunk, so hot cached clips are served from mapped memory. Least recently used windows
+         * are unmapped when total size of windows exceeds limit or {@link HttpProxyCacheServer#trimMemory(int)}
+         * is called. Mapped reads are disabled by default, {@code MappedReadBenchmark} from tests of library shows
+         * whether they are worth enabling on particular device.
+         *
+         * @param maxMappedBytes max total size of mapped windows, at least 1 Mb, {@code 0} disables mapped reads.
+         * @return a builder.
+         */
+        public Builder mappedReads(long maxMappedBytes) {
+            if (maxMappedBytes != 0 && maxMappedBytes < 1024 * 1024) {
+                throw new IllegalArgumentException("Max mapped size must be 0 or at least 1 Mb!");
+            }
+            this.maxMappedBytes = maxMappedBytes;
+            return this;
+        }
+
         /**
          * Builds new instance of {@link HttpProxyCacheServer}.
          *
@@ -447,7 +995,10 @@ public class HttpProxyCacheServer {
         }
 
         private Config buildConfig() {
-            return new Config(cacheRoot, fileNameGenerator, diskUsage, sourceInfoStorage, headerInjector);
+            return new Config(cacheRoot, fileNameGenerator, diskUsage, sourceInfoStorage, headerInjector, sourceFactory, nioSelectorsCount, parallelConnectionsCount, listenerIntervalMs, listenerExecutor, hlsEnabled, hlsPrefetchSegmentsCount, preloadBitrate, maxConcurrentDownloads, minForegroundBuffer,
+                    memoryCacheSize > 0 ? new MemoryBlockCache(memoryCacheSize, memoryCacheBytesPerFile) : null,
+                    new BufferPool(ProxyCacheUtils.DEFAULT_BUFFER_SIZE, bufferPoolSize),
+                    maxMappedBytes > 0 ? new MappedFileWindows(maxMappedBytes) : null, cacheKeyNormalizer);
         }
 
     }
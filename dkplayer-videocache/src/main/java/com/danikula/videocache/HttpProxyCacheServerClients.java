@@ -1,15 +1,12 @@
 package com.danikula.videocache;
 
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
-
 import com.danikula.videocache.file.FileCache;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.Socket;
 import java.util.List;
+import java.util.TreeMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -23,39 +20,88 @@ import static com.danikula.videocache.Preconditions.checkNotNull;
 final class HttpProxyCacheServerClients {
 
     private final AtomicInteger clientsCount = new AtomicInteger(0);
-    private final String url;
+    private final String cacheKey;
+    private volatile String url;
     private volatile HttpProxyCache proxyCache;
     private final List<CacheListener> listeners = new CopyOnWriteArrayList<>();
     private final CacheListener uiCacheListener;
     private final Config config;
+    private final DownloadScheduler scheduler;
+    private final MetricsCollector metrics;
+    // counts of active clients by priority, guarded by this
+    private final TreeMap<Integer, Integer> priorities = new TreeMap<>();
 
-    public HttpProxyCacheServerClients(String url, Config config) {
+    public HttpProxyCacheServerClients(String url, String cacheKey, Config config, CacheListenerDispatcher listenerDispatcher,
+                                       DownloadScheduler scheduler, MetricsCollector metrics) {
         this.url = checkNotNull(url);
+        this.cacheKey = checkNotNull(cacheKey);
         this.config = checkNotNull(config);
-        this.uiCacheListener = new UiListenerHandler(url, listeners);
+        this.scheduler = checkNotNull(scheduler);
+        this.metrics = checkNotNull(metrics);
+        this.uiCacheListener = new DispatchingListener(listeners, checkNotNull(listenerDispatcher));
     }
 
-    public void processRequest(GetRequest request, Socket socket) throws ProxyCacheException, IOException {
-        startProcessRequest();
+    /**
+     * Processes request.
+     *
+     * @return {@code true} if connection can be reused for next request.
+     */
+    public boolean processRequest(GetRequest request, Socket socket) throws ProxyCacheException, IOException {
+        HttpProxyCache proxyCache = startProcessRequest();
         try {
-            clientsCount.incrementAndGet();
-            proxyCache.processRequest(request, socket);
+            return proxyCache.processRequest(request, socket);
         } finally {
             finishProcessRequest();
         }
     }
 
-    private synchronized void startProcessRequest() throws ProxyCacheException {
+    /**
+     * Returns shared {@link HttpProxyCache} for new player. Every call must be paired with {@link #finishProcessRequest()}.
+     */
+    HttpProxyCache startProcessRequest() throws ProxyCacheException {
+        return startProcessRequest(DownloadScheduler.PRIORITY_FOREGROUND);
+    }
+
+    void finishProcessRequest() {
+        finishProcessRequest(DownloadScheduler.PRIORITY_FOREGROUND);
+    }
+
+    /**
+     * Returns shared {@link HttpProxyCache} for new client, source data is fetched with the highest priority of
+     * active clients. Every call must be paired with {@link #finishProcessRequest(int)} with the same priority.
+     */
+    synchronized HttpProxyCache startProcessRequest(int priority) throws ProxyCacheException {
         proxyCache = proxyCache == null ? newHttpProxyCache() : proxyCache;
+        clientsCount.incrementAndGet();
+        Integer count = priorities.get(priority);
+        priorities.put(priority, count == null ? 1 : count + 1);
+        proxyCache.setPriority(priorities.lastKey());
+        return proxyCache;
     }
 
-    private synchronized void finishProcessRequest() {
-        if (clientsCount.decrementAndGet() <= 0) {
+    synchronized void finishProcessRequest(int priority) {
+        Integer count = priorities.get(priority);
+        if (count != null && count > 1) {
+            priorities.put(priority, count - 1);
+        } else {
+            priorities.remove(priority);
+        }
+        if (clientsCount.decrementAndGet() <= 0 && proxyCache != null) {
             proxyCache.shutdown();
             proxyCache = null;
+        } else if (proxyCache != null && !priorities.isEmpty()) {
+            proxyCache.setPriority(priorities.lastKey());
         }
     }
 
+    /**
+     * Sets url to fetch data from, e.g. the same segment of HLS stream may be available by url with new access token.
+     * New url is used when data is fetched next time.
+     */
+    void setUrl(String url) {
+        this.url = checkNotNull(url);
+    }
+
     public void registerCacheListener(CacheListener cacheListener) {
         listeners.add(cacheListener);
     }
@@ -64,7 +110,7 @@ final class HttpProxyCacheServerClients {
         listeners.remove(cacheListener);
     }
 
-    public void shutdown() {
+    public synchronized void shutdown() {
         listeners.clear();
         if (proxyCache != null) {
             proxyCache.registerCacheListener(null);
@@ -72,6 +118,7 @@ final class HttpProxyCacheServerClients {
             proxyCache = null;
         }
         clientsCount.set(0);
+        priorities.clear();
     }
 
     public int getClientsCount() {
@@ -79,36 +126,29 @@ final class HttpProxyCacheServerClients {
     }
 
     private HttpProxyCache newHttpProxyCache() throws ProxyCacheException {
-        HttpUrlSource source = new HttpUrlSource(url, config.sourceInfoStorage, config.headerInjector);
-        FileCache cache = new FileCache(config.generateCacheFile(url), config.diskUsage);
-        HttpProxyCache httpProxyCache = new HttpProxyCache(source, cache);
+        Source source = config.sourceFactory.newSource(url, config.sourceInfoStorage, config.headerInjector);
+        FileCache cache = new FileCache(config.generateCacheFile(cacheKey), config.cacheIndex, config.memoryCache, config.mappedWindows);
+        boolean parallel = config.parallelConnectionsCount > 1 && source instanceof HttpUrlSource;
+        Source dataSource = parallel ? new ParallelHttpUrlSource((HttpUrlSource) source, config.parallelConnectionsCount, config.bufferPool, config.segmentPool) : source;
+        HttpProxyCache httpProxyCache = new HttpProxyCache(url, source, dataSource, cache, scheduler, metrics.forUrl(cacheKey), config.bufferPool);
         httpProxyCache.registerCacheListener(uiCacheListener);
         return httpProxyCache;
     }
 
-    private static final class UiListenerHandler extends Handler implements CacheListener {
+    private static final class DispatchingListener implements CacheListener {
 
-        private final String url;
         private final List<CacheListener> listeners;
+        private final CacheListenerDispatcher dispatcher;
 
-        public UiListenerHandler(String url, List<CacheListener> listeners) {
-            super(Looper.getMainLooper());
-            this.url = url;
+        public DispatchingListener(List<CacheListener> listeners, CacheListenerDispatcher dispatcher) {
             this.listeners = listeners;
+            this.dispatcher = dispatcher;
         }
 
         @Override
         public void onCacheAvailable(File file, String url, int percentsAvailable) {
-            Message message = obtainMessage();
-            message.arg1 = percentsAvailable;
-            message.obj = file;
-            sendMessage(message);
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            for (CacheListener cacheListener : listeners) {
-                cacheListener.onCacheAvailable((File) msg.obj, url, msg.arg1);
+            if (!listeners.isEmpty()) {
+                dispatcher.onCacheAvailable(file, url, percentsAvailable, listeners);
             }
         }
     }
@@ -13,6 +13,8 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 import static com.danikula.videocache.Preconditions.checkNotNull;
@@ -33,9 +35,15 @@ public class HttpUrlSource implements Source {
     private static final int MAX_REDIRECTS = 5;
     private final SourceInfoStorage sourceInfoStorage;
     private final HeaderInjector headerInjector;
-    private SourceInfo sourceInfo;
+    private final ConnectionReleaser connectionReleaser;
+    private final Object abortLock = new Object();
+    private volatile SourceInfo sourceInfo;
     private HttpURLConnection connection;
+    // data connection and connection probing source info, which may be opened by other thread while data is read
+    private final List<HttpURLConnection> activeConnections = new ArrayList<>(2); // guarded by abortLock
+    private boolean aborted;                    // guarded by abortLock
     private InputStream inputStream;
+    private long remaining;
 
     public HttpUrlSource(String url) {
         this(url, SourceInfoStorageFactory.newEmptySourceInfoStorage());
@@ -46,8 +54,13 @@ public class HttpUrlSource implements Source {
     }
 
     public HttpUrlSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
+        this(url, sourceInfoStorage, headerInjector, new ConnectionReleaser());
+    }
+
+    public HttpUrlSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector, ConnectionReleaser connectionReleaser) {
         this.sourceInfoStorage = checkNotNull(sourceInfoStorage);
         this.headerInjector = checkNotNull(headerInjector);
+        this.connectionReleaser = checkNotNull(connectionReleaser);
         SourceInfo sourceInfo = sourceInfoStorage.get(url);
         this.sourceInfo = sourceInfo != null ? sourceInfo :
                 new SourceInfo(url, Integer.MIN_VALUE, ProxyCacheUtils.getSupposablyMime(url));
@@ -57,6 +70,7 @@ public class HttpUrlSource implements Source {
         this.sourceInfo = source.sourceInfo;
         this.sourceInfoStorage = source.sourceInfoStorage;
         this.headerInjector = source.headerInjector;
+        this.connectionReleaser = source.connectionReleaser;
     }
 
     @Override
@@ -70,17 +84,64 @@ public class HttpUrlSource implements Source {
     @Override
     public void open(long offset) throws ProxyCacheException {
         try {
-            connection = openConnection(offset, -1);
+            connection = openConnection(offset, -1, -1);
             String mime = connection.getContentType();
+            int responseCode = connection.getResponseCode();
             inputStream = new BufferedInputStream(connection.getInputStream(), DEFAULT_BUFFER_SIZE);
-            long length = readSourceAvailableBytes(connection, offset, connection.getResponseCode());
+            remaining = getContentLength(connection);
+            long length = readSourceAvailableBytes(connection, offset, responseCode);
             this.sourceInfo = new SourceInfo(sourceInfo.url, length, mime);
             this.sourceInfoStorage.put(sourceInfo.url, sourceInfo);
+            if (offset > 0 && responseCode != HTTP_PARTIAL) {
+                // server ignored range and sends data from the beginning, it must not be taken as data with offset
+                Logger.warn("Server doesn't support range requests for " + sourceInfo.url + ", skip " + offset + " bytes");
+                skip(offset);
+            }
         } catch (IOException e) {
+            if (isAborted()) {
+                throw new InterruptedProxyCacheException("Opening source " + sourceInfo.url + " is aborted", e);
+            }
             throw new ProxyCacheException("Error opening connection for " + sourceInfo.url + " with offset " + offset, e);
         }
     }
 
+    /**
+     * Opens source for bounded range {@code [offset, end)}. Unlike {@link #open(long)} it doesn't update source info.
+     *
+     * @param offset offset in bytes for source.
+     * @param end    offset of the first byte after range.
+     * @throws ProxyCacheException if error occur while opening source or server doesn't support range requests.
+     */
+    public void open(long offset, long end) throws ProxyCacheException {
+        try {
+            connection = openConnection(offset, end, -1);
+            if (offset > 0 && connection.getResponseCode() != HTTP_PARTIAL) {
+                throw new ProxyCacheException("Server doesn't support range requests for " + sourceInfo.url);
+            }
+            inputStream = new BufferedInputStream(connection.getInputStream(), DEFAULT_BUFFER_SIZE);
+            remaining = getContentLength(connection);
+        } catch (IOException e) {
+            throw new ProxyCacheException("Error opening connection for " + sourceInfo.url + " with range " + offset + "-" + end, e);
+        }
+    }
+
+    private void skip(long count) throws IOException {
+        long skipped = 0;
+        while (skipped < count) {
+            long skippedNow = inputStream.skip(count - skipped);
+            if (skippedNow <= 0) {
+                if (inputStream.read() == -1) {
+                    throw new IOException("Source " + sourceInfo.url + " is shorter than offset " + count);
+                }
+                skippedNow = 1;
+            }
+            skipped += skippedNow;
+        }
+        if (remaining > 0) {
+            remaining = Math.max(0, remaining - count);
+        }
+    }
+
     private long readSourceAvailableBytes(HttpURLConnection connection, long offset, int responseCode) throws IOException {
         long contentLength = getContentLength(connection);
         return responseCode == HTTP_OK ? contentLength
@@ -92,11 +153,26 @@ public class HttpUrlSource implements Source {
         return contentLengthValue == null ? -1 : Long.parseLong(contentLengthValue);
     }
 
+    /**
+     * Aborts source from any thread: connection is closed at once, so blocked {@link #read(byte[])} fails
+     * with {@link InterruptedProxyCacheException} without waiting for the next chunk of data. Aborted source can't be reopened.
+     */
+    void abort() {
+        synchronized (abortLock) {
+            aborted = true;
+            for (HttpURLConnection activeConnection : activeConnections) {
+                activeConnection.disconnect();
+            }
+            activeConnections.clear();
+        }
+    }
+
     @Override
     public void close() throws ProxyCacheException {
         if (connection != null) {
             try {
-                connection.disconnect();
+                // response read to the end keeps connection alive for next requests to the same host
+                release(connection, isAborted() ? -1 : remaining);
             } catch (NullPointerException | IllegalArgumentException e) {
                 String message = "Wait... but why? WTF!? " +
                         "Really shouldn't happen any more after fixing https://github.com/danikula/AndroidVideoCache/issues/43. " +
@@ -107,6 +183,8 @@ public class HttpUrlSource implements Source {
                 Logger.error("Error closing connection correctly. Should happen only on Android L. " +
                         "If anybody know how to fix it, please visit https://github.com/danikula/AndroidVideoCache/issues/88. " +
                         "Until good solution is not know, just ignore this issue.");
+            } finally {
+                connection = null;
             }
         }
     }
@@ -117,20 +195,59 @@ public class HttpUrlSource implements Source {
             throw new ProxyCacheException("Error reading data from " + sourceInfo.url + ": connection is absent!");
         }
         try {
-            return inputStream.read(buffer, 0, buffer.length);
+            int readBytes = inputStream.read(buffer, 0, buffer.length);
+            if (readBytes == -1) {
+                remaining = 0;
+            } else if (remaining > 0) {
+                remaining -= readBytes;
+            }
+            return readBytes;
         } catch (InterruptedIOException e) {
             throw new InterruptedProxyCacheException("Reading source " + sourceInfo.url + " is interrupted", e);
         } catch (IOException e) {
+            if (isAborted()) {
+                throw new InterruptedProxyCacheException("Reading source " + sourceInfo.url + " is aborted", e);
+            }
             throw new ProxyCacheException("Error reading data from " + sourceInfo.url, e);
         }
     }
 
+    /**
+     * Remembers connection to be closed by {@link #abort()} until it is released by {@link #release(HttpURLConnection, long)}.
+     */
+    private void track(HttpURLConnection connection) throws InterruptedProxyCacheException {
+        synchronized (abortLock) {
+            if (!aborted) {
+                activeConnections.add(connection);
+                return;
+            }
+        }
+        connectionReleaser.release(connection, -1);
+        throw new InterruptedProxyCacheException("Source " + sourceInfo.url + " is aborted");
+    }
+
+    /**
+     * Releases connection, it is forgotten before release because http stack may give its socket to another request.
+     */
+    private void release(HttpURLConnection connection, long remaining) {
+        synchronized (abortLock) {
+            activeConnections.remove(connection);
+        }
+        connectionReleaser.release(connection, remaining);
+    }
+
+    private boolean isAborted() {
+        synchronized (abortLock) {
+            return aborted;
+        }
+    }
+
     private void fetchContentInfo() throws ProxyCacheException {
         Logger.debug("Read content info from " + sourceInfo.url);
         HttpURLConnection urlConnection = null;
         InputStream inputStream = null;
         try {
-            urlConnection = openConnection(0, 10000);
+            urlConnection = openConnection(0, -1, 10000);
             long length = getContentLength(urlConnection);
             String mime = urlConnection.getContentType();
             inputStream = urlConnection.getInputStream();
@@ -142,33 +259,42 @@ public class HttpUrlSource implements Source {
         } finally {
             ProxyCacheUtils.close(inputStream);
             if (urlConnection != null) {
-                urlConnection.disconnect();
+                release(urlConnection, -1);
             }
         }
     }
 
-    private HttpURLConnection openConnection(long offset, int timeout) throws IOException, ProxyCacheException {
+    private HttpURLConnection openConnection(long offset, long end, int timeout) throws IOException, ProxyCacheException {
         HttpURLConnection connection;
         boolean redirected;
         int redirectCount = 0;
         String url = this.sourceInfo.url;
         do {
             Logger.debug("Open connection " + (offset > 0 ? " with offset " + offset : "") + " to " + url);
-            connection = (HttpURLConnection) new URL(url).openConnection();
-            injectCustomHeaders(connection, url);
-            if (offset > 0) {
-                connection.setRequestProperty("Range", "bytes=" + offset + "-");
-            }
-            if (timeout > 0) {
-                connection.setConnectTimeout(timeout);
-                connection.setReadTimeout(timeout);
+            connection = connectionReleaser.open(new URL(url));
+            track(connection);
+            int code;
+            try {
+                injectCustomHeaders(connection, url);
+                if (end > 0) {
+                    connection.setRequestProperty("Range", "bytes=" + offset + "-" + (end - 1));
+                } else if (offset > 0) {
+                    connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                }
+                if (timeout > 0) {
+                    connection.setConnectTimeout(timeout);
+                    connection.setReadTimeout(timeout);
+                }
+                code = connection.getResponseCode();
+            } catch (IOException e) {
+                release(connection, -1);
+                throw e;
             }
-            int code = connection.getResponseCode();
             redirected = code == HTTP_MOVED_PERM || code == HTTP_MOVED_TEMP || code == HTTP_SEE_OTHER;
             if (redirected) {
                 url = connection.getHeaderField("Location");
                 redirectCount++;
-                connection.disconnect();
+                release(connection, -1);
             }
             if (redirectCount > MAX_REDIRECTS) {
                 throw new ProxyCacheException("Too many redirects: " + redirectCount);
@@ -184,6 +310,14 @@ public class HttpUrlSource implements Source {
         }
     }
 
+    /**
+     * Returns {@code true} if length and mime of source are known without requesting server.
+     */
+    public boolean isSourceInfoKnown() {
+        SourceInfo sourceInfo = this.sourceInfo;
+        return sourceInfo.length != Integer.MIN_VALUE && !TextUtils.isEmpty(sourceInfo.mime);
+    }
+
     public synchronized String getMime() throws ProxyCacheException {
         if (TextUtils.isEmpty(sourceInfo.mime)) {
             fetchContentInfo();
@@ -0,0 +1,32 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.headers.HeaderInjector;
+import com.danikula.videocache.sourcestorage.SourceInfoStorage;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+/**
+ * {@link SourceFactory} that creates {@link HttpUrlSource}s sharing single {@link ConnectionReleaser},
+ * so connections to origin servers are released in the same way (best effort, see {@link ConnectionReleaser}).
+ */
+public class HttpUrlSourceFactory implements SourceFactory {
+
+    private final ConnectionReleaser connectionReleaser;
+
+    public HttpUrlSourceFactory() {
+        this(new ConnectionReleaser());
+    }
+
+    public HttpUrlSourceFactory(ConnectionReleaser connectionReleaser) {
+        this.connectionReleaser = checkNotNull(connectionReleaser);
+    }
+
+    @Override
+    public HttpUrlSource newSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector) {
+        return new HttpUrlSource(url, sourceInfoStorage, headerInjector, connectionReleaser);
+    }
+
+    public ConnectionReleaser getConnectionReleaser() {
+        return connectionReleaser;
+    }
+}
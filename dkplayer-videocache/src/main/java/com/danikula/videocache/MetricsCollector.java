@@ -0,0 +1,140 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.file.DiskUsage;
+import com.danikula.videocache.file.EvictingDiskUsage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects metrics of all sources of {@link HttpProxyCacheServer} and delivers them to {@link MetricsListener}s.
+ * <p/>
+ * Metrics of limited count of recently used sources are kept, counters of all sources are kept forever.
+ * Changes are coalesced per source and delivered on background thread not often than once per interval.
+ */
+final class MetricsCollector {
+
+    private static final int MAX_SOURCES_COUNT = 128;
+
+    private final UrlMetrics total = new UrlMetrics(null, null, this);
+    private final Map<String, UrlMetrics> sources = new LinkedHashMap<String, UrlMetrics>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, UrlMetrics> eldest) {
+            return size() > MAX_SOURCES_COUNT;
+        }
+    };
+    private final List<MetricsListener> listeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor();
+    private final Runnable dispatchTask = new DispatchTask();
+    private final DiskUsage diskUsage;
+    private final long intervalMs;
+    private Map<String, UrlMetrics> pending = new LinkedHashMap<>(); // guarded by this
+    private boolean scheduled;                                        // guarded by this
+
+    /**
+     * @param diskUsage  disk usage of cache, evictions are counted only by {@link EvictingDiskUsage}.
+     * @param intervalMs min interval between notifications in milliseconds.
+     */
+    MetricsCollector(DiskUsage diskUsage, long intervalMs) {
+        this.diskUsage = diskUsage;
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Returns live counters of source, they are shared by all clients of source while it is recently used.
+     */
+    UrlMetrics forUrl(String url) {
+        synchronized (sources) {
+            UrlMetrics metrics = sources.get(url);
+            if (metrics == null) {
+                metrics = new UrlMetrics(url, total, this);
+                sources.put(url, metrics);
+            }
+            return metrics;
+        }
+    }
+
+    /**
+     * Counts error not related to particular source.
+     */
+    void onError(Throwable error) {
+        total.onError(error);
+    }
+
+    void registerListener(MetricsListener listener) {
+        listeners.add(listener);
+    }
+
+    void unregisterListener(MetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    ProxyMetrics snapshot() {
+        List<SourceMetrics> snapshots = new ArrayList<>();
+        synchronized (sources) {
+            for (UrlMetrics metrics : sources.values()) {
+                snapshots.add(metrics.snapshot());
+            }
+        }
+        long evictedFilesCount = -1;
+        long evictedBytes = -1;
+        if (diskUsage instanceof EvictingDiskUsage) {
+            evictedFilesCount = ((EvictingDiskUsage) diskUsage).getEvictedFilesCount();
+            evictedBytes = ((EvictingDiskUsage) diskUsage).getEvictedBytes();
+        }
+        return new ProxyMetrics(total.snapshot(), snapshots, evictedFilesCount, evictedBytes);
+    }
+
+    void onChanged(UrlMetrics metrics) {
+        if (listeners.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            pending.put(metrics.getUrl(), metrics);
+            if (!scheduled && !dispatcher.isShutdown()) {
+                scheduled = true;
+                dispatcher.schedule(dispatchTask, intervalMs, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    synchronized void shutdown() {
+        pending.clear();
+        listeners.clear();
+        dispatcher.shutdownNow();
+    }
+
+    private void dispatch() {
+        Map<String, UrlMetrics> changed;
+        synchronized (this) {
+            changed = pending;
+            pending = new LinkedHashMap<>();
+            scheduled = false;
+        }
+        SourceMetrics totalSnapshot = total.snapshot();
+        for (UrlMetrics metrics : changed.values()) {
+            SourceMetrics source = metrics == total ? null : metrics.snapshot();
+            for (MetricsListener listener : listeners) {
+                try {
+                    listener.onMetricsChanged(source, totalSnapshot);
+                } catch (RuntimeException e) {
+                    Logger.error("Error notifying metrics listener: " + e);
+                }
+            }
+        }
+    }
+
+    private final class DispatchTask implements Runnable {
+
+        @Override
+        public void run() {
+            dispatch();
+        }
+    }
+}
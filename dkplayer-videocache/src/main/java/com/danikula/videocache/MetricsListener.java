@@ -0,0 +1,17 @@
+package com.danikula.videocache;
+
+/**
+ * Listener of metrics of {@link HttpProxyCacheServer}.
+ * @see HttpProxyCacheServer#registerMetricsListener(MetricsListener)
+ */
+public interface MetricsListener {
+
+    /**
+     * Is called on background thread when local request is served, download from origin is finished or error occurs.
+     * Changes made in short time are coalesced, so only the latest metrics of source are delivered.
+     *
+     * @param source metrics of changed source or {@code null} if error isn't related to particular source.
+     * @param total  metrics of all sources together.
+     */
+    void onMetricsChanged(SourceMetrics source, SourceMetrics total);
+}
@@ -0,0 +1,599 @@
+package com.danikula.videocache;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+import static com.danikula.videocache.Preconditions.checkNotNull;
+import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
+
+/**
+ * Non-blocking engine for {@link HttpProxyCacheServer}.
+ * <p/>
+ * Local connections are multiplexed by few {@link Selector} loops instead of occupying a thread per connection.
+ * Streaming of cached data is done by selector loops, only short blocking steps (parsing request, writing response
+ * headers) are executed by bounded worker executor. Waiting for source info doesn't occupy worker: headers are written
+ * when the first data of source is available. Direct responses fetched from origin (e.g. HLS playlists) are created
+ * by separate small fixed executor, so slow origin of playlists doesn't delay other requests. Connections are
+ * persistent: next request sent by the same connection is served after current response without reconnecting.
+ */
+final class NioProxyEngine {
+
+    private static final int ACCEPT_BACKLOG = 256;
+    private static final int MAX_WRITES_PER_TURN = 8;
+    private static final long MAX_TRANSFER_PER_TURN = MAX_WRITES_PER_TURN * DEFAULT_BUFFER_SIZE;
+    private static final int DIRECT_WORKERS_COUNT = 4;
+
+    private final ServerSocketChannel serverChannel;
+    private final SelectorLoop[] loops;
+    private final ExecutorService workers;
+    private final ExecutorService directWorkers = Executors.newFixedThreadPool(DIRECT_WORKERS_COUNT);
+    private final ClientsProvider clientsProvider;
+    private final ProxyStats stats;
+    private final MetricsCollector metrics;
+    private final BufferPool bufferPool;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+
+    NioProxyEngine(InetAddress address, int selectorsCount, ExecutorService workers, ClientsProvider clientsProvider,
+                   ProxyStats stats, MetricsCollector metrics, BufferPool bufferPool) throws IOException {
+        checkArgument(selectorsCount > 0, "Selectors count must be positive!");
+        this.workers = checkNotNull(workers);
+        this.clientsProvider = checkNotNull(clientsProvider);
+        this.stats = checkNotNull(stats);
+        this.metrics = checkNotNull(metrics);
+        this.bufferPool = checkNotNull(bufferPool);
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.socket().bind(new InetSocketAddress(address, 0), ACCEPT_BACKLOG);
+        this.serverChannel.configureBlocking(false);
+        this.loops = new SelectorLoop[selectorsCount];
+        for (int i = 0; i < selectorsCount; i++) {
+            loops[i] = new SelectorLoop(i);
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    void start() {
+        for (SelectorLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    void shutdown() {
+        ProxyCacheUtils.close(serverChannel);
+        directWorkers.shutdownNow();
+        for (SelectorLoop loop : loops) {
+            loop.close();
+        }
+        for (Connection connection : connections) {
+            // connection may be still handled by worker, so its buffers are left to garbage collector
+            connection.close(false);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            Logger.debug("Accept new channel " + channel);
+            stats.onConnectionAccepted();
+            channel.configureBlocking(false);
+            SelectorLoop loop = loops[(nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+            Connection connection = new Connection(channel, loop);
+            connections.add(connection);
+            loop.schedule(connection);
+        }
+    }
+
+    private void onError(Throwable e) {
+        Logger.error("NioProxyEngine error: " + e);
+        metrics.onError(e);
+    }
+
+    /**
+     * Provides clients for requested url.
+     */
+    interface ClientsProvider {
+
+        HttpProxyCacheServerClients getClients(String url) throws ProxyCacheException;
+
+        /**
+         * Returns {@code true} if request should be served by {@link #newDirectResponse(GetRequest)}, which may block
+         * while data is fetched from origin.
+         */
+        boolean isDirectRequest(GetRequest request);
+
+        /**
+         * Returns response that is served without cache (e.g. rewritten HLS playlist) or {@code null}
+         * if request should be served by clients.
+         */
+        ProxyResponse newDirectResponse(GetRequest request) throws ProxyCacheException;
+    }
+
+    private final class SelectorLoop implements Runnable {
+
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Connection> scheduled = new ConcurrentLinkedQueue<>();
+        private final List<Connection> handOffs = new ArrayList<>();
+
+        SelectorLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "Proxy selector #" + index);
+        }
+
+        /**
+         * Stops loop, selector is closed by loop's thread, so selected keys are never cleared while they are processed.
+         */
+        void close() {
+            thread.interrupt();
+            selector.wakeup();
+        }
+
+        void schedule(Connection connection) {
+            scheduled.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    selector.select();
+                    processScheduled();
+                    processSelectedKeys();
+                    // processing keys can hand off more connections, nothing wakes selector for them
+                    while (!handOffs.isEmpty()) {
+                        selector.selectNow(); // flush cancelled keys, so channels can be switched to blocking mode
+                        processHandOffs();
+                        processSelectedKeys();
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                Logger.debug("Selector is closed, stop loop");
+            } catch (IOException e) {
+                onError(new ProxyCacheException("Error in selector loop", e));
+            } finally {
+                closeSelector();
+            }
+        }
+
+        private void closeSelector() {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                onError(new ProxyCacheException("Error closing selector", e));
+            }
+        }
+
+        private void processScheduled() {
+            Connection connection;
+            while ((connection = scheduled.poll()) != null) {
+                connection.onScheduled(selector);
+            }
+        }
+
+        private void processSelectedKeys() throws IOException {
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                } else {
+                    ((Connection) key.attachment()).onReady(key);
+                }
+            }
+        }
+
+        private void processHandOffs() {
+            for (Connection connection : handOffs) {
+                connection.handOff();
+            }
+            handOffs.clear();
+        }
+    }
+
+    private final class Connection implements Runnable, ProxyCache.DataCallback {
+
+        private final SocketChannel channel;
+        private final SelectorLoop loop;
+        // direct buffer is read by channel without intermediate copying, it is reused for all requests of connection
+        private ByteBuffer requestBuffer = bufferPool.acquireDirect();
+        private final byte[] buffer = bufferPool.acquire();
+        private final ByteBuffer data = ByteBuffer.wrap(buffer);
+        private ByteBuffer out = data;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicBoolean awaitingHeaders = new AtomicBoolean();
+        private SelectionKey key;
+        private HttpProxyCacheServerClients clients;
+        private HttpProxyCache proxyCache;
+        private volatile boolean streaming;
+        private GetRequest request;
+        private ProxyResponse response;
+        private boolean bodyStarted;
+        private long cachedEnd;
+        private int partIndex;
+        private int requestEnd;
+        private int requestsCount;
+        private long offset;
+
+        Connection(SocketChannel channel, SelectorLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        void onScheduled(Selector selector) {
+            if (closed.get()) {
+                return;
+            }
+            int ops = streaming ? SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+            try {
+                if (key == null) {
+                    key = channel.register(selector, ops, this);
+                } else if (key.isValid()) {
+                    key.interestOps(ops);
+                }
+            } catch (ClosedChannelException e) {
+                close();
+            }
+        }
+
+        void onReady(SelectionKey key) {
+            try {
+                if (key.isReadable()) {
+                    if (streaming) {
+                        readPipelinedRequest();
+                    } else {
+                        readRequest();
+                    }
+                }
+                if (key.isValid() && key.isWritable()) {
+                    stream();
+                }
+            } catch (SocketException e) {
+                Logger.debug("Closing channel… Channel is closed by client.");
+                close();
+            } catch (CancelledKeyException e) {
+                Logger.debug("Connection is closed while it is served by selector");
+                close();
+            } catch (ProxyCacheException | IOException e) {
+                onError(new ProxyCacheException("Error processing request", e));
+                close();
+            }
+        }
+
+        private void readRequest() throws IOException {
+            if (channel.read(requestBuffer) < 0) {
+                close();
+            } else if ((requestEnd = RequestParser.findRequestEnd(requestBuffer)) > 0) {
+                scheduleHandOff();
+            } else if (!requestBuffer.hasRemaining()) {
+                growRequestBuffer();
+            }
+        }
+
+        private void growRequestBuffer() throws IOException {
+            ByteBuffer pooled = requestBuffer;
+            requestBuffer = RequestParser.grow(requestBuffer);
+            bufferPool.release(pooled); // grown buffer is not accepted by pool, so connection keeps it until closing
+        }
+
+        private void scheduleHandOff() {
+            key.cancel();
+            key = null;
+            loop.handOffs.add(this);
+        }
+
+        void handOff() {
+            try {
+                channel.configureBlocking(true);
+                submit(workers, this);
+            } catch (IOException e) {
+                onError(new ProxyCacheException("Error switching channel to blocking mode", e));
+                close();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                GetRequest getRequest = RequestParser.parse(requestBuffer, requestEnd);
+                Logger.debug("Request to cache proxy:" + getRequest);
+                request = getRequest;
+                bodyStarted = false;
+                stats.onRequest(requestsCount++ > 0);
+                if (clientsProvider.isDirectRequest(getRequest)) {
+                    submit(directWorkers, new DirectResponseRunnable());
+                } else {
+                    clients = clientsProvider.getClients(getRequest.url());
+                    proxyCache = clients.startProcessRequest();
+                    respondWhenPrepared();
+                }
+            } catch (ProxyCacheException | IOException | IllegalArgumentException e) {
+                onRequestError(e);
+            }
+        }
+
+        /**
+         * Writes response headers if they don't need source data, otherwise headers are written by worker
+         * when source data is available, see {@link #onDataAvailable()}.
+         */
+        private void respondWhenPrepared() throws ProxyCacheException, IOException {
+            awaitingHeaders.set(true);
+            if (proxyCache.prepareResponse(request, this) && awaitingHeaders.compareAndSet(true, false)) {
+                startResponse(proxyCache.newPreparedResponse(request));
+            }
+        }
+
+        private void startResponse(ProxyResponse proxyResponse) throws ProxyCacheException, IOException {
+            response = proxyResponse;
+            writeFully(response.headers.getBytes("UTF-8"));
+            data.limit(0);
+            out = data;
+            partIndex = -1;
+            nextPart();
+            channel.configureBlocking(false);
+            streaming = true;
+            loop.schedule(this);
+        }
+
+        private void submit(ExecutorService executor, Runnable task) {
+            try {
+                executor.submit(task);
+            } catch (RejectedExecutionException e) {
+                Logger.debug("Proxy is stopped, close connection " + channel);
+                close();
+            }
+        }
+
+        private void onRequestError(Exception e) {
+            if (e instanceof SocketException) {
+                Logger.debug("Closing channel… Channel is closed by client.");
+            } else {
+                onError(new ProxyCacheException("Error processing request", e));
+            }
+            close();
+        }
+
+        private void writeFully(byte[] data) throws IOException {
+            ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+            while (dataBuffer.hasRemaining()) {
+                channel.write(dataBuffer);
+            }
+        }
+
+        /**
+         * Starts sending next part of response body: its prefix is sent first, then its data.
+         *
+         * @return {@code false} if there are no more parts.
+         */
+        private boolean nextPart() throws ProxyCacheException {
+            partIndex++;
+            if (partIndex >= response.parts.size()) {
+                return false;
+            }
+            ProxyResponse.Part part = response.parts.get(partIndex);
+            offset = part.start;
+            out = ByteBuffer.wrap(part.prefix);
+            if (proxyCache != null) {
+                cachedEnd = proxyCache.cachedEnd(offset);
+            }
+            return true;
+        }
+
+        private boolean isPartDataSent() {
+            ProxyResponse.Part part = response.parts.get(partIndex);
+            return part.isBounded() && offset >= part.end;
+        }
+
+        private long partDataRemaining() {
+            ProxyResponse.Part part = response.parts.get(partIndex);
+            return part.isBounded() ? part.end - offset : Long.MAX_VALUE;
+        }
+
+        private void stream() throws IOException, ProxyCacheException {
+            for (int i = 0; i < MAX_WRITES_PER_TURN; i++) {
+                if (!out.hasRemaining()) {
+                    if (partIndex >= response.parts.size() || isPartDataSent() && !nextPart()) {
+                        finishResponse(true);
+                        return;
+                    }
+                    if (out.hasRemaining()) {
+                        continue; // prefix of next part
+                    }
+                    if (isPartDataSent()) {
+                        continue;
+                    }
+                    if (proxyCache.isCacheCompleted()) {
+                        transfer();
+                        return;
+                    }
+                    int length = (int) Math.min(buffer.length, partDataRemaining());
+                    int readBytes = proxyCache.readNow(buffer, offset, length, this);
+                    if (readBytes < 0) {
+                        finishResponse(!response.parts.get(partIndex).isBounded());
+                        return;
+                    }
+                    if (readBytes == 0) {
+                        // wait for source data, but keep watching for closing connection by client
+                        key.interestOps(SelectionKey.OP_READ);
+                        return;
+                    }
+                    proxyCache.onServed(request, !bodyStarted, offset, readBytes, cachedEnd);
+                    bodyStarted = true;
+                    offset += readBytes;
+                    out = data;
+                    out.clear();
+                    out.limit(readBytes);
+                }
+                channel.write(out);
+                if (out.hasRemaining()) {
+                    return; // socket buffer is full, wait for next OP_WRITE
+                }
+            }
+        }
+
+        private void transfer() throws ProxyCacheException {
+            long transferred = proxyCache.transfer(offset, Math.min(MAX_TRANSFER_PER_TURN, partDataRemaining()), channel);
+            if (transferred < 0) {
+                finishResponse(!response.parts.get(partIndex).isBounded());
+            } else {
+                proxyCache.onServed(request, !bodyStarted, offset, transferred, Long.MAX_VALUE);
+                bodyStarted = true;
+                offset += transferred;
+            }
+        }
+
+        /**
+         * Keeps next request sent by client while current response is streamed.
+         */
+        private void readPipelinedRequest() throws IOException {
+            if (!requestBuffer.hasRemaining()) {
+                growRequestBuffer();
+            }
+            if (channel.read(requestBuffer) < 0) {
+                close();
+            }
+        }
+
+        /**
+         * Closes connection or prepares it for next request if response is complete and client allows to reuse connection.
+         *
+         * @param complete {@code false} if response is interrupted (e.g. by stopping proxy) and is shorter than declared.
+         */
+        private void finishResponse(boolean complete) {
+            if (!response.keepAlive || !complete) {
+                close();
+                return;
+            }
+            response = null;
+            request = null;
+            if (proxyCache != null) {
+                proxyCache.onRequestFinished();
+            }
+            HttpProxyCacheServerClients finishedClients = clients;
+            proxyCache = null;
+            clients = null;
+            streaming = false;
+            if (finishedClients != null) {
+                finishedClients.finishProcessRequest();
+            }
+            requestBuffer.limit(requestBuffer.position());
+            requestBuffer.position(requestEnd);
+            requestBuffer.compact(); // keep pipelined requests
+            requestEnd = RequestParser.findRequestEnd(requestBuffer);
+            if (requestEnd > 0) {
+                scheduleHandOff();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        @Override
+        public void onDataAvailable() {
+            if (awaitingHeaders.compareAndSet(true, false)) {
+                submit(workers, new PreparedResponseRunnable());
+            } else {
+                loop.schedule(this);
+            }
+        }
+
+        void close() {
+            close(true);
+        }
+
+        /**
+         * @param releaseBuffers {@code true} if connection is closed by thread handling it, so its buffers
+         *                       can be returned to pool.
+         */
+        void close(boolean releaseBuffers) {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            connections.remove(this);
+            if (key != null) {
+                key.cancel();
+            }
+            ProxyCacheUtils.close(channel);
+            if (proxyCache != null) {
+                proxyCache.onRequestFinished();
+                clients.finishProcessRequest();
+            }
+            if (releaseBuffers) {
+                bufferPool.release(requestBuffer);
+                bufferPool.release(buffer);
+            }
+            Logger.debug("Opened connections: " + connections.size());
+        }
+
+        /**
+         * Writes response headers when source data needed for them is available.
+         */
+        private final class PreparedResponseRunnable implements Runnable {
+
+            @Override
+            public void run() {
+                if (closed.get()) {
+                    return;
+                }
+                try {
+                    respondWhenPrepared();
+                } catch (ProxyCacheException | IOException | IllegalArgumentException e) {
+                    onRequestError(e);
+                }
+            }
+        }
+
+        /**
+         * Creates direct response, it may wait for origin, so it is executed outside of workers.
+         */
+        private final class DirectResponseRunnable implements Runnable {
+
+            @Override
+            public void run() {
+                try {
+                    ProxyResponse directResponse = clientsProvider.newDirectResponse(request);
+                    if (directResponse != null) {
+                        startResponse(directResponse);
+                    } else {
+                        clients = clientsProvider.getClients(request.url());
+                        proxyCache = clients.startProcessRequest();
+                        respondWhenPrepared();
+                    }
+                } catch (ProxyCacheException | IOException | IllegalArgumentException e) {
+                    onRequestError(e);
+                }
+            }
+        }
+    }
+}
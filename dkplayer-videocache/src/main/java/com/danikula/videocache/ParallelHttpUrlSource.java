@@ -0,0 +1,253 @@
+package com.danikula.videocache;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+import static com.danikula.videocache.Preconditions.checkNotNull;
+import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
+
+/**
+ * {@link Source} that fetches http resource by several connections at once.
+ * <p/>
+ * Remaining data is split to segments downloaded in parallel with bounded range requests. Segments are read strictly
+ * in order, and only segments closest to read position are in flight, so data nearest to play position is always
+ * fetched first and is returned as soon as it arrives. If source length is unknown, data is fetched by single connection
+ * of original source.
+ * <p/>
+ * Segments are fetched by fixed pool of {@code connectionsCount} threads living while source is open, segment buffers
+ * are taken from pool and returned to it as soon as segment is read or source is closed.
+ */
+public class ParallelHttpUrlSource implements Source {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 512 * 1024;
+
+    private final HttpUrlSource source;
+    private final int connectionsCount;
+    private final int segmentSize;
+    private final BufferPool bufferPool;
+    private final BufferPool segmentPool;
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private ExecutorService fetchers;
+    private HttpUrlSource sequentialSource;
+    private long nextSegmentOffset;
+    private long length;
+
+    public ParallelHttpUrlSource(HttpUrlSource source, int connectionsCount) {
+        this(source, connectionsCount, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public ParallelHttpUrlSource(HttpUrlSource source, int connectionsCount, int segmentSize) {
+        this(source, connectionsCount, new BufferPool(DEFAULT_BUFFER_SIZE, 0), newSegmentPool(segmentSize, connectionsCount, 1));
+    }
+
+    /**
+     * @param bufferPool  pool of buffers for reading segment responses.
+     * @param segmentPool pool of buffers for segment data, its buffer size is used as segment size.
+     */
+    ParallelHttpUrlSource(HttpUrlSource source, int connectionsCount, BufferPool bufferPool, BufferPool segmentPool) {
+        checkArgument(connectionsCount > 0, "Connections count must be positive!");
+        this.source = checkNotNull(source);
+        this.connectionsCount = connectionsCount;
+        this.bufferPool = checkNotNull(bufferPool);
+        this.segmentPool = checkNotNull(segmentPool);
+        this.segmentSize = segmentPool.getBufferSize();
+    }
+
+    /**
+     * Creates pool keeping buffers for segments of {@code sourcesCount} sources fetched at once.
+     */
+    static BufferPool newSegmentPool(int segmentSize, int connectionsCount, int sourcesCount) {
+        checkArgument(segmentSize > 0, "Segment size must be positive!");
+        return new BufferPool(segmentSize, connectionsCount * sourcesCount);
+    }
+
+    @Override
+    public void open(long offset) throws ProxyCacheException {
+        length = source.isSourceInfoKnown() ? source.length() : -1;
+        if (length <= 0 || connectionsCount == 1) {
+            // source info is unknown yet, it will be read from headers of this response
+            sequentialSource = source;
+            sequentialSource.open(offset);
+            return;
+        }
+        synchronized (this) {
+            if (fetchers == null) {
+                fetchers = Executors.newFixedThreadPool(connectionsCount);
+            }
+            nextSegmentOffset = offset;
+            startSegments();
+        }
+    }
+
+    @Override
+    public long length() throws ProxyCacheException {
+        return source.length();
+    }
+
+    @Override
+    public int read(byte[] buffer) throws ProxyCacheException {
+        if (sequentialSource != null) {
+            return sequentialSource.read(buffer);
+        }
+        synchronized (this) {
+            try {
+                while (true) {
+                    Segment segment = segments.peek();
+                    if (segment == null) {
+                        return -1;
+                    }
+                    if (segment.error != null) {
+                        if (segment.cancelled) {
+                            throw new InterruptedProxyCacheException("Fetching segment " + segment + " is aborted", segment.error);
+                        }
+                        throw new ProxyCacheException("Error fetching segment " + segment, segment.error);
+                    }
+                    if (segment.readPosition < segment.filled) {
+                        int count = Math.min(buffer.length, segment.filled - segment.readPosition);
+                        System.arraycopy(segment.data, segment.readPosition, buffer, 0, count);
+                        segment.readPosition += count;
+                        if (segment.readPosition == segment.length) {
+                            segments.poll();
+                            segmentPool.release(segment.data);
+                            startSegments();
+                        }
+                        return count;
+                    }
+                    if (segment.finished) {
+                        if (segment.cancelled) {
+                            throw new InterruptedProxyCacheException("Fetching segment " + segment + " is aborted");
+                        }
+                        throw new ProxyCacheException("Segment " + segment + " is finished unexpectedly");
+                    }
+                    wait();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedProxyCacheException("Reading source " + source.getUrl() + " is interrupted", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws ProxyCacheException {
+        if (sequentialSource != null) {
+            sequentialSource.close();
+            sequentialSource = null;
+        }
+        synchronized (this) {
+            for (Segment segment : segments) {
+                // segment source is closed by fetcher, aborted segment doesn't touch data any more
+                segment.abort();
+                segmentPool.release(segment.data);
+            }
+            segments.clear();
+            if (fetchers != null) {
+                fetchers.shutdownNow();
+                fetchers = null;
+            }
+        }
+    }
+
+    /**
+     * Aborts source from any thread, connections of original source and all segments are closed at once.
+     */
+    void abort() {
+        source.abort();
+        synchronized (this) {
+            for (Segment segment : segments) {
+                segment.abort();
+            }
+            notifyAll();
+        }
+    }
+
+    private void startSegments() {
+        while (segments.size() < connectionsCount && nextSegmentOffset < length) {
+            int segmentLength = (int) Math.min(segmentSize, length - nextSegmentOffset);
+            Segment segment = new Segment(nextSegmentOffset, segmentLength, segmentPool.acquire());
+            segments.add(segment);
+            nextSegmentOffset += segmentLength;
+            fetchers.execute(segment);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ParallelHttpUrlSource{source=" + source + ", connections=" + connectionsCount + "}";
+    }
+
+    private final class Segment implements Runnable {
+
+        private final long offset;
+        private final int length;
+        private final byte[] data;
+        private final HttpUrlSource segmentSource;
+        private int filled;             // guarded by ParallelHttpUrlSource.this
+        private int readPosition;       // guarded by ParallelHttpUrlSource.this
+        private boolean finished;       // guarded by ParallelHttpUrlSource.this
+        private Throwable error;        // guarded by ParallelHttpUrlSource.this
+        private volatile boolean cancelled;
+
+        Segment(long offset, int length, byte[] data) {
+            this.offset = offset;
+            this.length = length;
+            this.data = data;
+            this.segmentSource = new HttpUrlSource(source);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            byte[] buffer = bufferPool.acquire();
+            try {
+                segmentSource.open(offset, offset + length);
+                int position = 0;
+                int readBytes;
+                while (position < length && !cancelled && (readBytes = segmentSource.read(buffer)) != -1) {
+                    int count = Math.min(readBytes, length - position);
+                    synchronized (ParallelHttpUrlSource.this) {
+                        if (cancelled) {
+                            return;
+                        }
+                        System.arraycopy(buffer, 0, data, position, count);
+                        position += count;
+                        filled = position;
+                        ParallelHttpUrlSource.this.notifyAll();
+                    }
+                }
+            } catch (Throwable e) {
+                synchronized (ParallelHttpUrlSource.this) {
+                    error = e;
+                }
+            } finally {
+                bufferPool.release(buffer);
+                close();
+                synchronized (ParallelHttpUrlSource.this) {
+                    finished = true;
+                    ParallelHttpUrlSource.this.notifyAll();
+                }
+            }
+        }
+
+        void abort() {
+            cancelled = true;
+            segmentSource.abort();
+        }
+
+        private void close() {
+            try {
+                segmentSource.close();
+            } catch (ProxyCacheException e) {
+                Logger.warn("Error closing segment source " + segmentSource);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "[" + offset + ", " + (offset + length) + ")";
+        }
+    }
+}
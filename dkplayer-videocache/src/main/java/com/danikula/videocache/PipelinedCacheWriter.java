@@ -0,0 +1,237 @@
+package com.danikula.videocache;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import static com.danikula.videocache.Preconditions.checkArgument;
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+/**
+ * Writes source data to cache in separate thread, so reading source and writing cache overlap.
+ * <p/>
+ * Source reader takes free chunk from bounded ring of pooled chunks ({@link #obtain()} blocks while all chunks are
+ * in flight), fills it and {@link #publish(Chunk, long, int) publishes} it. Writer thread writes published chunks to
+ * {@link Sink} in order and returns them to pool. Data of published but not written chunks is available for readers
+ * via {@link #available(long)} and {@link #read(byte[], long, int)}. Chunks are taken from {@link BufferPool} and
+ * returned to it when writer thread is finished.
+ */
+final class PipelinedCacheWriter implements Runnable {
+
+    private final Sink sink;
+    private final BufferPool bufferPool;
+    private final ArrayDeque<Chunk> freeChunks;
+    private final ArrayDeque<Chunk> publishedChunks;
+    private final Thread thread;
+    // published chunks following each other since the last seek are [runStart, runEnd), it shrinks as they are written
+    private long runStart;
+    private long runEnd;
+    private int staleChunksCount; // count of the first published chunks published before the last seek
+    private ProxyCacheException error;
+    private boolean stopped;
+
+    PipelinedCacheWriter(Sink sink, int chunksCount, BufferPool bufferPool, String name) {
+        checkArgument(chunksCount > 0);
+        this.sink = checkNotNull(sink);
+        this.bufferPool = checkNotNull(bufferPool);
+        this.freeChunks = new ArrayDeque<>(chunksCount);
+        this.publishedChunks = new ArrayDeque<>(chunksCount);
+        for (int i = 0; i < chunksCount; i++) {
+            freeChunks.add(new Chunk(bufferPool.acquire()));
+        }
+        this.thread = new Thread(this, name);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Returns free chunk to be filled by source data, waits while all chunks are in flight.
+     */
+    synchronized Chunk obtain() throws ProxyCacheException {
+        try {
+            while (freeChunks.isEmpty() && error == null && !stopped) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedProxyCacheException("Waiting for free chunk is interrupted", e);
+        }
+        checkState();
+        return freeChunks.poll();
+    }
+
+    synchronized void publish(Chunk chunk, long offset, int length) throws ProxyCacheException {
+        checkState();
+        chunk.offset = offset;
+        chunk.length = length;
+        if (offset != runEnd) {
+            // source reader seeks, chunks published before are checked one by one until they are written
+            staleChunksCount = publishedChunks.size();
+            runStart = offset;
+        }
+        runEnd = offset + length;
+        publishedChunks.add(chunk);
+        notifyAll();
+    }
+
+    /**
+     * Returns chunk that is obtained but not published back to pool.
+     */
+    synchronized void recycle(Chunk chunk) {
+        freeChunks.add(chunk);
+        notifyAll();
+    }
+
+    /**
+     * Waits while all published chunks are written.
+     */
+    synchronized void drain() throws ProxyCacheException {
+        try {
+            while (!publishedChunks.isEmpty() && error == null && !stopped) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedProxyCacheException("Waiting for writing cache is interrupted", e);
+        }
+        checkState();
+    }
+
+    /**
+     * Stops writer. Not written chunks are dropped.
+     */
+    synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Returns count of bytes available in published chunks contiguously starting from {@code offset}. Data after
+     * chunk published before seek may be in cache, so caller should check cache and these chunks again for the end.
+     */
+    synchronized long available(long offset) {
+        if (runStart <= offset && offset < runEnd) {
+            return runEnd - offset;
+        }
+        long position = offset;
+        Iterator<Chunk> chunks = publishedChunks.iterator();
+        for (int i = 0; i < staleChunksCount; i++) {
+            Chunk chunk = chunks.next();
+            if (chunk.offset <= position && position < chunk.offset + chunk.length) {
+                position = chunk.offset + chunk.length;
+            }
+        }
+        return position - offset;
+    }
+
+    /**
+     * Copies data from published chunk containing {@code offset}.
+     *
+     * @return count of copied bytes or {@code 0} if there is no published chunk with such data.
+     */
+    synchronized int read(byte[] buffer, long offset, int length) {
+        for (Chunk chunk : publishedChunks) {
+            if (chunk.offset <= offset && offset < chunk.offset + chunk.length) {
+                int count = (int) Math.min(length, chunk.offset + chunk.length - offset);
+                System.arraycopy(chunk.data, (int) (offset - chunk.offset), buffer, 0, count);
+                return count;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void run() {
+        try {
+            writeChunks();
+        } finally {
+            releaseChunks();
+        }
+    }
+
+    private void writeChunks() {
+        while (true) {
+            Chunk chunk;
+            synchronized (this) {
+                try {
+                    while (publishedChunks.isEmpty() && !stopped) {
+                        wait();
+                    }
+                } catch (InterruptedException e) {
+                    stopped = true;
+                }
+                if (stopped) {
+                    return;
+                }
+                chunk = publishedChunks.peek(); // keep chunk published while writing, so readers can use it
+            }
+            try {
+                sink.write(chunk.data, chunk.offset, chunk.length);
+            } catch (ProxyCacheException e) {
+                synchronized (this) {
+                    error = e;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized (this) {
+                publishedChunks.poll();
+                if (staleChunksCount > 0) {
+                    staleChunksCount--;
+                } else {
+                    runStart = chunk.offset + chunk.length; // data is in cache now
+                }
+                freeChunks.add(chunk);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns chunks to pool. Chunk obtained by source reader and not returned is left for garbage collector.
+     */
+    private synchronized void releaseChunks() {
+        stopped = true;
+        for (Chunk chunk : freeChunks) {
+            bufferPool.release(chunk.data);
+        }
+        for (Chunk chunk : publishedChunks) {
+            bufferPool.release(chunk.data);
+        }
+        freeChunks.clear();
+        publishedChunks.clear(); // readers can't read data of released chunks anymore
+        runStart = runEnd;
+        staleChunksCount = 0;
+        notifyAll();
+    }
+
+    private void checkState() throws ProxyCacheException {
+        if (error != null) {
+            throw new ProxyCacheException("Error writing cache", error);
+        }
+        if (stopped) {
+            throw new InterruptedProxyCacheException("Cache writer is stopped");
+        }
+    }
+
+    /**
+     * Destination of data written by {@link PipelinedCacheWriter}.
+     */
+    interface Sink {
+
+        void write(byte[] data, long offset, int length) throws ProxyCacheException;
+    }
+
+    /**
+     * Pooled buffer for source data.
+     */
+    static final class Chunk {
+
+        final byte[] data;
+        private long offset;
+        private int length;
+
+        private Chunk(byte[] data) {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.danikula.videocache;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handle of preloading started by {@link HttpProxyCacheServer#preload(String, long, int)}.
+ */
+public final class PreloadHandle {
+
+    private final String url;
+    private final long length;
+    private final int priority;
+    private Thread runner;
+    private boolean started;
+    private boolean done;
+    private boolean cancelled;
+    private boolean failed;
+    private long preloadedBytes;
+
+    PreloadHandle(String url, long length, int priority) {
+        this.url = url;
+        this.length = length;
+        this.priority = priority;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Returns count of bytes to preload.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Cancels preloading. If nobody else reads the same url, fetching data from origin is aborted immediately.
+     */
+    public synchronized void cancel() {
+        if (done || cancelled) {
+            return;
+        }
+        cancelled = true;
+        if (runner != null) {
+            runner.interrupt();
+        } else if (!started) {
+            finish(0, false);
+        }
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Returns {@code true} if preloading is finished, cancelled or failed.
+     */
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    /**
+     * Returns {@code true} if preloading is finished by error.
+     */
+    public synchronized boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Returns count of bytes available in cache from the beginning of source when preloading is done.
+     */
+    public synchronized long getPreloadedBytes() {
+        return preloadedBytes;
+    }
+
+    /**
+     * Waits while preloading is not done.
+     *
+     * @return {@code true} if preloading is done and {@code false} if timeout is elapsed.
+     */
+    public synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long leftMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (leftMs <= 0) {
+                return false;
+            }
+            wait(leftMs);
+        }
+        return true;
+    }
+
+    /**
+     * Binds handle to thread that preloads data.
+     *
+     * @return {@code false} if preloading is cancelled and shouldn't be started.
+     */
+    synchronized boolean start(Thread thread) {
+        if (cancelled) {
+            return false;
+        }
+        started = true;
+        runner = thread;
+        return true;
+    }
+
+    /**
+     * Unbinds handle from thread, so cancelling doesn't interrupt thread anymore.
+     */
+    synchronized void detach() {
+        runner = null;
+    }
+
+    synchronized void finish(long preloadedBytes, boolean failed) {
+        this.runner = null;
+        this.preloadedBytes = preloadedBytes;
+        this.failed = failed && !cancelled;
+        this.done = true;
+        notifyAll();
+    }
+
+    @Override
+    public String toString() {
+        return "PreloadHandle{url='" + url + "', length=" + length + "}";
+    }
+}
@@ -0,0 +1,95 @@
+package com.danikula.videocache;
+
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preloads the beginning of sources into cache without local connections: preloading drives source reader of
+ * {@link ProxyCache} shared with players directly and doesn't copy fetched data anywhere.
+ * <p/>
+ * Preloads are started by priority (then in order of requests) by small pool of threads, fetching their data
+ * is scheduled by {@link DownloadScheduler} with the same priority.
+ */
+final class Preloader {
+
+    private static final int THREADS_COUNT = 2;
+
+    private final HttpProxyCacheServer proxy;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong sequence = new AtomicLong();
+
+    Preloader(HttpProxyCacheServer proxy) {
+        this.proxy = proxy;
+        this.executor = new ThreadPoolExecutor(THREADS_COUNT, THREADS_COUNT, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    PreloadHandle preload(String url, long length, int priority) {
+        PreloadHandle handle = new PreloadHandle(url, length, priority);
+        // tasks are executed (not submitted) to stay comparable in priority queue
+        executor.execute(new PreloadTask(handle, sequence.getAndIncrement()));
+        return handle;
+    }
+
+    void shutdown() {
+        List<Runnable> notStarted = executor.shutdownNow();
+        for (Runnable task : notStarted) {
+            ((PreloadTask) task).handle.cancel();
+        }
+    }
+
+    private void preload(PreloadHandle handle) {
+        long preloadedBytes = 0;
+        boolean failed = false;
+        try {
+            HttpProxyCacheServerClients clients = proxy.getClients(handle.getUrl());
+            HttpProxyCache proxyCache = clients.startProcessRequest(handle.getPriority());
+            try {
+                preloadedBytes = proxyCache.preload(handle.getLength());
+                Logger.debug("Preloaded " + preloadedBytes + " bytes of " + handle.getUrl());
+            } finally {
+                handle.detach();
+                Thread.interrupted(); // cancellation must not break releasing cache
+                clients.finishProcessRequest(handle.getPriority());
+            }
+        } catch (ProxyCacheException e) {
+            failed = true;
+            if (!handle.isCancelled()) {
+                Logger.warn("Error preloading " + handle.getUrl() + ": " + e.getMessage());
+            }
+        } finally {
+            handle.finish(preloadedBytes, failed);
+        }
+    }
+
+    private final class PreloadTask implements Runnable, Comparable<PreloadTask> {
+
+        final PreloadHandle handle;
+        final long sequence;
+
+        PreloadTask(PreloadHandle handle, long sequence) {
+            this.handle = handle;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (handle.start(Thread.currentThread())) {
+                preload(handle);
+            }
+        }
+
+        @Override
+        public int compareTo(PreloadTask other) {
+            int priority = handle.getPriority();
+            int otherPriority = other.handle.getPriority();
+            if (priority != otherPriority) {
+                return priority > otherPriority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
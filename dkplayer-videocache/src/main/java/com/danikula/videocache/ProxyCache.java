@@ -1,14 +1,25 @@
 package com.danikula.videocache;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.danikula.videocache.Preconditions.checkNotNull;
+import static com.danikula.videocache.ProxyCacheUtils.DEFAULT_BUFFER_SIZE;
 
 /**
  * Proxy for {@link Source} with caching support ({@link Cache}).
  * <p/>
  * Can be used only for sources with persistent data (that doesn't change with time).
  * Method {@link #read(byte[], long, int)} will be blocked while fetching data from source.
+ * If requested data is far from current position of source reader, reader is restarted from requested offset,
+ * so data fetched after seek is cached too.
+ * Waiting readers are queued by offset of data they need and are woken only when this data is available.
+ * Source data is written to cache by {@link PipelinedCacheWriter}, readers can read fresh data before it reaches cache.
  * Useful for streaming something with caching e.g. streaming video/audio etc.
  *
  * @author Alexey Danilov (danikula@gmail.com).
@@ -16,36 +27,296 @@ import static com.danikula.videocache.Preconditions.checkNotNull;
 class ProxyCache {
 
     private static final int MAX_READ_SOURCE_ATTEMPTS = 1;
+    private static final long MAX_READ_AHEAD_WAIT = 1024 * 1024;
+    private static final int PIPELINE_CHUNKS_COUNT = 32;
+    private static final long WAIT_TIMEOUT_MS = 1000;
 
     private final Source source;
     private final Cache cache;
+    private final DownloadScheduler scheduler;
+    private final UrlMetrics metrics;
+    private final BufferPool bufferPool;
     private final Object wc = new Object();
+    // readers waiting for source data, keyed by offset of the last byte each reader needs, guarded by wc
+    private final TreeMap<Long, List<Waiter>> waiters = new TreeMap<>();
+    private boolean readerActive; // guarded by wc
     private final Object stopLock = new Object();
     private final AtomicInteger readSourceErrorsCount;
+    private final AtomicLong seekRequest = new AtomicLong(-1);
+    private volatile long readerOffset;
+    private volatile long sourceLength = -1;
     private volatile Thread sourceReaderThread;
+    private volatile PipelinedCacheWriter cacheWriter;
     private volatile boolean stopped;
     private volatile int percentsAvailable = -1;
+    private volatile int priority = DownloadScheduler.PRIORITY_FOREGROUND;
+    private volatile DownloadScheduler.Transfer transfer;
+    private volatile long playOffset;
 
     public ProxyCache(Source source, Cache cache) {
+        this(source, cache, null, null, null);
+    }
+
+    /**
+     * @param scheduler  scheduler of fetching source data or {@code null} to fetch data without limits.
+     * @param metrics    metrics of source or {@code null} if they are not collected.
+     * @param bufferPool pool of buffers for source data or {@code null} to allocate buffers for every source read.
+     */
+    ProxyCache(Source source, Cache cache, DownloadScheduler scheduler, UrlMetrics metrics, BufferPool bufferPool) {
         this.source = checkNotNull(source);
         this.cache = checkNotNull(cache);
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.bufferPool = bufferPool != null ? bufferPool : new BufferPool(DEFAULT_BUFFER_SIZE, 0);
         this.readSourceErrorsCount = new AtomicInteger();
     }
 
     public int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
         ProxyCacheUtils.assertBuffer(buffer, offset, length);
 
-        while (!cache.isCompleted() && cache.available() < (offset + length) && !stopped) {
-            readSourceAsync();
-            waitForSourceData();
+        playOffset = offset;
+        waitForData(offset, length);
+        if (stopped || !cache.isCompleted() && isSourceEnd(offset)) {
+            return -1;
+        }
+        int read = readAvailable(buffer, offset, length);
+        notifyIfCompleted();
+        return read;
+    }
+
+    /**
+     * Waits while data {@code [offset, offset + length)} is not available, starts source reader if needed.
+     */
+    void waitForData(long offset, int length) throws ProxyCacheException {
+        Waiter waiter = new Waiter(offset, length, null);
+        while (enqueue(waiter)) {
+            readSourceAsync(offset);
+            waiter.await();
             checkReadSourceErrorsCount();
         }
-        int read = cache.read(buffer, offset, length);
+    }
+
+    /**
+     * Non-blocking version of {@link #waitForData(long, int)}. If data {@code [offset, offset + length)} is not available
+     * yet, source reader is started if needed and {@code callback} will be called once when new source data is available.
+     *
+     * @return {@code true} if data is not available yet and {@code callback} is queued.
+     */
+    boolean waitForDataNow(long offset, int length, DataCallback callback) throws ProxyCacheException {
+        checkReadSourceErrorsCount();
+        if (enqueue(new Waiter(offset, length, checkNotNull(callback)))) {
+            readSourceAsync(offset);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Waits while the first {@code length} bytes of source are not cached, starts source reader if needed.
+     * Unlike {@link #read(byte[], long, int)} data isn't copied anywhere.
+     *
+     * @return count of bytes available from the beginning of source, less than {@code length} if source is shorter
+     * or cache is stopped.
+     */
+    long preload(long length) throws ProxyCacheException {
+        long offset = 0;
+        while (offset < length && !stopped) {
+            waitForData(offset, (int) Math.min(length - offset, MAX_READ_AHEAD_WAIT));
+            long available = stopped ? 0 : available(offset);
+            if (available == 0) {
+                break;
+            }
+            offset += available;
+        }
+        return Math.min(offset, length);
+    }
+
+    /**
+     * Sets priority of fetching source data, {@link DownloadScheduler#PRIORITY_FOREGROUND} by default.
+     */
+    void setPriority(int priority) {
+        this.priority = priority;
+        DownloadScheduler.Transfer current = transfer;
+        if (current != null) {
+            current.setPriority(priority);
+        }
+    }
+
+    /**
+     * Sets length of source known before source reader is started (e.g. from stored source info),
+     * so readers of source's end don't start reader for data beyond the end.
+     */
+    void setSourceLength(long length) {
+        if (sourceLength < 0 && length >= 0) {
+            sourceLength = length;
+        }
+    }
+
+    /**
+     * Non-blocking version of {@link #read(byte[], long, int)}. If there is no cached data for {@code offset} yet
+     * method returns {@code 0} and {@code callback} will be called once when new source data is available.
+     *
+     * @return a count of read bytes, {@code 0} if data is not available yet or {@code -1} if there is no more data.
+     */
+    int readNow(byte[] buffer, long offset, int length, DataCallback callback) throws ProxyCacheException {
+        ProxyCacheUtils.assertBuffer(buffer, offset, length);
+
+        playOffset = offset;
+        if (waitForDataNow(offset, 1, callback)) {
+            return 0;
+        }
+        if (stopped || !cache.isCompleted() && isSourceEnd(offset)) {
+            return -1;
+        }
+        int read = readAvailable(buffer, offset, length);
+        notifyIfCompleted();
+        return read;
+    }
+
+    private int readAvailable(byte[] buffer, long offset, int length) throws ProxyCacheException {
+        PipelinedCacheWriter writer = cacheWriter;
+        if (writer != null && !cache.isCompleted()) {
+            // chunk is removed from writer only after it is written, so missed data is already in cache
+            int read = writer.read(buffer, offset, length);
+            if (read > 0) {
+                return read;
+            }
+        }
+        return cache.read(buffer, offset, length);
+    }
+
+    /**
+     * Returns count of bytes available contiguously from {@code offset} in cache and in chunks not written to cache yet.
+     */
+    long available(long offset) throws ProxyCacheException {
+        PipelinedCacheWriter writer = cacheWriter;
+        long position = offset;
+        long extended;
+        do {
+            extended = cache.available(position);
+            if (writer != null) {
+                extended += writer.available(position + extended);
+            }
+            position += extended;
+        } while (writer != null && extended > 0);
+        return position - offset;
+    }
+
+    void notifyIfCompleted() {
         if (cache.isCompleted() && percentsAvailable != 100) {
             percentsAvailable = 100;
             onCachePercentsAvailableChanged(100);
         }
-        return read;
+    }
+
+    /**
+     * Adds waiter to queue if data it needs is not available yet.
+     *
+     * @return {@code true} if waiter is queued and {@code false} if it can read data right now.
+     */
+    private boolean enqueue(Waiter waiter) throws ProxyCacheException {
+        synchronized (wc) {
+            boolean ready = stopped || cache.isCompleted() || isSourceEnd(waiter.offset) || isDataAvailable(waiter.offset, waiter.length);
+            if (!ready) {
+                waiter.reset();
+                List<Waiter> sameOffsetWaiters = waiters.get(waiter.lastOffset);
+                if (sameOffsetWaiters == null) {
+                    sameOffsetWaiters = new ArrayList<>(1);
+                    waiters.put(waiter.lastOffset, sameOffsetWaiters);
+                }
+                sameOffsetWaiters.add(waiter);
+            }
+            return !ready;
+        }
+    }
+
+    private void dequeue(Waiter waiter) {
+        synchronized (wc) {
+            List<Waiter> sameOffsetWaiters = waiters.get(waiter.lastOffset);
+            if (sameOffsetWaiters != null && sameOffsetWaiters.remove(waiter) && sameOffsetWaiters.isEmpty()) {
+                waiters.remove(waiter.lastOffset);
+            }
+        }
+    }
+
+    /**
+     * Wakes waiters whose data is available after writing range {@code [start, end)}. Only waiters that need
+     * last byte in range merged with written one can become ready, other waiters are not touched.
+     */
+    private void notifyWaiters(long start, long end) throws ProxyCacheException {
+        List<Waiter> ready = new ArrayList<>();
+        synchronized (wc) {
+            if (waiters.isEmpty()) {
+                return;
+            }
+            long rangeEnd = end + available(end);
+            boolean sourceEndReached = sourceLength >= 0 && rangeEnd >= sourceLength;
+            // waiters for tail of source may need bytes beyond source's end, they are ready when source's end is cached
+            Map<Long, List<Waiter>> candidates = sourceEndReached ? waiters.tailMap(start, true) : waiters.subMap(start, true, rangeEnd, false);
+            Iterator<List<Waiter>> candidatesIterator = candidates.values().iterator();
+            while (candidatesIterator.hasNext()) {
+                List<Waiter> sameOffsetWaiters = candidatesIterator.next();
+                Iterator<Waiter> waitersIterator = sameOffsetWaiters.iterator();
+                while (waitersIterator.hasNext()) {
+                    Waiter waiter = waitersIterator.next();
+                    if (isDataAvailable(waiter.offset, waiter.length)) {
+                        waitersIterator.remove();
+                        ready.add(waiter);
+                    }
+                }
+                if (sameOffsetWaiters.isEmpty()) {
+                    candidatesIterator.remove();
+                }
+            }
+        }
+        for (Waiter waiter : ready) {
+            waiter.wake();
+        }
+    }
+
+    /**
+     * Wakes all waiters, used when source reader is finished or proxy is stopped.
+     */
+    private void notifyAllWaiters(boolean readerFinished) {
+        List<Waiter> all = new ArrayList<>();
+        synchronized (wc) {
+            if (readerFinished) {
+                readerActive = false;
+            }
+            for (List<Waiter> sameOffsetWaiters : waiters.values()) {
+                all.addAll(sameOffsetWaiters);
+            }
+            waiters.clear();
+        }
+        for (Waiter waiter : all) {
+            waiter.wake();
+        }
+    }
+
+    /**
+     * Returns first not cached offset some reader waits for or {@code -1} if there are no such readers.
+     */
+    private long findWaitedOffset() throws ProxyCacheException {
+        synchronized (wc) {
+            long waitedOffset = -1;
+            for (List<Waiter> sameOffsetWaiters : waiters.values()) {
+                for (Waiter waiter : sameOffsetWaiters) {
+                    if (waitedOffset < 0 || waiter.offset < waitedOffset) {
+                        waitedOffset = waiter.offset;
+                    }
+                }
+            }
+            return waitedOffset < 0 ? -1 : waitedOffset + available(waitedOffset);
+        }
+    }
+
+    private boolean isDataAvailable(long offset, int length) throws ProxyCacheException {
+        long available = available(offset);
+        return available >= length || available > 0 && sourceLength >= 0 && offset + available >= sourceLength;
+    }
+
+    private boolean isSourceEnd(long offset) {
+        return sourceLength >= 0 && offset >= sourceLength;
     }
 
     private void checkReadSourceErrorsCount() throws ProxyCacheException {
@@ -57,6 +328,13 @@ class ProxyCache {
     }
 
     public void shutdown() {
+        Thread readerThread = sourceReaderThread;
+        if (readerThread != null) {
+            readerThread.interrupt();
+            abortSource();
+        }
+        // data already read from source can be served to clients, so it must reach cache too
+        drainCacheWriter(cacheWriter);
         synchronized (stopLock) {
             Logger.debug("Shutdown proxy for " + source);
             try {
@@ -64,37 +342,40 @@ class ProxyCache {
                 if (sourceReaderThread != null) {
                     sourceReaderThread.interrupt();
                 }
+                if (!cache.isCompleted() && sourceLength >= 0 && cache.available() == sourceLength) {
+                    // last chunks are written after reader is stopped
+                    cache.complete();
+                }
                 cache.close();
             } catch (ProxyCacheException e) {
                 onError(e);
             }
         }
+        notifyAllWaiters(false);
     }
 
-    private synchronized void readSourceAsync() throws ProxyCacheException {
-        boolean readingInProgress = sourceReaderThread != null && sourceReaderThread.getState() != Thread.State.TERMINATED;
-        if (!stopped && !cache.isCompleted() && !readingInProgress) {
-            sourceReaderThread = new Thread(new SourceReaderRunnable(), "Source reader for " + source);
-            sourceReaderThread.start();
+    private synchronized void readSourceAsync(long offset) throws ProxyCacheException {
+        if (stopped || cache.isCompleted()) {
+            return;
         }
-    }
-
-    private void waitForSourceData() throws ProxyCacheException {
+        long missingOffset = offset + available(offset);
+        boolean readingInProgress;
         synchronized (wc) {
-            try {
-                wc.wait(1000);
-            } catch (InterruptedException e) {
-                throw new ProxyCacheException("Waiting source data is interrupted!", e);
-            }
+            readingInProgress = readerActive;
+            readerActive = true;
+        }
+        if (!readingInProgress) {
+            readerOffset = missingOffset;
+            sourceReaderThread = new Thread(new SourceReaderRunnable(), "Source reader for " + source);
+            sourceReaderThread.start();
+        } else if (missingOffset < readerOffset || missingOffset > readerOffset + MAX_READ_AHEAD_WAIT) {
+            // it seems user seeks video, don't wait while reader reaches requested data
+            seekRequest.set(missingOffset);
         }
     }
 
     private void notifyNewCacheDataAvailable(long cacheAvailable, long sourceAvailable) {
         onCacheAvailable(cacheAvailable, sourceAvailable);
-
-        synchronized (wc) {
-            wc.notifyAll();
-        }
     }
 
     protected void onCacheAvailable(long cacheAvailable, long sourceLength) {
@@ -111,36 +392,161 @@ class ProxyCache {
     protected void onCachePercentsAvailableChanged(int percentsAvailable) {
     }
 
+    /**
+     * Called on shutdown while source reader is active to stop blocking read of source at once, interruption of reader
+     * thread doesn't stop reading from socket.
+     */
+    protected void abortSource() {
+    }
+
     private void readSource() {
         long sourceAvailable = -1;
-        long offset = 0;
+        long cacheAvailable = 0;
+        long offset = readerOffset;
+        String writerName = "Cache writer for " + source;
+        PipelinedCacheWriter writer = new PipelinedCacheWriter(new CacheSink(), PIPELINE_CHUNKS_COUNT, bufferPool, writerName);
+        writer.start();
+        cacheWriter = writer;
+        DownloadScheduler.Transfer transfer = startTransfer();
         try {
-            offset = cache.available();
-            source.open(offset);
+            if (!canProceed(transfer, offset)) {
+                awaitTransferTurn(transfer);
+            }
+            openSource(offset);
             sourceAvailable = source.length();
-            byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
-            int readBytes;
-            while ((readBytes = source.read(buffer)) != -1) {
-                synchronized (stopLock) {
+            sourceLength = sourceAvailable;
+            long openedOffset = offset;
+            while (true) {
+                if (!canProceed(transfer, offset)) {
+                    // paused transfer must not take bandwidth, its connection is reopened when transfer is resumed
+                    source.close();
+                    awaitTransferTurn(transfer);
+                    openSource(offset);
+                    openedOffset = offset;
+                }
+                PipelinedCacheWriter.Chunk chunk = writer.obtain();
+                long readStartNanos = System.nanoTime();
+                int readBytes = source.read(chunk.data);
+                if (metrics != null && readBytes > 0) {
+                    metrics.onOriginData(readBytes, System.nanoTime() - readStartNanos);
+                }
+                long nextOffset;
+                if (readBytes == -1) {
+                    writer.recycle(chunk);
+                    // source is over, continue only with data somebody waits for, gaps are left to next requests
+                    nextOffset = findNextOffset(-1);
+                    if (nextOffset < 0 || offset == openedOffset || nextOffset == offset) {
+                        break;
+                    }
+                } else {
                     if (isStopped()) {
+                        writer.recycle(chunk);
                         return;
                     }
-                    cache.append(buffer, readBytes);
+                    writer.publish(chunk, offset, readBytes);
+                    notifyWaiters(offset, offset + readBytes);
+                    offset += readBytes;
+                    readerOffset = offset;
+                    cacheAvailable = available(0);
+                    notifyNewCacheDataAvailable(cacheAvailable, sourceAvailable);
+                    long seek = seekRequest.getAndSet(-1);
+                    long notCachedOffset = offset + available(offset);
+                    nextOffset = seek >= 0 ? seek : notCachedOffset;
+                    boolean sourceEndCached = sourceAvailable >= 0 && notCachedOffset >= sourceAvailable;
+                    if (seek < 0 && (notCachedOffset != offset || sourceEndCached)) {
+                        // reader reached cached data, skip it or switch to data somebody waits for,
+                        // reader stops at source's end as it does at the end of data
+                        nextOffset = findNextOffset(sourceEndCached ? -1 : notCachedOffset);
+                        if (nextOffset < 0) {
+                            break;
+                        }
+                    }
+                }
+                if (nextOffset != offset) {
+                    Logger.debug("Reopen source " + source + " with offset " + nextOffset);
+                    source.close();
+                    openSource(nextOffset);
+                    offset = openedOffset = readerOffset = nextOffset;
                 }
-                offset += readBytes;
-                notifyNewCacheDataAvailable(offset, sourceAvailable);
             }
+            writer.drain();
             tryComplete();
             onSourceRead();
         } catch (Throwable e) {
             readSourceErrorsCount.incrementAndGet();
             onError(e);
         } finally {
+            finishTransfer(transfer);
+            drainCacheWriter(writer);
+            writer.stop();
+            cacheWriter = null;
             closeSource();
-            notifyNewCacheDataAvailable(offset, sourceAvailable);
+            notifyNewCacheDataAvailable(cacheAvailable, sourceAvailable);
+            notifyAllWaiters(true);
+            if (metrics != null) {
+                metrics.onChanged();
+            }
+        }
+    }
+
+    private void openSource(long offset) throws ProxyCacheException {
+        long openStartNanos = System.nanoTime();
+        source.open(offset);
+        if (metrics != null) {
+            metrics.onOriginResponse(System.nanoTime() - openStartNanos);
+        }
+    }
+
+    private DownloadScheduler.Transfer startTransfer() {
+        if (scheduler == null) {
+            return null;
+        }
+        DownloadScheduler.Transfer started = scheduler.register(priority);
+        transfer = started;
+        started.setPriority(priority); // priority may be changed while transfer is registered
+        return started;
+    }
+
+    private boolean canProceed(DownloadScheduler.Transfer transfer, long readerOffset) {
+        return transfer == null || transfer.proceed(readerOffset - playOffset);
+    }
+
+    private void awaitTransferTurn(DownloadScheduler.Transfer transfer) throws ProxyCacheException {
+        Logger.debug("Download of " + source + " is paused");
+        try {
+            transfer.await();
+        } catch (InterruptedException e) {
+            throw new InterruptedProxyCacheException("Waiting for download turn is interrupted", e);
+        }
+    }
+
+    private void finishTransfer(DownloadScheduler.Transfer transfer) {
+        if (transfer != null) {
+            this.transfer = null;
+            transfer.release();
+        }
+    }
+
+    private void drainCacheWriter(PipelinedCacheWriter writer) {
+        if (writer != null) {
+            try {
+                writer.drain();
+            } catch (ProxyCacheException e) {
+                onError(e);
+            }
         }
     }
 
+    /**
+     * Returns offset of data somebody waits for or {@code defaultOffset}, {@code -1} is passed to stop reader
+     * if nobody waits for data.
+     */
+    private long findNextOffset(long defaultOffset) throws ProxyCacheException {
+        long waitedOffset = findWaitedOffset();
+        boolean waitedOffsetValid = waitedOffset >= 0 && (sourceLength < 0 || waitedOffset < sourceLength);
+        return waitedOffsetValid ? waitedOffset : defaultOffset;
+    }
+
     private void onSourceRead() {
         // guaranteed notify listeners after source read and cache completed
         percentsAvailable = 100;
@@ -172,7 +578,91 @@ class ProxyCache {
         if (interruption) {
             Logger.debug("ProxyCache is interrupted");
         } else {
-            Logger.error("ProxyCache error");
+            Logger.error("ProxyCache error: " + e);
+            if (metrics != null) {
+                metrics.onError(e);
+            }
+        }
+    }
+
+    /**
+     * Callback for {@link #readNow(byte[], long, int, DataCallback)} readers waiting for source data.
+     */
+    interface DataCallback {
+
+        void onDataAvailable();
+    }
+
+    /**
+     * Reader waiting for data {@code [offset, offset + length)}. Blocking readers wait on monitor,
+     * non-blocking readers are notified by {@link DataCallback}.
+     */
+    private final class Waiter {
+
+        private final long offset;
+        private final int length;
+        private final long lastOffset;
+        private final DataCallback callback;
+        private boolean woken; // guarded by this
+
+        Waiter(long offset, int length, DataCallback callback) {
+            this.offset = offset;
+            this.length = length;
+            this.lastOffset = offset + Math.max(length, 1) - 1;
+            this.callback = callback;
+        }
+
+        synchronized void reset() {
+            woken = false;
+        }
+
+        void wake() {
+            if (callback != null) {
+                callback.onDataAvailable();
+                return;
+            }
+            synchronized (this) {
+                woken = true;
+                notifyAll();
+            }
+        }
+
+        /**
+         * Waits until waiter is woken, but not longer than a second: waiter that missed its wake up
+         * (e.g. reader died without notifying) is dequeued, so caller re-checks data and source state.
+         */
+        void await() throws ProxyCacheException {
+            boolean timedOut;
+            try {
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + WAIT_TIMEOUT_MS;
+                    long remaining = WAIT_TIMEOUT_MS;
+                    while (!woken && remaining > 0) {
+                        wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                    timedOut = !woken;
+                }
+            } catch (InterruptedException e) {
+                dequeue(this);
+                throw new ProxyCacheException("Waiting source data is interrupted!", e);
+            }
+            if (timedOut) {
+                dequeue(this);
+            }
+        }
+    }
+
+    private final class CacheSink implements PipelinedCacheWriter.Sink {
+
+        @Override
+        public void write(byte[] data, long offset, int length) throws ProxyCacheException {
+            synchronized (stopLock) {
+                if (stopped) {
+                    throw new InterruptedProxyCacheException("Proxy cache is stopped");
+                }
+                cache.write(data, offset, length);
+            }
         }
     }
 
@@ -8,6 +8,7 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -24,6 +25,13 @@ public class ProxyCacheUtils {
 
     static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
     static final int MAX_ARRAY_PREVIEW = 16;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<Md5> MD5 = new ThreadLocal<Md5>() {
+        @Override
+        protected Md5 initialValue() {
+            return new Md5();
+        }
+    };
 
     static String getSupposablyMime(String url) {
         MimeTypeMap mimes = MimeTypeMap.getSingleton();
@@ -73,21 +81,77 @@ public class ProxyCacheUtils {
         }
     }
 
+    /**
+     * Returns hex string of MD5 of UTF-8 bytes of string. Digest and buffers are reused by thread,
+     * so only resulting string is allocated.
+     */
     public static String computeMD5(String string) {
-        try {
-            MessageDigest messageDigest = MessageDigest.getInstance("MD5");
-            byte[] digestBytes = messageDigest.digest(string.getBytes());
-            return bytesToHexString(digestBytes);
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalStateException(e);
-        }
+        return MD5.get().hex(string);
     }
 
-    private static String bytesToHexString(byte[] bytes) {
-        StringBuffer sb = new StringBuffer();
-        for (byte b : bytes) {
-            sb.append(String.format("%02x", b));
+    private static final class Md5 {
+
+        private static final int MAX_KEPT_INPUT_SIZE = 8 * 1024;
+
+        private final MessageDigest digest;
+        private final byte[] output = new byte[16];
+        private final char[] hex = new char[32];
+        private byte[] input = new byte[512];
+
+        Md5() {
+            try {
+                digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        String hex(String string) {
+            int maxLength = string.length() * 3;
+            byte[] bytes = maxLength <= input.length ? input : new byte[maxLength];
+            if (bytes.length <= MAX_KEPT_INPUT_SIZE) {
+                input = bytes;
+            }
+            try {
+                digest.update(bytes, 0, encodeUtf8(string, bytes));
+                digest.digest(output, 0, output.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            for (int i = 0; i < output.length; i++) {
+                hex[i * 2] = HEX_DIGITS[(output[i] >> 4) & 0xf];
+                hex[i * 2 + 1] = HEX_DIGITS[output[i] & 0xf];
+            }
+            return new String(hex);
+        }
+
+        /**
+         * Encodes string the same way as {@link String#getBytes(String)} does, unpaired surrogates are replaced by {@code ?}.
+         */
+        private static int encodeUtf8(String string, byte[] bytes) {
+            int length = 0;
+            for (int i = 0; i < string.length(); i++) {
+                char c = string.charAt(i);
+                if (c < 0x80) {
+                    bytes[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[length++] = (byte) (0xc0 | c >> 6);
+                    bytes[length++] = (byte) (0x80 | c & 0x3f);
+                } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                    bytes[length++] = (byte) (0xf0 | codePoint >> 18);
+                    bytes[length++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+                    bytes[length++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+                    bytes[length++] = (byte) (0x80 | codePoint & 0x3f);
+                } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    bytes[length++] = '?';
+                } else {
+                    bytes[length++] = (byte) (0xe0 | c >> 12);
+                    bytes[length++] = (byte) (0x80 | c >> 6 & 0x3f);
+                    bytes[length++] = (byte) (0x80 | c & 0x3f);
+                }
+            }
+            return length;
         }
-        return sb.toString();
     }
 }
@@ -0,0 +1,58 @@
+package com.danikula.videocache;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Snapshot of metrics of {@link HttpProxyCacheServer}.
+ * @see HttpProxyCacheServer#getMetrics()
+ */
+public final class ProxyMetrics {
+
+    private final SourceMetrics total;
+    private final List<SourceMetrics> sources;
+    private final long evictedFilesCount;
+    private final long evictedBytes;
+
+    ProxyMetrics(SourceMetrics total, List<SourceMetrics> sources, long evictedFilesCount, long evictedBytes) {
+        this.total = total;
+        this.sources = Collections.unmodifiableList(sources);
+        this.evictedFilesCount = evictedFilesCount;
+        this.evictedBytes = evictedBytes;
+    }
+
+    /**
+     * Returns metrics of all sources together, including errors not related to particular source.
+     */
+    public SourceMetrics getTotal() {
+        return total;
+    }
+
+    /**
+     * Returns metrics of recently used sources, the most recently used source is the last one.
+     */
+    public List<SourceMetrics> getSources() {
+        return sources;
+    }
+
+    /**
+     * Returns count of files evicted from cache, {@code -1} if used {@link com.danikula.videocache.file.DiskUsage}
+     * doesn't count evictions.
+     */
+    public long getEvictedFilesCount() {
+        return evictedFilesCount;
+    }
+
+    /**
+     * Returns total size of files evicted from cache, {@code -1} if it is unknown.
+     */
+    public long getEvictedBytes() {
+        return evictedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "ProxyMetrics{total=" + total + ", sources=" + sources.size() +
+                ", evictedFiles=" + evictedFilesCount + ", evictedBytes=" + evictedBytes + "}";
+    }
+}
@@ -0,0 +1,63 @@
+package com.danikula.videocache;
+
+import java.util.Collections;
+import java.util.List;
+
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+/**
+ * Response of {@link HttpProxyCache} for particular request: headers and body as sequence of {@link Part}s.
+ */
+final class ProxyResponse {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    final String headers;
+    final List<Part> parts;
+    final boolean keepAlive;
+
+    ProxyResponse(String headers, List<Part> parts, boolean keepAlive) {
+        this.headers = checkNotNull(headers);
+        this.parts = Collections.unmodifiableList(parts);
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Part of response body: literal {@code prefix} (e.g. headers of multipart body) followed by
+     * source data {@code [start, end)}.
+     */
+    static final class Part {
+
+        final byte[] prefix;
+        final long start;
+        final long end;
+
+        /**
+         * @param prefix bytes sent before data, can be {@code null}.
+         * @param start  offset of the first byte of data.
+         * @param end    offset of the byte after data or {@code -1} to send data up to the end of source.
+         */
+        Part(byte[] prefix, long start, long end) {
+            this.prefix = prefix == null ? EMPTY : prefix;
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * Returns {@code true} if data ends at known offset.
+         */
+        boolean isBounded() {
+            return end >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Part{prefix=" + prefix.length + ", range=[" + start + ", " + end + ")}";
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ProxyResponse{parts=" + parts + ", keepAlive=" + keepAlive + "}";
+    }
+}
@@ -0,0 +1,57 @@
+package com.danikula.videocache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of local connections to {@link HttpProxyCacheServer}.
+ */
+public final class ProxyStats {
+
+    private final AtomicLong connectionsCount = new AtomicLong();
+    private final AtomicLong requestsCount = new AtomicLong();
+    private final AtomicLong keepAliveRequestsCount = new AtomicLong();
+
+    ProxyStats() {
+    }
+
+    void onConnectionAccepted() {
+        connectionsCount.incrementAndGet();
+    }
+
+    /**
+     * @param reusedConnection {@code true} if request is sent by connection that already served other request.
+     */
+    void onRequest(boolean reusedConnection) {
+        requestsCount.incrementAndGet();
+        if (reusedConnection) {
+            keepAliveRequestsCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns count of accepted connections, every one of them is (re)connect of client to proxy.
+     */
+    public long getConnectionsCount() {
+        return connectionsCount.get();
+    }
+
+    /**
+     * Returns count of processed requests.
+     */
+    public long getRequestsCount() {
+        return requestsCount.get();
+    }
+
+    /**
+     * Returns count of requests served by persistent connections without reconnecting.
+     */
+    public long getKeepAliveRequestsCount() {
+        return keepAliveRequestsCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ProxyStats{connections=" + connectionsCount + ", requests=" + requestsCount +
+                ", keepAliveRequests=" + keepAliveRequestsCount + "}";
+    }
+}
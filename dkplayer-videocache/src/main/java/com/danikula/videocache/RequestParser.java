@@ -0,0 +1,297 @@
+package com.danikula.videocache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parser of http requests working directly on bytes of request.
+ * <p/>
+ * Only request line and headers used by proxy ({@code Range} and {@code Connection}) are parsed, other headers are
+ * skipped without creating strings. Buffers are owned by connections and reused for all their requests.
+ * Requests longer than buffer (e.g. with long signed urls) are read to larger buffers up to {@link #MAX_REQUEST_SIZE}.
+ */
+final class RequestParser {
+
+    static final int MAX_REQUEST_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final byte[] GET = {'G', 'E', 'T', ' ', '/'};
+    private static final byte[] HTTP_1_0 = {'H', 'T', 'T', 'P', '/', '1', '.', '0'};
+    private static final byte[] RANGE = {'r', 'a', 'n', 'g', 'e'};
+    private static final byte[] CONNECTION = {'c', 'o', 'n', 'n', 'e', 'c', 't', 'i', 'o', 'n'};
+    private static final byte[] BYTES = {'b', 'y', 't', 'e', 's', '='};
+    private static final byte[] CLOSE = {'c', 'l', 'o', 's', 'e'};
+    private static final byte[] KEEP_ALIVE = {'k', 'e', 'e', 'p', '-', 'a', 'l', 'i', 'v', 'e'};
+
+    private RequestParser() {
+    }
+
+    /**
+     * Finds the end of the first request in buffer's {@code [0, position)}, empty lines before request are ignored.
+     *
+     * @return offset of the byte after request's headers or {@code -1} if request is not read completely.
+     */
+    static int findRequestEnd(ByteBuffer buffer) {
+        int end = buffer.position();
+        int start = skipEmptyLines(buffer, 0, end);
+        for (int i = start + 1; i < end; i++) {
+            if (buffer.get(i) == '\n' && (buffer.get(i - 1) == '\n' || i - 2 >= start && buffer.get(i - 1) == '\r' && buffer.get(i - 2) == '\n')) {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the next request from stream to buffer. Stream isn't read beyond request's headers, so next request
+     * sent by the same persistent connection stays in stream.
+     *
+     * @return buffer with request in {@code [0, position)}: passed buffer or larger one if request doesn't fit it,
+     * or {@code null} if stream is closed before request is started.
+     * @throws IOException if request is longer than {@link #MAX_REQUEST_SIZE} or stream is closed in the middle of request.
+     */
+    static ByteBuffer read(InputStream in, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int b;
+        while ((b = in.read()) == '\r' || b == '\n') {
+            // ignore empty lines between requests
+        }
+        if (b == -1) {
+            return null;
+        }
+        while (b != -1) {
+            if (!buffer.hasRemaining()) {
+                buffer = grow(buffer);
+            }
+            buffer.put((byte) b);
+            int position = buffer.position();
+            boolean emptyLine = position >= 2 && (buffer.get(position - 2) == '\n' ||
+                    position >= 3 && buffer.get(position - 2) == '\r' && buffer.get(position - 3) == '\n');
+            if (b == '\n' && emptyLine) {
+                return buffer;
+            }
+            b = in.read();
+        }
+        throw new IOException("Request is not completed");
+    }
+
+    /**
+     * Returns twice larger buffer with data of buffer's {@code [0, position)}. Long requests are rare,
+     * so larger buffer is not pooled.
+     *
+     * @throws IOException if buffer already has max size of request.
+     */
+    static ByteBuffer grow(ByteBuffer buffer) throws IOException {
+        if (buffer.capacity() >= MAX_REQUEST_SIZE) {
+            throw new IOException("Too long request, max size is " + MAX_REQUEST_SIZE + " bytes");
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, MAX_REQUEST_SIZE));
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    /**
+     * Parses request placed in buffer's {@code [0, end)}.
+     *
+     * @throws IllegalArgumentException if it isn't GET request.
+     */
+    static GetRequest parse(ByteBuffer buffer, int end) {
+        int start = skipEmptyLines(buffer, 0, end);
+        int lineEnd = findLineEnd(buffer, start, end);
+        if (!startsWith(buffer, start, lineEnd, GET, false)) {
+            throw new IllegalArgumentException("Invalid request `" + toString(buffer, start, lineEnd) + "`: url not found!");
+        }
+        int uriStart = start + GET.length;
+        int uriEnd = uriStart;
+        while (uriEnd < lineEnd && buffer.get(uriEnd) != ' ') {
+            uriEnd++;
+        }
+        String uri = toString(buffer, uriStart, uriEnd);
+        boolean http10 = startsWith(buffer, uriEnd + 1, lineEnd, HTTP_1_0, false);
+        List<GetRequest.ByteRange> ranges = Collections.emptyList();
+        int connection = 0; // 1 for keep-alive, -1 for close
+        int lineStart = nextLine(buffer, lineEnd, end);
+        while (lineStart < end && (lineEnd = findLineEnd(buffer, lineStart, end)) > lineStart) {
+            int colon = indexOf(buffer, lineStart, lineEnd, ':');
+            if (colon > 0) {
+                int valueStart = skipSpaces(buffer, colon + 1, lineEnd);
+                int valueEnd = trimEnd(buffer, valueStart, lineEnd);
+                int nameEnd = trimEnd(buffer, lineStart, colon);
+                if (equalsIgnoreCase(buffer, lineStart, nameEnd, RANGE)) {
+                    ranges = parseRanges(buffer, valueStart, valueEnd);
+                } else if (equalsIgnoreCase(buffer, lineStart, nameEnd, CONNECTION)) {
+                    connection = parseConnection(buffer, valueStart, valueEnd);
+                }
+            }
+            lineStart = nextLine(buffer, lineEnd, end);
+        }
+        boolean keepAlive = http10 ? connection > 0 : connection >= 0;
+        return new GetRequest(uri, ranges, keepAlive);
+    }
+
+    /**
+     * Parses value of {@code Range} header: {@code bytes=first-last}, {@code bytes=first-}, {@code bytes=-suffixLength}
+     * or comma separated list of such ranges. Invalid header is ignored.
+     */
+    private static List<GetRequest.ByteRange> parseRanges(ByteBuffer buffer, int start, int end) {
+        if (!startsWith(buffer, start, end, BYTES, true)) {
+            return Collections.<GetRequest.ByteRange>emptyList();
+        }
+        List<GetRequest.ByteRange> ranges = new ArrayList<>(1);
+        int specStart = start + BYTES.length;
+        while (specStart <= end) {
+            int specEnd = indexOf(buffer, specStart, end, ',');
+            specEnd = specEnd < 0 ? end : specEnd;
+            int first = skipSpaces(buffer, specStart, specEnd);
+            int last = trimEnd(buffer, first, specEnd);
+            int dash = indexOf(buffer, first, last, '-');
+            if (dash < 0) {
+                return Collections.emptyList();
+            }
+            long firstByte = parseLong(buffer, first, dash);
+            long lastByte = parseLong(buffer, dash + 1, last);
+            boolean valid = firstByte != -2 && lastByte != -2 &&
+                    (firstByte >= 0 ? lastByte < 0 || lastByte >= firstByte : lastByte >= 0);
+            if (!valid) {
+                return Collections.emptyList();
+            }
+            ranges.add(new GetRequest.ByteRange(firstByte, lastByte));
+            specStart = specEnd + 1;
+        }
+        return Collections.unmodifiableList(ranges);
+    }
+
+    /**
+     * Returns {@code 1} if value of {@code Connection} header contains {@code keep-alive} token, {@code -1} if
+     * it contains {@code close} token and {@code 0} otherwise.
+     */
+    private static int parseConnection(ByteBuffer buffer, int start, int end) {
+        int tokenStart = start;
+        while (tokenStart < end) {
+            int tokenEnd = indexOf(buffer, tokenStart, end, ',');
+            tokenEnd = tokenEnd < 0 ? end : tokenEnd;
+            int first = skipSpaces(buffer, tokenStart, tokenEnd);
+            int last = trimEnd(buffer, first, tokenEnd);
+            if (equalsIgnoreCase(buffer, first, last, CLOSE)) {
+                return -1;
+            }
+            if (equalsIgnoreCase(buffer, first, last, KEEP_ALIVE)) {
+                return 1;
+            }
+            tokenStart = tokenEnd + 1;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns parsed number, {@code -1} for empty string and {@code -2} for invalid number.
+     */
+    private static long parseLong(ByteBuffer buffer, int start, int end) {
+        if (start == end) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                return -2;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static int skipEmptyLines(ByteBuffer buffer, int start, int end) {
+        while (start < end && (buffer.get(start) == '\r' || buffer.get(start) == '\n')) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Returns offset of line's end without trailing {@code \r}.
+     */
+    private static int findLineEnd(ByteBuffer buffer, int start, int end) {
+        int newLine = indexOf(buffer, start, end, '\n');
+        int lineEnd = newLine < 0 ? end : newLine;
+        return lineEnd > start && buffer.get(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+    }
+
+    private static int nextLine(ByteBuffer buffer, int lineEnd, int end) {
+        int newLine = indexOf(buffer, lineEnd, end, '\n');
+        return newLine < 0 ? end : newLine + 1;
+    }
+
+    private static int indexOf(ByteBuffer buffer, int start, int end, char value) {
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipSpaces(ByteBuffer buffer, int start, int end) {
+        while (start < end && (buffer.get(start) == ' ' || buffer.get(start) == '\t')) {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(ByteBuffer buffer, int start, int end) {
+        while (end > start && (buffer.get(end - 1) == ' ' || buffer.get(end - 1) == '\t')) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Compares bytes with lowercase ascii {@code expected} (or exact bytes if {@code ignoreCase} is {@code false}).
+     */
+    private static boolean startsWith(ByteBuffer buffer, int start, int end, byte[] expected, boolean ignoreCase) {
+        if (end - start < expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            byte b = buffer.get(start + i);
+            if (b != expected[i] && !(ignoreCase && toLowerCase(b) == expected[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(ByteBuffer buffer, int start, int end, byte[] expected) {
+        return end - start == expected.length && startsWith(buffer, start, end, expected, true);
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static String toString(ByteBuffer buffer, int start, int end) {
+        char[] chars = new char[end - start];
+        for (int i = start; i < end; i++) {
+            byte b = buffer.get(i);
+            if (b < 0) {
+                return toUtf8String(buffer, start, end); // not encoded non-ascii symbols, should be rare
+            }
+            chars[i - start] = (char) b;
+        }
+        return new String(chars);
+    }
+
+    private static String toUtf8String(ByteBuffer buffer, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            bytes[i - start] = buffer.get(i);
+        }
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,181 @@
+package com.danikula.videocache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Persistent set of HLS segment urls without query that are used as cache keys by {@link HlsProxy}. Segment requested
+ * with new query (e.g. access token) after restart, before its playlist is fetched again, gets the same key.
+ * <p/>
+ * Set is kept in memory and limited by count of the most recently used urls. It is loaded on background thread
+ * on creation, urls are not reported as known until it is loaded. Changed set is rewritten on the same thread.
+ * File is kept in subdirectory of cache, so it is never treated as cache file.
+ */
+final class SegmentKeys {
+
+    private static final String DIRECTORY_NAME = "hls";
+    private static final String FILE_NAME = "segment.keys";
+    private static final String TEMP_POSTFIX = ".tmp";
+    private static final int VERSION = 1;
+    private static final int MAX_KEYS_COUNT = 4096;
+
+    private final File file;
+    private final ExecutorService ioThread = Executors.newSingleThreadExecutor();
+    private final Map<String, Boolean> keys = new KeysMap(); // guarded by this
+    private final Set<String> removedBeforeLoading = new HashSet<>(); // guarded by this
+    private boolean loaded; // guarded by this
+    private boolean saveScheduled; // guarded by this
+
+    SegmentKeys(File cacheRoot) {
+        this.file = new File(new File(cacheRoot, DIRECTORY_NAME), FILE_NAME);
+        ioThread.submit(new LoadRunnable());
+    }
+
+    synchronized boolean contains(String key) {
+        return loaded && keys.containsKey(key);
+    }
+
+    synchronized void addAll(Collection<String> added) {
+        boolean changed = false;
+        for (String key : added) {
+            changed |= keys.put(key, Boolean.TRUE) == null;
+        }
+        if (changed) {
+            scheduleSave();
+        }
+    }
+
+    synchronized void removeAll(Collection<String> removed) {
+        if (!loaded) {
+            removedBeforeLoading.addAll(removed);
+        }
+        if (keys.keySet().removeAll(removed)) {
+            scheduleSave();
+        }
+    }
+
+    void shutdown() {
+        ioThread.shutdown(); // scheduled saving is finished
+    }
+
+    private void scheduleSave() {
+        if (!saveScheduled && !ioThread.isShutdown()) {
+            saveScheduled = true;
+            ioThread.submit(new SaveRunnable());
+        }
+    }
+
+    private void load() {
+        List<String> persisted = new ArrayList<>();
+        if (file.exists()) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+                if (in.readInt() != VERSION) {
+                    throw new IOException("Unsupported version");
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    persisted.add(in.readUTF());
+                }
+            } catch (IOException e) {
+                Logger.warn("Error reading segment keys " + file + ": " + e.getMessage());
+                persisted.clear();
+            } finally {
+                ProxyCacheUtils.close(in);
+            }
+        }
+        synchronized (this) {
+            // keys added while loading are newer than persisted ones
+            Map<String, Boolean> added = new LinkedHashMap<>(keys);
+            keys.clear();
+            for (String key : persisted) {
+                if (!removedBeforeLoading.contains(key)) {
+                    keys.put(key, Boolean.TRUE);
+                }
+            }
+            keys.putAll(added);
+            removedBeforeLoading.clear();
+            loaded = true;
+        }
+    }
+
+    private void save() {
+        List<String> snapshot;
+        synchronized (this) {
+            saveScheduled = false;
+            if (!loaded) {
+                return; // never happens, loading is the first task
+            }
+            snapshot = new ArrayList<>(keys.keySet());
+        }
+        File directory = file.getParentFile();
+        File tempFile = new File(directory, FILE_NAME + TEMP_POSTFIX);
+        DataOutputStream out = null;
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Directory can't be created");
+            }
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(VERSION);
+            out.writeInt(snapshot.size());
+            for (String key : snapshot) {
+                out.writeUTF(key);
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Error renaming " + tempFile);
+            }
+        } catch (IOException e) {
+            Logger.error("Error writing segment keys " + file + ": " + e.getMessage());
+        } finally {
+            ProxyCacheUtils.close(out);
+        }
+    }
+
+    private static final class KeysMap extends LinkedHashMap<String, Boolean> {
+
+        private static final long serialVersionUID = 1L;
+
+        KeysMap() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_KEYS_COUNT;
+        }
+    }
+
+    private final class LoadRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            load();
+        }
+    }
+
+    private final class SaveRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            save();
+        }
+    }
+}
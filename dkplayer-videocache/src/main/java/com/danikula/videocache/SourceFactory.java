@@ -0,0 +1,25 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.headers.HeaderInjector;
+import com.danikula.videocache.sourcestorage.SourceInfoStorage;
+
+import java.net.HttpURLConnection;
+
+/**
+ * Factory for sources of proxied urls. Return {@link HttpUrlSource} to use {@link HttpURLConnection} or own
+ * {@link Source} to use alternative http stack. Content info (length and mime) of own source is read from its
+ * first response: {@link Source#length()} must return length after source is opened, mime is guessed by url.
+ * Parallel fetching is supported only for {@link HttpUrlSource}.
+ */
+public interface SourceFactory {
+
+    /**
+     * Creates source for url.
+     *
+     * @param url               url of source.
+     * @param sourceInfoStorage storage for source info.
+     * @param headerInjector    injector of headers for requests to source.
+     * @return new source, not opened yet.
+     */
+    Source newSource(String url, SourceInfoStorage sourceInfoStorage, HeaderInjector headerInjector);
+}
@@ -0,0 +1,140 @@
+package com.danikula.videocache;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Snapshot of metrics of single source or of all sources of {@link HttpProxyCacheServer}.
+ */
+public final class SourceMetrics {
+
+    private final String url;
+    private final long originRequestsCount;
+    private final long originTtfbNanos;
+    private final long originBytes;
+    private final long originReadNanos;
+    private final long requestsCount;
+    private final long servedRequestsCount;
+    private final long firstByteNanos;
+    private final long bytesServedFromCache;
+    private final long bytesServedFromOrigin;
+    private final Map<String, Long> errorsCount;
+
+    SourceMetrics(String url, long originRequestsCount, long originTtfbNanos, long originBytes, long originReadNanos,
+                  long requestsCount, long servedRequestsCount, long firstByteNanos, long bytesServedFromCache,
+                  long bytesServedFromOrigin, Map<String, Long> errorsCount) {
+        this.url = url;
+        this.originRequestsCount = originRequestsCount;
+        this.originTtfbNanos = originTtfbNanos;
+        this.originBytes = originBytes;
+        this.originReadNanos = originReadNanos;
+        this.requestsCount = requestsCount;
+        this.servedRequestsCount = servedRequestsCount;
+        this.firstByteNanos = firstByteNanos;
+        this.bytesServedFromCache = bytesServedFromCache;
+        this.bytesServedFromOrigin = bytesServedFromOrigin;
+        this.errorsCount = Collections.unmodifiableMap(errorsCount);
+    }
+
+    /**
+     * Returns url of source (for HLS segments it is url without query) or {@code null} for metrics of all sources.
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Returns count of requests to origin server, including requests reopened after seek.
+     */
+    public long getOriginRequestsCount() {
+        return originRequestsCount;
+    }
+
+    /**
+     * Returns average time from opening connection to origin to receiving response headers, {@code -1} if unknown.
+     */
+    public long getAverageOriginTtfbMs() {
+        return average(originTtfbNanos, originRequestsCount);
+    }
+
+    /**
+     * Returns count of bytes fetched from origin.
+     */
+    public long getOriginBytes() {
+        return originBytes;
+    }
+
+    /**
+     * Returns download throughput in bytes per second while data is fetched from origin, {@code -1} if unknown.
+     * Time of paused downloads isn't counted.
+     */
+    public long getDownloadThroughput() {
+        return originReadNanos == 0 ? -1 : originBytes * TimeUnit.SECONDS.toNanos(1) / originReadNanos;
+    }
+
+    /**
+     * Returns count of local requests to proxy.
+     */
+    public long getRequestsCount() {
+        return requestsCount;
+    }
+
+    /**
+     * Returns average time from receiving local request to serving the first byte of response body, {@code -1} if unknown.
+     */
+    public long getAverageTimeToFirstByteMs() {
+        return average(firstByteNanos, servedRequestsCount);
+    }
+
+    /**
+     * Returns count of served bytes that were cached before request.
+     */
+    public long getBytesServedFromCache() {
+        return bytesServedFromCache;
+    }
+
+    /**
+     * Returns count of served bytes that were fetched from origin while request was served.
+     */
+    public long getBytesServedFromOrigin() {
+        return bytesServedFromOrigin;
+    }
+
+    /**
+     * Returns share of served bytes that were cached before request, {@code -1} if nothing is served yet.
+     */
+    public float getCacheHitRatio() {
+        long served = bytesServedFromCache + bytesServedFromOrigin;
+        return served == 0 ? -1 : (float) bytesServedFromCache / served;
+    }
+
+    /**
+     * Returns counts of errors by type, type is simple class name of the root cause of error.
+     */
+    public Map<String, Long> getErrorsCount() {
+        return errorsCount;
+    }
+
+    public long getTotalErrorsCount() {
+        long total = 0;
+        for (Long count : errorsCount.values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static long average(long totalNanos, long count) {
+        return count == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(totalNanos / count);
+    }
+
+    @Override
+    public String toString() {
+        return "SourceMetrics{url='" + url + "', originRequests=" + originRequestsCount +
+                ", originTtfbMs=" + getAverageOriginTtfbMs() + ", originBytes=" + originBytes +
+                ", throughput=" + getDownloadThroughput() + ", requests=" + requestsCount +
+                ", ttfbMs=" + getAverageTimeToFirstByteMs() + ", fromCache=" + bytesServedFromCache +
+                ", fromOrigin=" + bytesServedFromOrigin + ", hitRatio=" + getCacheHitRatio() +
+                ", errors=" + errorsCount + "}";
+    }
+}
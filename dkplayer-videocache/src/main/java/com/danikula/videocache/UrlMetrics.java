@@ -0,0 +1,121 @@
+package com.danikula.videocache;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Live counters of metrics of single source, every change is added to counters of all sources too.
+ */
+final class UrlMetrics {
+
+    private final String url;
+    private final UrlMetrics total;
+    private final MetricsCollector collector;
+    private final AtomicLong originRequestsCount = new AtomicLong();
+    private final AtomicLong originTtfbNanos = new AtomicLong();
+    private final AtomicLong originBytes = new AtomicLong();
+    private final AtomicLong originReadNanos = new AtomicLong();
+    private final AtomicLong requestsCount = new AtomicLong();
+    private final AtomicLong servedRequestsCount = new AtomicLong();
+    private final AtomicLong firstByteNanos = new AtomicLong();
+    private final AtomicLong bytesServedFromCache = new AtomicLong();
+    private final AtomicLong bytesServedFromOrigin = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> errorsCount = new ConcurrentHashMap<>();
+
+    /**
+     * @param url       url of source or {@code null} for counters of all sources.
+     * @param total     counters of all sources or {@code null} for counters of all sources.
+     * @param collector collector to be notified about changes.
+     */
+    UrlMetrics(String url, UrlMetrics total, MetricsCollector collector) {
+        this.url = url;
+        this.total = total;
+        this.collector = collector;
+    }
+
+    /**
+     * @param ttfbNanos time from opening connection to receiving response headers.
+     */
+    void onOriginResponse(long ttfbNanos) {
+        originRequestsCount.incrementAndGet();
+        originTtfbNanos.addAndGet(ttfbNanos);
+        if (total != null) {
+            total.onOriginResponse(ttfbNanos);
+        }
+    }
+
+    void onOriginData(long bytes, long readNanos) {
+        originBytes.addAndGet(bytes);
+        originReadNanos.addAndGet(readNanos);
+        if (total != null) {
+            total.onOriginData(bytes, readNanos);
+        }
+    }
+
+    void onRequest() {
+        requestsCount.incrementAndGet();
+        if (total != null) {
+            total.onRequest();
+        }
+    }
+
+    /**
+     * @param requestNanos     {@link System#nanoTime()} when request is received.
+     * @param firstByte        {@code true} if the first bytes of response body are served.
+     * @param fromCacheBytes   count of served bytes that were cached before request.
+     * @param fromOriginBytes  count of served bytes fetched from origin while request is served.
+     */
+    void onServed(long requestNanos, boolean firstByte, long fromCacheBytes, long fromOriginBytes) {
+        if (firstByte) {
+            servedRequestsCount.incrementAndGet();
+            firstByteNanos.addAndGet(System.nanoTime() - requestNanos);
+        }
+        bytesServedFromCache.addAndGet(fromCacheBytes);
+        bytesServedFromOrigin.addAndGet(fromOriginBytes);
+        if (total != null) {
+            total.onServed(requestNanos, firstByte, fromCacheBytes, fromOriginBytes);
+        }
+    }
+
+    void onError(Throwable error) {
+        Throwable cause = error;
+        while (cause.getCause() != null && cause.getCause() != cause) {
+            cause = cause.getCause();
+        }
+        String type = cause.getClass().getSimpleName();
+        AtomicLong count = errorsCount.get(type);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = errorsCount.putIfAbsent(type, newCount);
+            count = count == null ? newCount : count;
+        }
+        count.incrementAndGet();
+        if (total != null) {
+            total.onError(error);
+        }
+        onChanged();
+    }
+
+    /**
+     * Notifies listeners about changes, it should be called after finishing request or download, not after every chunk.
+     */
+    void onChanged() {
+        collector.onChanged(this);
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    SourceMetrics snapshot() {
+        Map<String, Long> errors = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : errorsCount.entrySet()) {
+            errors.put(entry.getKey(), entry.getValue().get());
+        }
+        return new SourceMetrics(url, originRequestsCount.get(), originTtfbNanos.get(), originBytes.get(),
+                originReadNanos.get(), requestsCount.get(), servedRequestsCount.get(), firstByteNanos.get(),
+                bytesServedFromCache.get(), bytesServedFromOrigin.get(), errors);
+    }
+}
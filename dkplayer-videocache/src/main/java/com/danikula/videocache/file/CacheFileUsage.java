@@ -0,0 +1,33 @@
+package com.danikula.videocache.file;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * {@link DiskUsage} that is told by {@link FileCache} which files are open and how many bytes they really hold:
+ * partially cached file is sparse, its length includes gaps that take no space on disk.
+ */
+interface CacheFileUsage extends DiskUsage {
+
+    /**
+     * Marks file as used by open cache, neither it nor its completed or partial counterpart is evicted
+     * until {@link #onClosed(File, long)}.
+     *
+     * @param cachedBytes count of bytes cached in file.
+     */
+    void onOpened(File file, long cachedBytes);
+
+    /**
+     * Marks file as the most recently used one.
+     *
+     * @param cachedBytes count of bytes cached in file.
+     */
+    void touch(File file, long cachedBytes) throws IOException;
+
+    /**
+     * Marks file as the most recently used one and releases it, see {@link #onOpened(File, long)}.
+     *
+     * @param cachedBytes count of bytes cached in file.
+     */
+    void onClosed(File file, long cachedBytes) throws IOException;
+}
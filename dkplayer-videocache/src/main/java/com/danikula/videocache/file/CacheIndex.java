@@ -0,0 +1,297 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * In-memory index of cache directory: completed files with their lengths and partially cached files with count of
+ * bytes cached from the beginning. It answers whether url is cached without disk access, e.g. on main thread.
+ * <p/>
+ * Directory is scanned on background thread by {@link #load()}, then index is kept in step with cache: it is notified
+ * about writes by {@link FileCache}s, it wraps {@link DiskUsage} of cache to be notified about completed and closed
+ * files, and about files evicted by {@link EvictingDiskUsage}. Queries never touch disk: until directory is scanned,
+ * files are reported as not cached. Cache files should be deleted by {@link #delete(String)} and {@link #clear()}
+ * to keep index actual. Completed files can be deleted by other means anyway (e.g. by custom {@link DiskUsage} or
+ * by user), so existence of completed file is checked in background when it is queried, and its entry is dropped
+ * if file is missing.
+ */
+public final class CacheIndex implements CacheFileUsage {
+
+    private final File directory;
+    private final DiskUsage diskUsage;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>(); // keys are names of completed files
+    private final Set<String> checkedNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final ExecutorService loaderThread = Executors.newSingleThreadExecutor();
+    private volatile boolean loaded;
+
+    /**
+     * @param directory cache directory.
+     * @param diskUsage disk usage of cache, all touches are passed to it.
+     */
+    public CacheIndex(File directory, DiskUsage diskUsage) {
+        if (directory == null || diskUsage == null) {
+            throw new NullPointerException("Directory and disk usage must not be null!");
+        }
+        this.directory = directory;
+        this.diskUsage = diskUsage;
+        if (diskUsage instanceof EvictingDiskUsage) {
+            ((EvictingDiskUsage) diskUsage).setCacheIndex(this);
+        }
+    }
+
+    /**
+     * Scans cache directory in background, changes reported while scanning are not overridden by scanning.
+     */
+    public void load() {
+        loaded = false;
+        loaderThread.submit(new LoadRunnable());
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Checks if file with name is fully cached.
+     *
+     * @param name name of completed cache file.
+     */
+    public boolean isCompleted(String name) {
+        Entry entry = getEntry(name);
+        return entry != null && entry.completed;
+    }
+
+    /**
+     * Returns count of bytes cached from the beginning of file, length of completed file or {@code 0}
+     * if file is not cached.
+     *
+     * @param name name of completed cache file.
+     */
+    public long getCachedBytes(String name) {
+        Entry entry = getEntry(name);
+        return entry != null ? entry.cachedBytes : 0;
+    }
+
+    /**
+     * Returns entry of file or {@code null} if index isn't loaded yet. Existence of completed file is checked
+     * in background, so file deleted outside of index is reported as cached until check is done.
+     */
+    private Entry getEntry(String name) {
+        if (!loaded) {
+            return null;
+        }
+        Entry entry = entries.get(name);
+        if (entry != null && entry.completed && checkedNames.add(name)) {
+            try {
+                loaderThread.submit(new CheckRunnable(name));
+            } catch (RejectedExecutionException e) {
+                checkedNames.remove(name); // index is shut down
+            }
+        }
+        return entry;
+    }
+
+    private void checkInBackground(String name) {
+        checkedNames.remove(name);
+        Entry entry = entries.get(name);
+        if (entry != null && entry.completed && !new File(directory, name).exists()) {
+            Logger.warn("Cache file " + name + " is deleted outside of cache index");
+            entries.remove(name, entry);
+        }
+    }
+
+    /**
+     * Deletes completed and partially cached file with name.
+     *
+     * @param name name of completed cache file.
+     * @return {@code true} if all files are deleted or didn't exist.
+     */
+    public boolean delete(String name) {
+        boolean deleted = delete(new File(directory, name));
+        deleted &= delete(new File(directory, name + FileCache.TEMP_POSTFIX));
+        return deleted;
+    }
+
+    /**
+     * Deletes all cache files.
+     *
+     * @return {@code true} if all files are deleted.
+     */
+    public boolean clear() {
+        boolean deleted = true;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (isCacheFile(file)) {
+                    deleted &= delete(file);
+                }
+            }
+        }
+        return deleted;
+    }
+
+    public void shutdown() {
+        loaderThread.shutdownNow();
+    }
+
+    @Override
+    public void touch(File file) throws IOException {
+        update(file);
+        diskUsage.touch(file);
+    }
+
+    @Override
+    public void onOpened(File file, long cachedBytes) {
+        update(file);
+        if (diskUsage instanceof CacheFileUsage) {
+            ((CacheFileUsage) diskUsage).onOpened(file, cachedBytes);
+        }
+    }
+
+    @Override
+    public void touch(File file, long cachedBytes) throws IOException {
+        update(file);
+        if (diskUsage instanceof CacheFileUsage) {
+            ((CacheFileUsage) diskUsage).touch(file, cachedBytes);
+        } else {
+            diskUsage.touch(file);
+        }
+    }
+
+    @Override
+    public void onClosed(File file, long cachedBytes) throws IOException {
+        update(file);
+        if (diskUsage instanceof CacheFileUsage) {
+            ((CacheFileUsage) diskUsage).onClosed(file, cachedBytes);
+        } else {
+            diskUsage.touch(file);
+        }
+    }
+
+    private void update(File file) {
+        String name = FileCache.getCompletedName(file);
+        boolean temp = FileCache.isTempFile(file);
+        if (file.exists()) {
+            if (!temp) {
+                entries.put(name, new Entry(file.length(), true));
+            } else if (!entries.containsKey(name)) {
+                entries.putIfAbsent(name, new Entry(readCachedBytes(file), false));
+            }
+        } else {
+            remove(name, temp);
+        }
+    }
+
+    /**
+     * Updates count of bytes cached from the beginning of partially cached file.
+     */
+    void onWritten(File file, long cachedBytes) {
+        if (FileCache.isTempFile(file)) {
+            String name = FileCache.getCompletedName(file);
+            Entry entry = entries.get(name);
+            if (entry == null || !entry.completed && entry.cachedBytes != cachedBytes) {
+                entries.put(name, new Entry(cachedBytes, false));
+            }
+        }
+    }
+
+    /**
+     * Removes entry of deleted file, e.g. evicted by disk usage.
+     */
+    void onDeleted(File file) {
+        remove(FileCache.getCompletedName(file), FileCache.isTempFile(file));
+    }
+
+    private boolean delete(File file) {
+        boolean deleted = !file.exists() || file.delete();
+        if (deleted) {
+            CachedRanges.delete(file);
+            onDeleted(file);
+            try {
+                diskUsage.touch(file);
+            } catch (IOException e) {
+                Logger.error("Error touching deleted file " + file);
+            }
+        }
+        return deleted;
+    }
+
+    private void remove(String name, boolean temp) {
+        Entry entry = entries.get(name);
+        if (entry != null && entry.completed != temp) {
+            entries.remove(name, entry);
+        }
+    }
+
+    private void loadInBackground() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!isCacheFile(file)) {
+                    continue;
+                }
+                String name = FileCache.getCompletedName(file);
+                if (FileCache.isTempFile(file)) {
+                    entries.putIfAbsent(name, new Entry(readCachedBytes(file), false));
+                } else {
+                    Entry entry = entries.get(name);
+                    if (entry == null || !entry.completed) {
+                        entries.put(name, new Entry(file.length(), true));
+                    }
+                }
+            }
+        }
+        loaded = true;
+        Logger.debug("Cache index of " + directory + " is loaded: " + entries.size() + " entries");
+    }
+
+    private static boolean isCacheFile(File file) {
+        String name = file.getName();
+        return file.isFile() && !name.startsWith(UsageIndex.JOURNAL_NAME) && !name.endsWith(CachedRanges.POSTFIX);
+    }
+
+    private static long readCachedBytes(File tempFile) {
+        return tempFile.exists() ? CachedRanges.load(tempFile).available(0) : 0;
+    }
+
+    private static final class Entry {
+
+        final long cachedBytes;
+        final boolean completed;
+
+        Entry(long cachedBytes, boolean completed) {
+            this.cachedBytes = cachedBytes;
+            this.completed = completed;
+        }
+    }
+
+    private final class LoadRunnable implements Runnable {
+
+        @Override
+        public void run() {
+            loadInBackground();
+        }
+    }
+
+    private final class CheckRunnable implements Runnable {
+
+        private final String name;
+
+        CheckRunnable(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run() {
+            checkInBackground(name);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.Logger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Set of cached byte ranges of sparse cache file. Ranges are half-open {@code [start, end)} intervals,
+ * adjacent and overlapping ranges are merged.
+ * <p/>
+ * Not thread safe, access must be synchronized by owner.
+ */
+final class CachedRanges {
+
+    static final String POSTFIX = ".ranges";
+
+    private static final String TEMP_POSTFIX = ".tmp" + POSTFIX; // temp file ends with POSTFIX to be skipped as well
+
+    private static final int VERSION = 1;
+
+    private final TreeMap<Long, Long> ranges = new TreeMap<>();
+
+    /**
+     * Adds range {@code [start, end)}.
+     *
+     * @return {@code true} if new separate range is created, {@code false} if range is merged with existing one.
+     */
+    boolean add(long start, long end) {
+        if (start >= end) {
+            return false;
+        }
+        boolean merged = false;
+        Map.Entry<Long, Long> floor = ranges.floorEntry(start);
+        if (floor != null && floor.getValue() >= start) {
+            start = floor.getKey();
+            end = Math.max(end, floor.getValue());
+            merged = true;
+        }
+        Map.Entry<Long, Long> next = ranges.ceilingEntry(start);
+        while (next != null && next.getKey() <= end) {
+            end = Math.max(end, next.getValue());
+            ranges.remove(next.getKey());
+            merged = true;
+            next = ranges.ceilingEntry(start);
+        }
+        ranges.put(start, end);
+        return !merged;
+    }
+
+    /**
+     * Returns count of bytes cached contiguously starting from {@code offset}.
+     */
+    long available(long offset) {
+        Map.Entry<Long, Long> floor = ranges.floorEntry(offset);
+        return floor != null && floor.getValue() > offset ? floor.getValue() - offset : 0;
+    }
+
+    /**
+     * Returns count of all cached bytes, i.e. space taken by sparse file on disk.
+     */
+    long cachedBytes() {
+        long total = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            total += range.getValue() - range.getKey();
+        }
+        return total;
+    }
+
+    /**
+     * Returns {@code true} if data written with {@code offset} starts new range,
+     * i.e. offset is neither inside nor at the end of cached range.
+     */
+    boolean startsRange(long offset) {
+        Map.Entry<Long, Long> floor = ranges.floorEntry(offset);
+        return floor == null || floor.getValue() < offset;
+    }
+
+    /**
+     * Returns {@code true} if there are no ranges except data cached from the very beginning,
+     * such cache file can be restored without persisted ranges.
+     */
+    boolean isContiguous() {
+        return ranges.isEmpty() || ranges.size() == 1 && ranges.firstKey() == 0;
+    }
+
+    void clear() {
+        ranges.clear();
+    }
+
+    /**
+     * Returns immutable snapshot of ranges: starts and ends of ranges one after another, sorted by start.
+     * It can be used by readers without synchronization, see {@link #available(long[], long)}.
+     */
+    long[] toArray() {
+        long[] snapshot = new long[ranges.size() * 2];
+        int i = 0;
+        for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+            snapshot[i++] = range.getKey();
+            snapshot[i++] = range.getValue();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns count of bytes cached contiguously starting from {@code offset} according to snapshot of ranges.
+     */
+    static long available(long[] snapshot, long offset) {
+        int low = 0;
+        int high = snapshot.length / 2 - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long start = snapshot[middle * 2];
+            long end = snapshot[middle * 2 + 1];
+            if (offset < start) {
+                high = middle - 1;
+            } else if (offset >= end) {
+                low = middle + 1;
+            } else {
+                return end - offset;
+            }
+        }
+        return 0;
+    }
+
+    static File fileFor(File cacheFile) {
+        return new File(cacheFile.getParentFile(), cacheFile.getName() + POSTFIX);
+    }
+
+    /**
+     * Restores ranges for sparse file. If there are no persisted ranges, file is considered as contiguous
+     * (it is written in older versions or has no gaps).
+     */
+    static CachedRanges load(File cacheFile) {
+        CachedRanges result = new CachedRanges();
+        File rangesFile = fileFor(cacheFile);
+        if (!rangesFile.exists()) {
+            result.add(0, cacheFile.length());
+            return result;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(rangesFile));
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unsupported ranges version");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                result.add(in.readLong(), in.readLong());
+            }
+        } catch (IOException e) {
+            Logger.warn("Error reading ranges " + rangesFile + ", cached data is dropped");
+            result.clear();
+        } finally {
+            close(in);
+        }
+        return result;
+    }
+
+    /**
+     * Persists ranges if file has gaps or data beyond cached range, otherwise deletes ranges file.
+     */
+    void save(File cacheFile) throws IOException {
+        if (isContiguous() && cacheFile.length() <= available(0)) {
+            delete(cacheFile);
+        } else {
+            write(cacheFile);
+        }
+    }
+
+    /**
+     * Persists ranges even if file is contiguous, e.g. before file gets gap.
+     * Ranges file is replaced atomically, so it is never seen partially written.
+     */
+    void write(File cacheFile) throws IOException {
+        File rangesFile = fileFor(cacheFile);
+        File tempFile = new File(cacheFile.getParentFile(), cacheFile.getName() + TEMP_POSTFIX);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile));
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(ranges.size());
+            for (Map.Entry<Long, Long> range : ranges.entrySet()) {
+                out.writeLong(range.getKey());
+                out.writeLong(range.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(rangesFile)) {
+            throw new IOException("Error renaming " + tempFile + " to " + rangesFile);
+        }
+    }
+
+    static void delete(File cacheFile) {
+        File rangesFile = fileFor(cacheFile);
+        if (rangesFile.exists() && !rangesFile.delete()) {
+            Logger.error("Error deleting ranges file " + rangesFile);
+        }
+        File tempFile = new File(cacheFile.getParentFile(), cacheFile.getName() + TEMP_POSTFIX);
+        if (tempFile.exists() && !tempFile.delete()) {
+            Logger.error("Error deleting ranges file " + tempFile);
+        }
+    }
+
+    private static void close(DataInputStream in) {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                Logger.error("Error closing ranges file");
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CachedRanges" + ranges;
+    }
+}
@@ -0,0 +1,174 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link DiskUsage} that trims cache by evicting files chosen by {@link EvictionPolicy}.
+ * <p/>
+ * Total size and count of files are kept by in-memory {@link UsageIndex} and updated incrementally,
+ * so touching file doesn't scan cache directory. Partially cached files are sized by count of cached bytes,
+ * because they are sparse. Files opened by {@link FileCache} are never evicted.
+ */
+public abstract class EvictingDiskUsage implements CacheFileUsage {
+
+    private static final long UNKNOWN_SIZE = -1;
+
+    private final ExecutorService workerThread = Executors.newSingleThreadExecutor();
+    private final EvictionPolicy policy;
+    private final AtomicLong evictedFilesCount = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+    private final Map<String, Integer> openedFiles = new HashMap<>(); // names of completed files, is used by worker thread only
+    private UsageIndex index; // is used by worker thread only
+    private volatile CacheIndex cacheIndex;
+
+    /**
+     * @param policy eviction policy, it must not be used by other {@link DiskUsage}.
+     */
+    protected EvictingDiskUsage(EvictionPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("Eviction policy must not be null!");
+        }
+        this.policy = policy;
+    }
+
+    @Override
+    public void touch(File file) throws IOException {
+        workerThread.submit(new TouchCallable(file, UNKNOWN_SIZE, 0));
+    }
+
+    @Override
+    public void onOpened(File file, long cachedBytes) {
+        workerThread.submit(new TouchCallable(file, cachedBytes, 1));
+    }
+
+    @Override
+    public void touch(File file, long cachedBytes) throws IOException {
+        workerThread.submit(new TouchCallable(file, cachedBytes, 0));
+    }
+
+    @Override
+    public void onClosed(File file, long cachedBytes) throws IOException {
+        workerThread.submit(new TouchCallable(file, cachedBytes, -1));
+    }
+
+    private void touchInBackground(File file, long cachedBytes, int openedDelta) throws IOException {
+        File directory = file.getParentFile();
+        if (index == null || !index.getDirectory().equals(directory)) {
+            index = UsageIndex.load(directory, policy);
+        }
+        if (openedDelta != 0) {
+            String completedName = FileCache.getCompletedName(file);
+            Integer opened = openedFiles.get(completedName);
+            int count = (opened == null ? 0 : opened) + openedDelta;
+            if (count > 0) {
+                openedFiles.put(completedName, count);
+            } else {
+                openedFiles.remove(completedName);
+            }
+        }
+        String name = file.getName();
+        if (!FileCache.isTempFile(file)) {
+            index.remove(name + FileCache.TEMP_POSTFIX); // file is completed and renamed
+        }
+        if (file.exists()) {
+            index.touch(name, cachedBytes == UNKNOWN_SIZE ? UsageIndex.sizeOf(file) : cachedBytes);
+        } else {
+            index.remove(name);
+        }
+        trim(directory);
+    }
+
+    /**
+     * Sets index to be notified about evicted files.
+     */
+    void setCacheIndex(CacheIndex cacheIndex) {
+        this.cacheIndex = cacheIndex;
+    }
+
+    /**
+     * Returns count of files deleted because cache exceeded limits.
+     */
+    public long getEvictedFilesCount() {
+        return evictedFilesCount.get();
+    }
+
+    /**
+     * Returns total size of files deleted because cache exceeded limits.
+     */
+    public long getEvictedBytes() {
+        return evictedBytes.get();
+    }
+
+    /**
+     * Checks if cache fits limits, files chosen by policy are deleted until it returns {@code true}.
+     *
+     * @param file       file to be evicted next.
+     * @param totalSize  total size of cache files.
+     * @param totalCount total count of cache files.
+     * @return {@code true} if file can be kept.
+     */
+    protected abstract boolean accept(File file, long totalSize, int totalCount);
+
+    private void trim(File directory) {
+        List<String> excluded = new ArrayList<>();
+        String name;
+        while ((name = index.victim()) != null) {
+            File file = new File(directory, name);
+            if (accept(file, index.getTotalSize(), index.getTotalCount())) {
+                break;
+            }
+            if (openedFiles.containsKey(FileCache.getCompletedName(file))) {
+                // open file is still counted, but it is skipped until it is closed
+                index.exclude(name);
+                excluded.add(name);
+                continue;
+            }
+            long size = index.remove(name);
+            boolean deleted = file.delete();
+            if (cacheIndex != null && !file.exists()) {
+                cacheIndex.onDeleted(file);
+            }
+            if (deleted) {
+                CachedRanges.delete(file);
+                evictedFilesCount.incrementAndGet();
+                evictedBytes.addAndGet(size);
+                Logger.info("Cache file " + file + " is deleted because it exceeds cache limit");
+            } else if (file.exists()) {
+                Logger.error("Error deleting file " + file + " for trimming cache");
+            }
+        }
+        for (String excludedName : excluded) {
+            index.restore(excludedName);
+        }
+    }
+
+    private class TouchCallable implements Callable<Void> {
+
+        private final File file;
+        private final long cachedBytes;
+        private final int openedDelta;
+
+        public TouchCallable(File file, long cachedBytes, int openedDelta) {
+            this.file = file;
+            this.cachedBytes = cachedBytes;
+            this.openedDelta = openedDelta;
+        }
+
+        @Override
+        public Void call() throws Exception {
+            touchInBackground(file, cachedBytes, openedDelta);
+            return null;
+        }
+    }
+}
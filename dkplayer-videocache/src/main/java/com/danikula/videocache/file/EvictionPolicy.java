@@ -0,0 +1,35 @@
+package com.danikula.videocache.file;
+
+/**
+ * Strategy of choosing cache file to be evicted when cache exceeds its limits.
+ * <p/>
+ * Policy is notified about every access to cache files and keeps its own state, so instance of policy must not be
+ * shared between several {@link DiskUsage}s. Methods are called from single thread.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Notifies about access to file: file is cached or used by client.
+     *
+     * @param name name of cache file.
+     * @param size current size of file in bytes.
+     */
+    void onAccess(String name, long size);
+
+    /**
+     * Notifies that file is removed from cache (evicted or deleted).
+     *
+     * @param name name of cache file.
+     */
+    void onRemove(String name);
+
+    /**
+     * Returns name of file to be evicted next or {@code null} if policy knows no files.
+     */
+    String victim();
+
+    /**
+     * Forgets all files.
+     */
+    void clear();
+}
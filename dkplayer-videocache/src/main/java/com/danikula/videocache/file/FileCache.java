@@ -1,114 +1,314 @@
 package com.danikula.videocache.file;
 
 import com.danikula.videocache.Cache;
+import com.danikula.videocache.InterruptedProxyCacheException;
 import com.danikula.videocache.ProxyCacheException;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * {@link Cache} that uses file for storing data.
+ * <p/>
+ * Not completed cache file may be sparse: data can be written with any offset, cached ranges are kept in memory
+ * and persisted to {@code .ranges} file next to cache file while file has gaps.
+ * If {@link MemoryBlockCache} is used, beginning of file is read from memory and written to memory and file.
+ * If {@link MappedFileWindows} are used, completed file is read through memory-mapped windows.
+ * <p/>
+ * Data is written by single writer (source reader of proxy), readers don't take locks: they read file by positional
+ * channel reads and check cached ranges by immutable snapshot published after every write, so readers neither wait
+ * for writer nor for each other. Offsets are {@code long}, so files larger than 2 Gb are supported.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
 public class FileCache implements Cache {
 
-    private static final String TEMP_POSTFIX = ".download";
+    static final String TEMP_POSTFIX = ".download";
 
     private final DiskUsage diskUsage;
-    public File file;
-    private RandomAccessFile dataFile;
+    private final MemoryBlockCache memoryCache;
+    private final MappedFileWindows mappedWindows;
+    private final String memoryKey;
+    private final CachedRanges ranges; // guarded by this, it is changed by writer only
+    public volatile File file;
+    private volatile FileChannel channel;
+    private volatile long[] rangesSnapshot;
+    private volatile boolean completed;
+    private volatile boolean closed;
 
     public FileCache(File file) throws ProxyCacheException {
         this(file, new UnlimitedDiskUsage());
     }
 
     public FileCache(File file, DiskUsage diskUsage) throws ProxyCacheException {
+        this(file, diskUsage, null);
+    }
+
+    /**
+     * @param memoryCache memory tier for beginning of file or {@code null} to read all data from file.
+     */
+    public FileCache(File file, DiskUsage diskUsage, MemoryBlockCache memoryCache) throws ProxyCacheException {
+        this(file, diskUsage, memoryCache, null);
+    }
+
+    /**
+     * @param memoryCache   memory tier for beginning of file or {@code null} to read all data from file.
+     * @param mappedWindows windows for reading completed file or {@code null} to read file by channel.
+     */
+    public FileCache(File file, DiskUsage diskUsage, MemoryBlockCache memoryCache, MappedFileWindows mappedWindows) throws ProxyCacheException {
         try {
             if (diskUsage == null) {
                 throw new NullPointerException();
             }
             this.diskUsage = diskUsage;
+            this.memoryCache = memoryCache;
+            this.mappedWindows = mappedWindows;
+            this.memoryKey = file.getAbsolutePath();
             File directory = file.getParentFile();
             Files.makeDir(directory);
-            boolean completed = file.exists();
+            this.completed = file.exists();
             this.file = completed ? file : new File(file.getParentFile(), file.getName() + TEMP_POSTFIX);
-            this.dataFile = new RandomAccessFile(this.file, completed ? "r" : "rw");
+            this.channel = openChannel(this.file, completed);
+            this.ranges = completed ? new CachedRanges() : CachedRanges.load(this.file);
+            if (completed) {
+                ranges.add(0, channel.size());
+            } else if (memoryCache != null && ranges.available(0) == 0) {
+                // file is deleted or never cached, data kept in memory can be stale
+                memoryCache.remove(memoryKey);
+            }
+            if (!completed && mappedWindows != null) {
+                // file is downloaded again, mapped data is stale
+                mappedWindows.remove(memoryKey);
+            }
+            this.rangesSnapshot = ranges.toArray();
+            if (diskUsage instanceof CacheFileUsage) {
+                ((CacheFileUsage) diskUsage).onOpened(this.file, ranges.cachedBytes());
+            }
         } catch (IOException e) {
             throw new ProxyCacheException("Error using file " + file + " as disc cache", e);
         }
     }
 
     @Override
-    public synchronized long available() throws ProxyCacheException {
-        try {
-            return (int) dataFile.length();
-        } catch (IOException e) {
-            throw new ProxyCacheException("Error reading length of file " + file, e);
-        }
+    public long available() throws ProxyCacheException {
+        return CachedRanges.available(rangesSnapshot, 0);
     }
 
     @Override
-    public synchronized int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
-        try {
-            dataFile.seek(offset);
-            return dataFile.read(buffer, 0, length);
-        } catch (IOException e) {
-            String format = "Error reading %d bytes with offset %d from file[%d bytes] to buffer[%d bytes]";
-            throw new ProxyCacheException(String.format(format, length, offset, available(), buffer.length), e);
+    public long available(long offset) throws ProxyCacheException {
+        return CachedRanges.available(rangesSnapshot, offset);
+    }
+
+    @Override
+    public int read(byte[] buffer, long offset, int length) throws ProxyCacheException {
+        if (!completed) {
+            // never read gaps of sparse file
+            length = (int) Math.min(length, CachedRanges.available(rangesSnapshot, offset));
+        }
+        int read = memoryCache == null ? 0 : memoryCache.read(memoryKey, offset, buffer, length);
+        if (read > 0) {
+            return read;
         }
+        // path of completed file is the key of its windows
+        boolean mapped = completed && mappedWindows != null;
+        for (int attempt = 0; ; attempt++) {
+            FileChannel current = channel;
+            try {
+                read = mapped ? mappedWindows.read(memoryKey, available(), current, offset, buffer, length) :
+                        current.read(ByteBuffer.wrap(buffer, 0, length), offset);
+                break;
+            } catch (ClosedChannelException e) {
+                recover(current, e, attempt);
+            } catch (IOException e) {
+                String format = "Error reading %d bytes with offset %d from file[%d bytes] to buffer[%d bytes]";
+                throw new ProxyCacheException(String.format(format, length, offset, available(), buffer.length), e);
+            }
+        }
+        if (memoryCache != null && read > 0 && !mapped) {
+            memoryCache.write(memoryKey, offset, buffer, read);
+        }
+        return read;
     }
 
     @Override
     public synchronized void append(byte[] data, int length) throws ProxyCacheException {
+        write(data, available(), length);
+    }
+
+    /**
+     * Writes data to file. Writes are serialized, data becomes visible for readers when it is written.
+     */
+    @Override
+    public synchronized void write(byte[] data, long offset, int length) throws ProxyCacheException {
+        if (completed) {
+            throw new ProxyCacheException("Error append cache: cache file " + file + " is completed!");
+        }
+        boolean newRange = offset > 0 && ranges.startsRange(offset);
+        if (newRange) {
+            // file gets gap, ranges must be persisted before it, so gap is never treated as data after crash
+            saveRanges(true);
+        }
+        for (int attempt = 0; ; attempt++) {
+            FileChannel current = channel;
+            try {
+                ByteBuffer source = ByteBuffer.wrap(data, 0, length);
+                while (source.hasRemaining()) {
+                    current.write(source, offset + source.position());
+                }
+                break;
+            } catch (ClosedChannelException e) {
+                recover(current, e, attempt);
+            } catch (IOException e) {
+                String format = "Error writing %d bytes to %s with offset %d from buffer with size %d";
+                throw new ProxyCacheException(String.format(format, length, file, offset, data.length), e);
+            }
+        }
+        if (memoryCache != null) {
+            memoryCache.write(memoryKey, offset, data, length);
+        }
+        ranges.add(offset, offset + length);
+        rangesSnapshot = ranges.toArray();
+        if (diskUsage instanceof CacheIndex) {
+            ((CacheIndex) diskUsage).onWritten(file, CachedRanges.available(rangesSnapshot, 0));
+        }
+        if (newRange) {
+            saveRanges(false); // keep new range after restart
+        }
+    }
+
+    private void saveRanges(boolean beforeGap) throws ProxyCacheException {
         try {
-            if (isCompleted()) {
-                throw new ProxyCacheException("Error append cache: cache file " + file + " is completed!");
+            if (beforeGap) {
+                ranges.write(file);
+            } else {
+                ranges.save(file);
             }
-            dataFile.seek(available());
-            dataFile.write(data, 0, length);
         } catch (IOException e) {
-            String format = "Error writing %d bytes to %s from buffer with size %d";
-            throw new ProxyCacheException(String.format(format, length, dataFile, data.length), e);
+            throw new ProxyCacheException("Error saving cached ranges of " + file, e);
+        }
+    }
+
+    /**
+     * Transfers data of completed cache file directly to channel, without copying it to user space buffers
+     * ({@code sendfile} is used if it is supported by platform). If mapped windows are used, data is written
+     * from mapped window.
+     *
+     * @param offset a file offset to transfer data from.
+     * @param count  max count of bytes to be transferred.
+     * @param target a channel to transfer data to.
+     * @return count of transferred bytes, may be less than {@code count} for non-blocking channel.
+     * @throws ProxyCacheException if cache is not completed or error occur while transferring data.
+     */
+    public long transferTo(long offset, long count, WritableByteChannel target) throws ProxyCacheException {
+        if (!completed) {
+            throw new ProxyCacheException("Error transferring data: cache file " + file + " is not completed!");
+        }
+        for (int attempt = 0; ; attempt++) {
+            FileChannel current = channel;
+            try {
+                long transferred = memoryCache == null ? -1 : memoryCache.transferTo(memoryKey, offset, count, target);
+                if (transferred >= 0) {
+                    return transferred;
+                }
+                if (mappedWindows != null) {
+                    return mappedWindows.transferTo(memoryKey, available(), current, offset, count, target);
+                }
+                // positional transfer doesn't change file pointer, so concurrent transfers don't need synchronization
+                return current.transferTo(offset, count, target);
+            } catch (ClosedChannelException e) {
+                if (!current.isOpen()) {
+                    recover(current, e, attempt);
+                } else {
+                    throw new ProxyCacheException("Error transferring data: target channel is closed", e);
+                }
+            } catch (IOException e) {
+                String format = "Error transferring %d bytes with offset %d from file %s";
+                throw new ProxyCacheException(String.format(format, count, offset, file), e);
+            }
         }
     }
 
     @Override
     public synchronized void close() throws ProxyCacheException {
         try {
-            dataFile.close();
-            diskUsage.touch(file);
+            closed = true;
+            if (!completed) {
+                ranges.save(file);
+            }
+            channel.close();
+            if (diskUsage instanceof CacheFileUsage) {
+                ((CacheFileUsage) diskUsage).onClosed(file, ranges.cachedBytes());
+            } else {
+                diskUsage.touch(file);
+            }
         } catch (IOException e) {
             throw new ProxyCacheException("Error closing file " + file, e);
         }
     }
 
+    /**
+     * Renames completed file. Its channel is kept open, so readers are not interrupted by completion.
+     */
     @Override
     public synchronized void complete() throws ProxyCacheException {
-        if (isCompleted()) {
+        if (completed) {
             return;
         }
 
-        close();
-        String fileName = file.getName().substring(0, file.getName().length() - TEMP_POSTFIX.length());
-        File completedFile = new File(file.getParentFile(), fileName);
+        File completedFile = new File(file.getParentFile(), getCompletedName(file));
         boolean renamed = file.renameTo(completedFile);
         if (!renamed) {
             throw new ProxyCacheException("Error renaming file " + file + " to " + completedFile + " for completion!");
         }
+        CachedRanges.delete(file);
         file = completedFile;
+        completed = true;
         try {
-            dataFile = new RandomAccessFile(file, "r");
-            diskUsage.touch(file);
+            if (diskUsage instanceof CacheFileUsage) {
+                ((CacheFileUsage) diskUsage).touch(file, ranges.cachedBytes());
+            } else {
+                diskUsage.touch(file);
+            }
         } catch (IOException e) {
-            throw new ProxyCacheException("Error opening " + file + " as disc cache", e);
+            throw new ProxyCacheException("Error touching " + file, e);
         }
     }
 
     @Override
-    public synchronized boolean isCompleted() {
-        return !isTempFile(file);
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * File channel is closed for all threads if thread using it is interrupted, so it is reopened unless cache is closed.
+     * Interrupted thread itself gets {@link InterruptedProxyCacheException}, other threads retry once.
+     */
+    private void recover(FileChannel failed, ClosedChannelException error, int attempt) throws ProxyCacheException {
+        if (closed || attempt > 0) {
+            throw new ProxyCacheException("Cache file " + file + " is closed", error);
+        }
+        synchronized (this) {
+            if (channel == failed && !closed) {
+                try {
+                    channel = openChannel(file, completed);
+                } catch (IOException e) {
+                    throw new ProxyCacheException("Error reopening cache file " + file, e);
+                }
+            }
+        }
+        if (error instanceof ClosedByInterruptException || Thread.currentThread().isInterrupted()) {
+            throw new InterruptedProxyCacheException("Access to cache file " + file + " is interrupted", error);
+        }
+    }
+
+    private static FileChannel openChannel(File file, boolean completed) throws IOException {
+        return new RandomAccessFile(file, completed ? "r" : "rw").getChannel();
     }
 
     /**
@@ -120,8 +320,16 @@ public class FileCache implements Cache {
         return file;
     }
 
-    private boolean isTempFile(File file) {
+    static boolean isTempFile(File file) {
         return file.getName().endsWith(TEMP_POSTFIX);
     }
 
+    /**
+     * Returns name of completed file for both completed and partially cached file.
+     */
+    static String getCompletedName(File file) {
+        String name = file.getName();
+        return isTempFile(file) ? name.substring(0, name.length() - TEMP_POSTFIX.length()) : name;
+    }
+
 }
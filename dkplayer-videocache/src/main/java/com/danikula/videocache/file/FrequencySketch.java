@@ -0,0 +1,86 @@
+package com.danikula.videocache.file;
+
+/**
+ * Count-Min sketch estimating how often keys are accessed, with 4-bit counters that are halved periodically,
+ * so frequencies reflect recent history. Keys are remembered after they are evicted from cache, it allows
+ * {@link LfuEvictionPolicy} to admit files that are used often but don't stay in cache for long.
+ * <p/>
+ * Not thread safe.
+ */
+final class FrequencySketch {
+
+    private static final int DEPTH = 4;
+    private static final int MAX_FREQUENCY = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0xb9f4a5c3, 0x85ebca6b, 0xc2b2ae35};
+
+    private final byte[] counters;
+    private final int width;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedKeysCount count of keys to be tracked, width of sketch is rounded up to power of two.
+     */
+    FrequencySketch(int expectedKeysCount) {
+        int width = 16;
+        while (width < expectedKeysCount && width < (1 << 24)) {
+            width <<= 1;
+        }
+        this.width = width;
+        this.counters = new byte[DEPTH * width];
+        this.sampleSize = 10 * width;
+    }
+
+    /**
+     * Increments frequency of key.
+     *
+     * @return {@code true} if all frequencies are halved (aged) by this increment.
+     */
+    boolean increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean incremented = false;
+        for (int row = 0; row < DEPTH; row++) {
+            int index = indexOf(hash, row);
+            if (counters[index] < MAX_FREQUENCY) {
+                counters[index]++;
+                incremented = true;
+            }
+        }
+        if (incremented && ++additions >= sampleSize) {
+            reset();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns estimated frequency of key, from {@code 0} to {@code 15}.
+     */
+    int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int frequency = MAX_FREQUENCY;
+        for (int row = 0; row < DEPTH; row++) {
+            frequency = Math.min(frequency, counters[indexOf(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private void reset() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] >>= 1;
+        }
+        additions /= 2;
+    }
+
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+        h ^= h >>> 16;
+        return row * width + (h & (width - 1));
+    }
+
+    private int spread(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,39 @@
+package com.danikula.videocache.file;
+
+/**
+ * {@link EvictionPolicy} implementing GDSF (Greedy Dual Size Frequency) strategy: file with the lowest
+ * {@code L + hits * cost / size} is evicted, where {@code L} is rank of the last evicted file. Small and often used
+ * files are kept longer than big ones, {@code L} ages files that were popular long ago.
+ * <p/>
+ * Cost of every file is {@code 1} by default, it maximizes count of requests served from cache. Override
+ * {@link #cost(long)} to change it, e.g. cost equal to size maximizes count of bytes served from cache.
+ */
+public class GdsfEvictionPolicy extends RankedEvictionPolicy {
+
+    private double inflation;
+
+    /**
+     * Returns cost of fetching file with given size from origin.
+     */
+    protected double cost(long size) {
+        return 1;
+    }
+
+    @Override
+    public void clear() {
+        inflation = 0;
+        super.clear();
+    }
+
+    @Override
+    double rank(Entry entry) {
+        return inflation + entry.hits * cost(entry.size) / Math.max(entry.size, 1);
+    }
+
+    @Override
+    void onRemove(Entry entry, boolean lowest) {
+        if (lowest) {
+            inflation = Math.max(inflation, entry.rank);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.danikula.videocache.file;
+
+/**
+ * {@link EvictionPolicy} that evicts the least frequently used file, the least recently used one among files with
+ * the same frequency.
+ * <p/>
+ * Frequencies are estimated by aging sketch (TinyLFU) that keeps history of evicted files too, so popular files don't
+ * lose their frequency after eviction and frequencies of files that are not used anymore decrease with time.
+ * If admission is enabled, just cached file is evicted first if it isn't used more often than file to be evicted
+ * otherwise, so files watched once don't push out files that are replayed.
+ */
+public class LfuEvictionPolicy extends RankedEvictionPolicy {
+
+    private static final int DEFAULT_EXPECTED_FILES_COUNT = 1024;
+
+    private final FrequencySketch sketch;
+    private final boolean admission;
+    private String candidate;
+
+    public LfuEvictionPolicy() {
+        this(DEFAULT_EXPECTED_FILES_COUNT, true);
+    }
+
+    /**
+     * @param expectedFilesCount count of files expected to be tracked (including already evicted ones).
+     * @param admission          {@code true} to evict new file first if it isn't more popular than existing one.
+     */
+    public LfuEvictionPolicy(int expectedFilesCount, boolean admission) {
+        if (expectedFilesCount <= 0) {
+            throw new IllegalArgumentException("Expected files count must be positive number!");
+        }
+        this.sketch = new FrequencySketch(expectedFilesCount);
+        this.admission = admission;
+    }
+
+    @Override
+    public void onAccess(String name, long size) {
+        boolean aged = sketch.increment(name);
+        candidate = get(name) == null ? name : null;
+        super.onAccess(name, size);
+        if (aged) {
+            rerank();
+        }
+    }
+
+    @Override
+    public void onRemove(String name) {
+        if (name.equals(candidate)) {
+            candidate = null;
+        }
+        super.onRemove(name);
+    }
+
+    @Override
+    public String victim() {
+        Entry lowest = lowest();
+        if (admission && candidate != null && lowest != null && !candidate.equals(lowest.name)) {
+            Entry newcomer = get(candidate);
+            if (newcomer.rank <= lowest.rank) {
+                return candidate;
+            }
+        }
+        return super.victim();
+    }
+
+    @Override
+    public void clear() {
+        candidate = null;
+        super.clear();
+    }
+
+    @Override
+    double rank(Entry entry) {
+        return sketch.frequency(entry.name);
+    }
+}
@@ -0,0 +1,31 @@
+package com.danikula.videocache.file;
+
+import java.util.LinkedHashMap;
+
+/**
+ * {@link EvictionPolicy} that evicts the least recently used file.
+ */
+public class LruEvictionPolicy implements EvictionPolicy {
+
+    private final LinkedHashMap<String, Boolean> files = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public void onAccess(String name, long size) {
+        files.put(name, Boolean.TRUE);
+    }
+
+    @Override
+    public void onRemove(String name) {
+        files.remove(name);
+    }
+
+    @Override
+    public String victim() {
+        return files.isEmpty() ? null : files.keySet().iterator().next();
+    }
+
+    @Override
+    public void clear() {
+        files.clear();
+    }
+}
@@ -0,0 +1,224 @@
+package com.danikula.videocache.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Memory-mapped windows of completed cache files, shared by all {@link FileCache}s of proxy.
+ * <p/>
+ * Completed file is read-only, so it is mapped by fixed-size windows and read without system call per chunk.
+ * Total size of mapped windows is limited, least recently used windows are unmapped when limit is exceeded.
+ * There is no way to unmap buffer explicitly, so window is unmapped by garbage collector when it isn't used anymore.
+ */
+public final class MappedFileWindows {
+
+    private static final int DEFAULT_WINDOW_SIZE = 1024 * 1024;
+
+    private final int windowSize;
+    private final long maxMappedBytes;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Window head = new Window(null, -1, null); // sentinel of LRU list, head.next is the most recently used
+    private long mappedBytes;
+    private long hitsCount;
+    private long mapsCount;
+    private long unmapsCount;
+
+    /**
+     * @param maxMappedBytes max total size of mapped windows, it should be at least 1 Mb.
+     */
+    public MappedFileWindows(long maxMappedBytes) {
+        this(maxMappedBytes, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * @param maxMappedBytes max total size of mapped windows.
+     * @param windowSize     size of every window in bytes, it can't exceed {@code maxMappedBytes}.
+     */
+    public MappedFileWindows(long maxMappedBytes, int windowSize) {
+        if (windowSize <= 0 || maxMappedBytes < windowSize) {
+            throw new IllegalArgumentException("Window size must be positive and not greater than max mapped size!");
+        }
+        this.maxMappedBytes = maxMappedBytes;
+        this.windowSize = windowSize;
+        head.previous = head;
+        head.next = head;
+    }
+
+    /**
+     * Copies data of completed file {@code key} with {@code offset} to the beginning of buffer, window containing
+     * offset is mapped if it is not mapped yet.
+     *
+     * @param fileLength length of completed file, windows mapped for file with other length are stale.
+     * @param channel    readable channel of file used for mapping.
+     * @return count of copied bytes, it doesn't exceed window's end, or {@code -1} if offset is beyond file's end.
+     */
+    int read(String key, long fileLength, FileChannel channel, long offset, byte[] buffer, int length) throws IOException {
+        if (offset >= fileLength) {
+            return -1;
+        }
+        ByteBuffer view = window(key, fileLength, channel, (int) (offset / windowSize));
+        int windowOffset = (int) (offset % windowSize);
+        int count = Math.min(length, view.limit() - windowOffset);
+        // page faults are handled while copying, it is done out of lock
+        view.position(windowOffset);
+        view.get(buffer, 0, count);
+        return count;
+    }
+
+    /**
+     * Writes data of completed file {@code key} with {@code offset} from window to channel.
+     *
+     * @return count of written bytes, it doesn't exceed window's end, or {@code -1} if offset is beyond file's end.
+     */
+    long transferTo(String key, long fileLength, FileChannel channel, long offset, long count, WritableByteChannel target) throws IOException {
+        if (offset >= fileLength) {
+            return -1;
+        }
+        ByteBuffer view = window(key, fileLength, channel, (int) (offset / windowSize));
+        int windowOffset = (int) (offset % windowSize);
+        view.limit((int) Math.min(view.limit(), windowOffset + count));
+        view.position(windowOffset);
+        return target.write(view);
+    }
+
+    /**
+     * Unmaps windows of file, e.g. if file is downloaded again.
+     */
+    synchronized void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            for (Window window : entry.windows) {
+                if (window != null) {
+                    unmap(window);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unmaps least recently used windows until total size of windows fits {@code maxBytes}.
+     */
+    public synchronized void trim(long maxBytes) {
+        while (mappedBytes > maxBytes && head.previous != head) {
+            Window eldest = head.previous;
+            Entry entry = entries.get(eldest.key);
+            entry.windows[eldest.index] = null;
+            if (--entry.mappedCount == 0) {
+                entries.remove(eldest.key);
+            }
+            unmap(eldest);
+        }
+    }
+
+    /**
+     * Returns total size of mapped windows.
+     */
+    public synchronized long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * Returns count of reads served by windows mapped before.
+     */
+    public synchronized long getHitsCount() {
+        return hitsCount;
+    }
+
+    /**
+     * Returns count of mapped windows, including unmapped ones.
+     */
+    public synchronized long getMapsCount() {
+        return mapsCount;
+    }
+
+    /**
+     * Returns count of windows unmapped because limit is exceeded, memory is trimmed or file is changed.
+     */
+    public synchronized long getUnmapsCount() {
+        return unmapsCount;
+    }
+
+    /**
+     * Returns independent view of window, so reads of different threads don't share position.
+     */
+    private synchronized ByteBuffer window(String key, long fileLength, FileChannel channel, int index) throws IOException {
+        Entry entry = entries.get(key);
+        if (entry != null && entry.fileLength != fileLength) {
+            remove(key);
+            entry = null;
+        }
+        Window window = entry == null ? null : entry.windows[index];
+        if (window != null) {
+            hitsCount++;
+            unlink(window);
+            link(window);
+        } else {
+            long position = (long) index * windowSize;
+            long size = Math.min(windowSize, fileLength - position);
+            trim(maxMappedBytes - size);
+            window = new Window(key, index, channel.map(FileChannel.MapMode.READ_ONLY, position, size));
+            entry = entries.get(key); // entry can be removed by trimming
+            if (entry == null) {
+                entry = new Entry(fileLength, (int) ((fileLength + windowSize - 1) / windowSize));
+                entries.put(key, entry);
+            }
+            entry.windows[index] = window;
+            entry.mappedCount++;
+            mappedBytes += size;
+            mapsCount++;
+            link(window);
+        }
+        return window.buffer.duplicate();
+    }
+
+    private void unmap(Window window) {
+        unlink(window);
+        mappedBytes -= window.buffer.capacity();
+        unmapsCount++;
+    }
+
+    private void link(Window window) {
+        window.previous = head;
+        window.next = head.next;
+        head.next.previous = window;
+        head.next = window;
+    }
+
+    private void unlink(Window window) {
+        window.previous.next = window.next;
+        window.next.previous = window.previous;
+        window.previous = null;
+        window.next = null;
+    }
+
+    private static final class Entry {
+
+        final long fileLength;
+        final Window[] windows;
+        int mappedCount;
+
+        Entry(long fileLength, int windowsCount) {
+            this.fileLength = fileLength;
+            this.windows = new Window[windowsCount];
+        }
+    }
+
+    private static final class Window {
+
+        final String key;
+        final int index;
+        final ByteBuffer buffer;
+        Window previous;
+        Window next;
+
+        Window(String key, int index, ByteBuffer buffer) {
+            this.key = key;
+            this.index = index;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.danikula.videocache.file;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory tier for beginnings of cache files, shared by all {@link FileCache}s of proxy.
+ * <p/>
+ * Data is kept in fixed-size blocks taken from pool, total size of blocks doesn't exceed budget. Only the first
+ * {@code maxBytesPerFile} bytes of every file are kept, so starts of recently played and preloaded media are
+ * served without reading disk. Every block holds data contiguously from its start. Data is always written to file
+ * too, so blocks of least recently used files are just dropped when budget is exhausted or memory is trimmed.
+ */
+public final class MemoryBlockCache {
+
+    private static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    private final int blockSize;
+    private final int blocksPerFile;
+    private final long maxBytesPerFile;
+    private final ArrayDeque<byte[]> freeBlocks = new ArrayDeque<>();
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxBytes;
+    private long allocatedBytes;
+    private long hitsCount;
+    private long missesCount;
+
+    /**
+     * @param maxBytes        max total size of memory blocks.
+     * @param maxBytesPerFile count of bytes from the beginning of every file to be kept in memory.
+     */
+    public MemoryBlockCache(long maxBytes, long maxBytesPerFile) {
+        this(maxBytes, maxBytesPerFile, DEFAULT_BLOCK_SIZE);
+    }
+
+    MemoryBlockCache(long maxBytes, long maxBytesPerFile, int blockSize) {
+        if (maxBytes <= 0 || maxBytesPerFile <= 0 || blockSize <= 0) {
+            throw new IllegalArgumentException("Memory cache sizes must be positive!");
+        }
+        this.maxBytes = maxBytes;
+        this.blockSize = blockSize;
+        this.blocksPerFile = (int) ((maxBytesPerFile + blockSize - 1) / blockSize);
+        this.maxBytesPerFile = (long) blocksPerFile * blockSize;
+    }
+
+    /**
+     * Copies data of file {@code key} with {@code offset} to the beginning of buffer.
+     *
+     * @return count of copied bytes, {@code 0} if data is not in memory.
+     */
+    synchronized int read(String key, long offset, byte[] buffer, int length) {
+        Block block = findBlock(key, offset);
+        if (block == null) {
+            missesCount += offset < maxBytesPerFile ? 1 : 0;
+            return 0;
+        }
+        hitsCount++;
+        int blockOffset = (int) (offset % blockSize);
+        int count = Math.min(length, block.filled - blockOffset);
+        System.arraycopy(block.data, blockOffset, buffer, 0, count);
+        return count;
+    }
+
+    /**
+     * Writes data of file {@code key} in memory channel, block isn't reused while it is written.
+     *
+     * @return count of written bytes or {@code -1} if data is not in memory.
+     */
+    long transferTo(String key, long offset, long count, WritableByteChannel target) throws IOException {
+        Block block;
+        int blockOffset = (int) (offset % blockSize);
+        int length;
+        synchronized (this) {
+            block = findBlock(key, offset);
+            if (block == null) {
+                missesCount += offset < maxBytesPerFile ? 1 : 0;
+                return -1;
+            }
+            hitsCount++;
+            block.pins++;
+            length = (int) Math.min(count, block.filled - blockOffset);
+        }
+        try {
+            return target.write(ByteBuffer.wrap(block.data, blockOffset, length));
+        } finally {
+            synchronized (this) {
+                block.pins--;
+            }
+        }
+    }
+
+    /**
+     * Keeps data of file {@code key} written with {@code offset} if it is at the beginning of file.
+     * Data that doesn't continue data of block is skipped.
+     */
+    synchronized void write(String key, long offset, byte[] data, int length) {
+        long end = Math.min(offset + length, maxBytesPerFile);
+        if (offset >= end) {
+            return;
+        }
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(blocksPerFile);
+            entries.put(key, entry);
+        }
+        long position = offset;
+        while (position < end) {
+            int index = (int) (position / blockSize);
+            int blockOffset = (int) (position % blockSize);
+            int count = (int) Math.min(end - position, blockSize - blockOffset);
+            Block block = entry.blocks[index];
+            if (block == null && blockOffset == 0) {
+                byte[] blockData = allocate(entry);
+                if (blockData == null) {
+                    break;
+                }
+                block = new Block(blockData);
+                entry.blocks[index] = block;
+            }
+            if (block != null && blockOffset <= block.filled) {
+                System.arraycopy(data, (int) (position - offset), block.data, blockOffset, count);
+                block.filled = Math.max(block.filled, blockOffset + count);
+            }
+            position += count;
+        }
+        if (entry.isEmpty()) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Drops data of file, e.g. if file is deleted.
+     */
+    synchronized void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            for (int i = 0; i < entry.blocks.length; i++) {
+                release(entry, i);
+            }
+        }
+    }
+
+    /**
+     * Drops blocks of least recently used files until total size of blocks fits {@code maxBytes}.
+     * Pool of free blocks is released at first.
+     */
+    public synchronized void trim(long maxBytes) {
+        while (allocatedBytes > maxBytes && !freeBlocks.isEmpty()) {
+            freeBlocks.poll();
+            allocatedBytes -= blockSize;
+        }
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (allocatedBytes > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            for (int i = entry.blocks.length - 1; i >= 0 && allocatedBytes > maxBytes; i--) {
+                release(entry, i);
+            }
+            while (!freeBlocks.isEmpty()) {
+                freeBlocks.poll();
+                allocatedBytes -= blockSize;
+            }
+            if (entry.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns total size of allocated blocks, including free blocks in pool.
+     */
+    public synchronized long getSize() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Returns count of reads served from memory.
+     */
+    public synchronized long getHitsCount() {
+        return hitsCount;
+    }
+
+    /**
+     * Returns count of reads of file beginnings that were not found in memory.
+     */
+    public synchronized long getMissesCount() {
+        return missesCount;
+    }
+
+    private Block findBlock(String key, long offset) {
+        if (offset >= maxBytesPerFile) {
+            return null;
+        }
+        Entry entry = entries.get(key);
+        Block block = entry == null ? null : entry.blocks[(int) (offset / blockSize)];
+        return block != null && block.filled > offset % blockSize ? block : null;
+    }
+
+    /**
+     * Takes block from pool, allocates new one while budget allows or reuses block of least recently used file.
+     */
+    private byte[] allocate(Entry requester) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (freeBlocks.isEmpty() && allocatedBytes + blockSize > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry == requester) {
+                continue;
+            }
+            // the last blocks are dropped first, beginning of file is the most valuable part
+            for (int i = entry.blocks.length - 1; i >= 0 && freeBlocks.isEmpty() && allocatedBytes + blockSize > maxBytes; i--) {
+                release(entry, i);
+            }
+            if (entry.isEmpty()) {
+                iterator.remove();
+            }
+        }
+        byte[] data = freeBlocks.poll();
+        if (data == null && allocatedBytes + blockSize <= maxBytes) {
+            allocatedBytes += blockSize;
+            data = new byte[blockSize];
+        }
+        return data;
+    }
+
+    private void release(Entry entry, int index) {
+        Block block = entry.blocks[index];
+        if (block == null) {
+            return;
+        }
+        entry.blocks[index] = null;
+        if (block.pins == 0) {
+            freeBlocks.push(block.data);
+        } else {
+            allocatedBytes -= blockSize; // block is written to channel now, it will be collected later
+        }
+    }
+
+    private static final class Entry {
+
+        final Block[] blocks;
+
+        Entry(int blocksCount) {
+            this.blocks = new Block[blocksCount];
+        }
+
+        boolean isEmpty() {
+            for (Block block : blocks) {
+                if (block != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Block {
+
+        final byte[] data;
+        int filled;
+        int pins;
+
+        Block(byte[] data) {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.danikula.videocache.file;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Base {@link EvictionPolicy} that evicts file with the lowest rank, the least recently used file is evicted
+ * among files with the same rank. All operations take {@code O(log n)}.
+ */
+abstract class RankedEvictionPolicy implements EvictionPolicy {
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final TreeSet<Entry> queue = new TreeSet<>(new RankComparator());
+    private long accessCount;
+
+    @Override
+    public void onAccess(String name, long size) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            entry = new Entry(name);
+            entries.put(name, entry);
+        } else {
+            queue.remove(entry);
+        }
+        entry.size = size;
+        entry.hits++;
+        entry.lastAccess = accessCount++;
+        entry.rank = rank(entry);
+        queue.add(entry);
+    }
+
+    @Override
+    public void onRemove(String name) {
+        Entry entry = entries.remove(name);
+        if (entry != null) {
+            boolean lowest = entry == queue.first();
+            queue.remove(entry);
+            onRemove(entry, lowest);
+        }
+    }
+
+    @Override
+    public String victim() {
+        return queue.isEmpty() ? null : queue.first().name;
+    }
+
+    @Override
+    public void clear() {
+        entries.clear();
+        queue.clear();
+    }
+
+    /**
+     * Returns rank of file, files with lower rank are evicted earlier.
+     */
+    abstract double rank(Entry entry);
+
+    /**
+     * Called after file is removed from queue.
+     *
+     * @param lowest {@code true} if file has the lowest rank, i.e. it is evicted.
+     */
+    void onRemove(Entry entry, boolean lowest) {
+    }
+
+    /**
+     * Recalculates ranks of all files, e.g. after aging of frequencies.
+     */
+    void rerank() {
+        List<Entry> all = new ArrayList<>(queue);
+        queue.clear();
+        for (Entry entry : all) {
+            entry.rank = rank(entry);
+            queue.add(entry);
+        }
+    }
+
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    Entry lowest() {
+        return queue.isEmpty() ? null : queue.first();
+    }
+
+    static final class Entry {
+
+        final String name;
+        long size;
+        int hits;
+        long lastAccess;
+        double rank;
+
+        Entry(String name) {
+            this.name = name;
+        }
+    }
+
+    private static final class RankComparator implements Comparator<Entry> {
+
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            int byRank = Double.compare(lhs.rank, rhs.rank);
+            return byRank != 0 ? byRank : (lhs.lastAccess < rhs.lastAccess ? -1 : (lhs.lastAccess == rhs.lastAccess ? 0 : 1));
+        }
+    }
+}
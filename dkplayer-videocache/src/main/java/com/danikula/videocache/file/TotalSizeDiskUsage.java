@@ -0,0 +1,28 @@
+package com.danikula.videocache.file;
+
+import java.io.File;
+
+/**
+ * {@link DiskUsage} that trims cache size to max size if needed, files to be deleted are chosen by {@link EvictionPolicy}.
+ */
+public class TotalSizeDiskUsage extends EvictingDiskUsage {
+
+    private final long maxSize;
+
+    /**
+     * @param maxSize max size of cache in bytes.
+     * @param policy  eviction policy, e.g. {@link LfuEvictionPolicy} or {@link GdsfEvictionPolicy}.
+     */
+    public TotalSizeDiskUsage(long maxSize, EvictionPolicy policy) {
+        super(policy);
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Max size must be positive number!");
+        }
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean accept(File file, long totalSize, int totalCount) {
+        return totalSize <= maxSize;
+    }
+}
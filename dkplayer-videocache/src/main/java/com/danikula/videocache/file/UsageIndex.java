@@ -0,0 +1,267 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory index of cache files with total size and count of indexed files. Files are ordered from the least to
+ * the most recently used, every access is reported to {@link EvictionPolicy} that chooses file to be evicted.
+ * <p/>
+ * Every change is appended to journal file in cache directory, so order is restored after restart without relying on
+ * files' modification dates. Directory is scanned only once when index is loaded: files missed in journal
+ * (e.g. cached by older versions) are treated as the least recently used ones, journal is compacted when it contains
+ * too many redundant records. Journal is flushed after every change, but never synced to not block on disk.
+ * <p/>
+ * Not thread safe, access must be synchronized by owner.
+ */
+final class UsageIndex {
+
+    static final String JOURNAL_NAME = "lru.journal";
+
+    private static final String JOURNAL_TEMP_POSTFIX = ".tmp";
+    private static final int VERSION = 1;
+    private static final byte TOUCH = 1;
+    private static final byte REMOVE = 2;
+    private static final int MIN_REDUNDANT_RECORDS_TO_COMPACT = 1000;
+
+    private final File directory;
+    private final File journalFile;
+    private final EvictionPolicy policy;
+    private final LinkedHashMap<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalSize;
+    private DataOutputStream journal;
+    private int redundantRecordsCount;
+
+    private UsageIndex(File directory, EvictionPolicy policy) {
+        this.directory = directory;
+        this.policy = policy;
+        this.journalFile = new File(directory, JOURNAL_NAME);
+    }
+
+    /**
+     * Loads index of files in directory, policy is cleared and then notified about all indexed files
+     * in usage order.
+     */
+    static UsageIndex load(File directory, EvictionPolicy policy) {
+        policy.clear();
+        UsageIndex index = new UsageIndex(directory, policy);
+        Map<String, Long> journaled = index.readJournal();
+        for (File file : Files.getLruListFiles(directory)) {
+            String name = file.getName();
+            if (file.isFile() && !isJournal(name) && !journaled.containsKey(name)) {
+                index.put(name, sizeOf(file));
+            }
+        }
+        for (String name : journaled.keySet()) {
+            File file = new File(directory, name);
+            if (file.isFile()) {
+                index.put(name, sizeOf(file));
+            }
+        }
+        index.compact();
+        return index;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Marks file as the most recently used one, file is added to index if it isn't indexed yet.
+     */
+    void touch(String name, long size) {
+        Long previous = put(name, size);
+        append(TOUCH, name, size, previous != null);
+    }
+
+    /**
+     * Removes file from index.
+     *
+     * @return size of removed file or {@code 0} if file isn't indexed.
+     */
+    long remove(String name) {
+        Long size = sizes.remove(name);
+        if (size == null) {
+            return 0;
+        }
+        totalSize -= size;
+        policy.onRemove(name);
+        append(REMOVE, name, 0, true);
+        return size;
+    }
+
+    /**
+     * Returns file to be evicted first or {@code null} if index is empty or all files are excluded.
+     */
+    String victim() {
+        return sizes.isEmpty() ? null : policy.victim();
+    }
+
+    /**
+     * Hides indexed file from policy, so it isn't returned as victim until {@link #restore(String)}.
+     * File is still counted in total size and count.
+     */
+    void exclude(String name) {
+        if (sizes.containsKey(name)) {
+            policy.onRemove(name);
+        }
+    }
+
+    /**
+     * Returns excluded file to policy as accessed one.
+     */
+    void restore(String name) {
+        Long size = sizes.get(name);
+        if (size != null) {
+            policy.onAccess(name, size);
+        }
+    }
+
+    /**
+     * Returns space taken by cache file: count of cached bytes for partially cached file that may be sparse,
+     * length for completed one.
+     */
+    static long sizeOf(File file) {
+        return FileCache.isTempFile(file) ? CachedRanges.load(file).cachedBytes() : file.length();
+    }
+
+    long getTotalSize() {
+        return totalSize;
+    }
+
+    int getTotalCount() {
+        return sizes.size();
+    }
+
+    private Long put(String name, long size) {
+        Long previous = sizes.put(name, size);
+        totalSize += size - (previous == null ? 0 : previous);
+        policy.onAccess(name, size);
+        return previous;
+    }
+
+    private Map<String, Long> readJournal() {
+        Map<String, Long> journaled = new LinkedHashMap<>(16, 0.75f, true);
+        if (!journalFile.exists()) {
+            return journaled;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+            if (in.readInt() != VERSION) {
+                throw new IOException("Unsupported journal version");
+            }
+            while (true) {
+                byte type = in.readByte();
+                String name = in.readUTF();
+                if (type == TOUCH) {
+                    journaled.put(name, in.readLong());
+                } else if (type == REMOVE) {
+                    journaled.remove(name);
+                } else {
+                    throw new IOException("Unknown journal record " + type);
+                }
+            }
+        } catch (EOFException e) {
+            // end of journal, last record may be written partially
+        } catch (IOException e) {
+            Logger.warn("Error reading journal " + journalFile + ", files are ordered by modification date");
+            journaled.clear();
+        } finally {
+            close(in);
+        }
+        return journaled;
+    }
+
+    private void append(byte type, String name, long size, boolean redundant) {
+        if (redundant) {
+            redundantRecordsCount++;
+        }
+        if (redundantRecordsCount >= MIN_REDUNDANT_RECORDS_TO_COMPACT && redundantRecordsCount >= sizes.size()) {
+            compact();
+            return;
+        }
+        if (journal == null) {
+            return;
+        }
+        try {
+            writeRecord(journal, type, name, size);
+            journal.flush();
+        } catch (IOException e) {
+            Logger.error("Error writing journal " + journalFile + ", it will be rewritten");
+            closeJournal();
+            compact();
+        }
+    }
+
+    /**
+     * Rewrites journal with the only record per indexed file.
+     */
+    private void compact() {
+        closeJournal();
+        redundantRecordsCount = 0;
+        File tempFile = new File(directory, JOURNAL_NAME + JOURNAL_TEMP_POSTFIX);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(VERSION);
+            for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+                writeRecord(out, TOUCH, entry.getKey(), entry.getValue());
+            }
+            out.close();
+            out = null;
+            if (!tempFile.renameTo(journalFile)) {
+                throw new IOException("Error renaming " + tempFile + " to " + journalFile);
+            }
+            journal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journalFile, true)));
+        } catch (IOException e) {
+            Logger.error("Error writing journal " + journalFile + ", usage order won't be persisted");
+        } finally {
+            close(out);
+        }
+    }
+
+    private void writeRecord(DataOutputStream out, byte type, String name, long size) throws IOException {
+        out.writeByte(type);
+        out.writeUTF(name);
+        if (type == TOUCH) {
+            out.writeLong(size);
+        }
+    }
+
+    private void closeJournal() {
+        close(journal);
+        journal = null;
+    }
+
+    private static boolean isJournal(String name) {
+        return name.startsWith(JOURNAL_NAME);
+    }
+
+    private static void close(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                Logger.error("Error closing journal");
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UsageIndex{files=" + sizes.size() + ", size=" + totalSize + "}";
+    }
+}
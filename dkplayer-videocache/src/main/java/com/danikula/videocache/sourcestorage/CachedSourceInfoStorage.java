@@ -0,0 +1,166 @@
+package com.danikula.videocache.sourcestorage;
+
+import com.danikula.videocache.Logger;
+import com.danikula.videocache.SourceInfo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.danikula.videocache.Preconditions.checkAllNotNull;
+import static com.danikula.videocache.Preconditions.checkNotNull;
+
+/**
+ * {@link SourceInfoStorage} that keeps recently used source infos in memory in front of database.
+ * <p/>
+ * Source infos put recently are loaded in background on creation, so usually source is created without waiting
+ * for database. Writes are applied to memory immediately, coalesced by url and flushed to database by batches
+ * in single transaction on background thread. Unchanged source infos are not written at all.
+ */
+class CachedSourceInfoStorage implements SourceInfoStorage {
+
+    private static final int DEFAULT_MAX_SIZE = 512;
+    private static final long FLUSH_DELAY_MS = 1000;
+    private static final SourceInfo ABSENT = new SourceInfo("", 0, "");
+
+    private final DatabaseSourceInfoStorage database;
+    private final ScheduledExecutorService databaseThread = Executors.newSingleThreadScheduledExecutor();
+    private final Map<String, SourceInfo> cache;
+    private Map<String, SourceInfo> pending = new LinkedHashMap<>();
+    private boolean flushScheduled;
+
+    CachedSourceInfoStorage(DatabaseSourceInfoStorage database) {
+        this(database, DEFAULT_MAX_SIZE);
+    }
+
+    CachedSourceInfoStorage(DatabaseSourceInfoStorage database, int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Max size must be positive number!");
+        }
+        this.database = checkNotNull(database);
+        this.cache = new LruMap(maxSize);
+        this.databaseThread.submit(new PreloadTask(maxSize));
+    }
+
+    @Override
+    public SourceInfo get(String url) {
+        checkNotNull(url);
+        synchronized (this) {
+            SourceInfo sourceInfo = pending.get(url);
+            sourceInfo = sourceInfo != null ? sourceInfo : cache.get(url);
+            if (sourceInfo != null) {
+                return sourceInfo == ABSENT ? null : sourceInfo;
+            }
+        }
+        SourceInfo sourceInfo = database.get(url); // not cached yet, rare case
+        synchronized (this) {
+            if (!cache.containsKey(url) && !pending.containsKey(url)) {
+                cache.put(url, sourceInfo == null ? ABSENT : sourceInfo);
+            }
+        }
+        return sourceInfo;
+    }
+
+    @Override
+    public synchronized void put(String url, SourceInfo sourceInfo) {
+        checkAllNotNull(url, sourceInfo);
+        SourceInfo cached = cache.put(url, sourceInfo);
+        if (cached != null && cached != ABSENT && isSame(cached, sourceInfo)) {
+            return;
+        }
+        pending.put(url, sourceInfo);
+        if (!flushScheduled) {
+            flushScheduled = true;
+            databaseThread.schedule(new FlushTask(), FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void release() {
+        databaseThread.submit(new ReleaseTask());
+        databaseThread.shutdown();
+    }
+
+    private void flush() {
+        Map<String, SourceInfo> batch;
+        synchronized (this) {
+            flushScheduled = false;
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new LinkedHashMap<>();
+        }
+        try {
+            database.putAll(batch);
+        } catch (RuntimeException e) {
+            Logger.error("Error saving " + batch.size() + " source infos: " + e);
+        }
+    }
+
+    private boolean isSame(SourceInfo first, SourceInfo second) {
+        return first.length == second.length && first.url.equals(second.url) &&
+                (first.mime == null ? second.mime == null : first.mime.equals(second.mime));
+    }
+
+    private static final class LruMap extends LinkedHashMap<String, SourceInfo> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        LruMap(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SourceInfo> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    private final class PreloadTask implements Runnable {
+
+        private final int limit;
+
+        PreloadTask(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Map<String, SourceInfo> recent = database.getRecent(limit);
+                synchronized (CachedSourceInfoStorage.this) {
+                    for (Map.Entry<String, SourceInfo> entry : recent.entrySet()) {
+                        if (!cache.containsKey(entry.getKey())) {
+                            cache.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+            } catch (RuntimeException e) {
+                Logger.error("Error loading source infos: " + e);
+            }
+        }
+    }
+
+    private final class FlushTask implements Runnable {
+
+        @Override
+        public void run() {
+            flush();
+        }
+    }
+
+    private final class ReleaseTask implements Runnable {
+
+        @Override
+        public void run() {
+            flush();
+            database.release();
+        }
+    }
+}
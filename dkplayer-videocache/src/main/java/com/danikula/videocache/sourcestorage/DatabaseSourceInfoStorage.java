@@ -1,18 +1,22 @@
 package com.danikula.videocache.sourcestorage;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
 import com.danikula.videocache.SourceInfo;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import static com.danikula.videocache.Preconditions.checkAllNotNull;
 import static com.danikula.videocache.Preconditions.checkNotNull;
 
 /**
- * Database based {@link SourceInfoStorage}.
+ * Database based {@link SourceInfoStorage}. Urls are indexed, so every operation takes one indexed query.
  *
  * @author Alexey Danilov (danikula@gmail.com).
  */
@@ -31,9 +35,17 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
                     COLUMN_MIME + " TEXT," +
                     COLUMN_LENGTH + " INTEGER" +
                     ");";
+    private static final String CREATE_URL_INDEX_SQL =
+            "CREATE UNIQUE INDEX " + TABLE + "_" + COLUMN_URL + " ON " + TABLE + " (" + COLUMN_URL + ");";
+    private static final String DELETE_DUPLICATES_SQL =
+            "DELETE FROM " + TABLE + " WHERE " + COLUMN_ID + " NOT IN " +
+                    "(SELECT MAX(" + COLUMN_ID + ") FROM " + TABLE + " GROUP BY " + COLUMN_URL + ");";
+    private static final String REPLACE_SQL =
+            "INSERT OR REPLACE INTO " + TABLE + " (" + COLUMN_URL + ", " + COLUMN_MIME + ", " + COLUMN_LENGTH + ") VALUES (?, ?, ?);";
+    private static final int VERSION_URL_INDEX = 2;
 
     DatabaseSourceInfoStorage(Context context) {
-        super(context, "AndroidVideoCache.db", null, 1);
+        super(context, "AndroidVideoCache.db", null, VERSION_URL_INDEX);
         checkNotNull(context);
     }
 
@@ -41,11 +53,16 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
     public void onCreate(SQLiteDatabase db) {
         checkNotNull(db);
         db.execSQL(CREATE_SQL);
+        db.execSQL(CREATE_URL_INDEX_SQL);
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        throw new IllegalStateException("Should not be called. There is no any migration");
+        if (oldVersion < VERSION_URL_INDEX) {
+            // older versions could insert the same url twice from different threads, keep the latest row
+            db.execSQL(DELETE_DUPLICATES_SQL);
+            db.execSQL(CREATE_URL_INDEX_SQL);
+        }
     }
 
     @Override
@@ -65,16 +82,59 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
     @Override
     public void put(String url, SourceInfo sourceInfo) {
         checkAllNotNull(url, sourceInfo);
-        SourceInfo sourceInfoFromDb = get(url);
-        boolean exist = sourceInfoFromDb != null;
-        ContentValues contentValues = convert(sourceInfo);
-        if (exist) {
-            getWritableDatabase().update(TABLE, contentValues, COLUMN_URL + "=?", new String[]{url});
-        } else {
-            getWritableDatabase().insert(TABLE, null, contentValues);
+        putAll(Collections.singletonMap(url, sourceInfo));
+    }
+
+    /**
+     * Inserts or replaces all source infos in single transaction.
+     */
+    void putAll(Map<String, SourceInfo> sourceInfos) {
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement statement = db.compileStatement(REPLACE_SQL);
+        db.beginTransaction();
+        try {
+            for (Map.Entry<String, SourceInfo> entry : sourceInfos.entrySet()) {
+                SourceInfo sourceInfo = entry.getValue();
+                statement.clearBindings();
+                statement.bindString(1, entry.getKey());
+                if (sourceInfo.mime == null) {
+                    statement.bindNull(2);
+                } else {
+                    statement.bindString(2, sourceInfo.mime);
+                }
+                statement.bindLong(3, sourceInfo.length);
+                statement.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
         }
     }
 
+    /**
+     * Returns source infos put most recently.
+     *
+     * @param limit max count of source infos to be returned.
+     * @return map from url to source info, ordered from the most recent one.
+     */
+    Map<String, SourceInfo> getRecent(int limit) {
+        Map<String, SourceInfo> result = new LinkedHashMap<>();
+        Cursor cursor = null;
+        try {
+            cursor = getReadableDatabase().query(TABLE, ALL_COLUMNS, null, null, null, null, COLUMN_ID + " DESC", String.valueOf(limit));
+            while (cursor != null && cursor.moveToNext()) {
+                SourceInfo sourceInfo = convert(cursor);
+                result.put(sourceInfo.url, sourceInfo);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return result;
+    }
+
     @Override
     public void release() {
         close();
@@ -87,12 +147,4 @@ class DatabaseSourceInfoStorage extends SQLiteOpenHelper implements SourceInfoSt
                 cursor.getString(cursor.getColumnIndexOrThrow(COLUMN_MIME))
         );
     }
-
-    private ContentValues convert(SourceInfo sourceInfo) {
-        ContentValues values = new ContentValues();
-        values.put(COLUMN_URL, sourceInfo.url);
-        values.put(COLUMN_LENGTH, sourceInfo.length);
-        values.put(COLUMN_MIME, sourceInfo.mime);
-        return values;
-    }
 }
@@ -10,7 +10,7 @@ import android.content.Context;
 public class SourceInfoStorageFactory {
 
     public static SourceInfoStorage newSourceInfoStorage(Context context) {
-        return new DatabaseSourceInfoStorage(context);
+        return new CachedSourceInfoStorage(new DatabaseSourceInfoStorage(context));
     }
 
     public static SourceInfoStorage newEmptySourceInfoStorage() {
@@ -0,0 +1,115 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.sourcestorage.SourceInfoStorageFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.net.HttpURLConnection;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.concurrent.Executor;
+
+/**
+ * Measurements of current thread and helpers for benchmarks run on JVM. Management classes are not available
+ * for android, so they are accessed by reflection.
+ * <p/>
+ * Benchmarks running proxy need JVM implementations of android classes used by proxy ({@code android.util.Log},
+ * {@code android.text.TextUtils}, {@code android.webkit.MimeTypeMap}) on classpath.
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    /**
+     * Returns bytes allocated by current thread or {@code -1} if JVM doesn't provide them.
+     */
+    public static long allocatedBytes() {
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(threadBean(), Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns cpu time of current thread in nanoseconds or {@code -1} if JVM doesn't provide it.
+     */
+    public static long cpuNanos() {
+        try {
+            Method method = Class.forName("java.lang.management.ThreadMXBean").getMethod("getCurrentThreadCpuTime");
+            return (Long) method.invoke(threadBean());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    private static Object threadBean() throws Exception {
+        return Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+    }
+
+    /**
+     * Returns builder of proxy that doesn't need {@code Context}: source info isn't stored and listeners are notified
+     * on caching thread.
+     */
+    public static HttpProxyCacheServer.Builder newProxyBuilder(File cacheRoot) {
+        return new HttpProxyCacheServer.Builder(cacheRoot, SourceInfoStorageFactory.newEmptySourceInfoStorage())
+                .cacheListenerExecutor(new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        command.run();
+                    }
+                });
+    }
+
+    /**
+     * Creates new empty temporary directory.
+     */
+    public static File newTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir()) {
+            throw new IOException("Error creating directory " + directory);
+        }
+        return directory;
+    }
+
+    public static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Opens connection bypassing system proxies, e.g. to local proxy.
+     */
+    public static HttpURLConnection open(String url) throws IOException {
+        return (HttpURLConnection) new URL(url).openConnection(Proxy.NO_PROXY);
+    }
+
+    /**
+     * Reads whole response body.
+     *
+     * @return count of read bytes.
+     */
+    public static long readFully(HttpURLConnection connection, byte[] buffer) throws IOException {
+        InputStream in = connection.getInputStream();
+        try {
+            long total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+            return total;
+        } finally {
+            in.close();
+            connection.disconnect();
+        }
+    }
+}
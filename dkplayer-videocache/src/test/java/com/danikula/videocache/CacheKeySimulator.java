@@ -0,0 +1,131 @@
+package com.danikula.videocache;
+
+import com.danikula.videocache.file.EvictionPolicy;
+import com.danikula.videocache.file.EvictionSimulator;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Replays trace of requested urls through {@link EvictionSimulator} twice: with urls as keys and with keys produced
+ * by {@link CacheKeyNormalizer}, so hit ratio improvement of normalization rules can be measured on real traces.
+ */
+public final class CacheKeySimulator {
+
+    private final CacheKeyNormalizer normalizer;
+    private final EvictionSimulator rawSimulator;
+    private final EvictionSimulator normalizedSimulator;
+    private final Set<String> urls = new HashSet<>();
+    private final Set<String> keys = new HashSet<>();
+
+    /**
+     * @param normalizer normalizer to be measured.
+     * @param maxSize    max size of cache in bytes.
+     */
+    public CacheKeySimulator(CacheKeyNormalizer normalizer, long maxSize) {
+        this.normalizer = Preconditions.checkNotNull(normalizer);
+        this.rawSimulator = new EvictionSimulator(maxSize);
+        this.normalizedSimulator = new EvictionSimulator(maxSize);
+    }
+
+    /**
+     * Adds request of url to trace.
+     *
+     * @param url  requested url.
+     * @param size size of content in bytes.
+     * @return this simulator.
+     */
+    public CacheKeySimulator access(String url, long size) {
+        String key = normalizer.normalize(url);
+        rawSimulator.access(url, size);
+        normalizedSimulator.access(key, size);
+        urls.add(url);
+        keys.add(key);
+        return this;
+    }
+
+    /**
+     * Reads trace with one request per line: {@code url size}, empty lines and lines starting with {@code #} are ignored.
+     *
+     * @param reader reader of trace, it is not closed.
+     * @return this simulator.
+     * @throws IOException if trace can't be read or has invalid line.
+     */
+    public CacheKeySimulator readTrace(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int separator = line.lastIndexOf(' ');
+            try {
+                access(line.substring(0, separator).trim(), Long.parseLong(line.substring(separator + 1)));
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid trace line `" + line + "`", e);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Replays trace with urls as keys and with normalized keys through policy.
+     */
+    public Result run(EvictionPolicy policy) {
+        EvictionSimulator.Result raw = rawSimulator.run(policy);
+        EvictionSimulator.Result normalized = normalizedSimulator.run(policy);
+        return new Result(raw, normalized, urls.size(), keys.size());
+    }
+
+    /**
+     * Result of replaying trace with urls as keys and with normalized keys.
+     */
+    public static final class Result {
+
+        private final EvictionSimulator.Result raw;
+        private final EvictionSimulator.Result normalized;
+        private final int urlsCount;
+        private final int keysCount;
+
+        private Result(EvictionSimulator.Result raw, EvictionSimulator.Result normalized, int urlsCount, int keysCount) {
+            this.raw = raw;
+            this.normalized = normalized;
+            this.urlsCount = urlsCount;
+            this.keysCount = keysCount;
+        }
+
+        /**
+         * Returns result of caching by urls, as proxy does without normalization.
+         */
+        public EvictionSimulator.Result getRaw() {
+            return raw;
+        }
+
+        public EvictionSimulator.Result getNormalized() {
+            return normalized;
+        }
+
+        /**
+         * Returns count of distinct urls in trace.
+         */
+        public int getUrlsCount() {
+            return urlsCount;
+        }
+
+        /**
+         * Returns count of distinct keys, i.e. cache files, of urls in trace.
+         */
+        public int getKeysCount() {
+            return keysCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("CacheKeySimulator.Result{urls=%d, keys=%d, raw=%s, normalized=%s}", urlsCount, keysCount, raw, normalized);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.danikula.videocache;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks rewriting of media and master playlists by {@link HlsPlaylist}: resolving of relative uris, rewriting of
+ * segments, keys, init sections and nested playlists, and lines that must be kept as is. It is run on JVM
+ * by {@link #main(String[])}, see {@link Benchmarks} for requirements, and exits with non-zero status if any check fails.
+ */
+public final class HlsPlaylistCheck {
+
+    private static final String BASE = "http://cdn.example.com/video/hls/";
+
+    private final HttpProxyCacheServer proxy;
+
+    private HlsPlaylistCheck(HttpProxyCacheServer proxy) {
+        this.proxy = proxy;
+    }
+
+    private void checkMediaPlaylist() throws ProxyCacheException {
+        String content = "#EXTM3U\r\n" +
+                "#EXT-X-VERSION:7\r\n" +
+                "#EXT-X-TARGETDURATION:4\r\n" +
+                "#EXT-X-KEY:METHOD=AES-128,URI=\"key.bin?token=1\",IV=0x1\r\n" +
+                "#EXT-X-MAP:URI=\"init.mp4\"\r\n" +
+                "\r\n" +
+                "#EXTINF:4.0,\r\n" +
+                "seg0.m4s\r\n" +
+                "# comment\r\n" +
+                "#EXTINF:4.0,title\r\n" +
+                "#EXT-X-BYTERANGE:1000@0\r\n" +
+                "  ../hls/seg1.m4s?token=a%20b  \r\n" +
+                "#EXTINF:4.0,\r\n" +
+                "https://other.example.com/seg2.m4s\r\n" +
+                "#EXT-X-ENDLIST\r\n";
+        HlsPlaylist playlist = HlsPlaylist.rewrite(content, BASE + "index.m3u8?token=1", proxy);
+        List<String> segments = Arrays.asList(BASE + "seg0.m4s", BASE + "seg1.m4s?token=a%20b", "https://other.example.com/seg2.m4s");
+        check(segments.equals(playlist.segments), "segments " + playlist.segments);
+        check(Collections.singletonList(BASE + "init.mp4").equals(playlist.initSections), "init sections " + playlist.initSections);
+        String expected = "#EXTM3U\n" +
+                "#EXT-X-VERSION:7\n" +
+                "#EXT-X-TARGETDURATION:4\n" +
+                "#EXT-X-KEY:METHOD=AES-128,URI=\"" + proxied(BASE + "key.bin?token=1") + "\",IV=0x1\n" +
+                "#EXT-X-MAP:URI=\"" + proxied(BASE + "init.mp4") + "\"\n" +
+                "\n" +
+                "#EXTINF:4.0,\n" +
+                proxied(segments.get(0)) + "\n" +
+                "# comment\n" +
+                "#EXTINF:4.0,title\n" +
+                "#EXT-X-BYTERANGE:1000@0\n" +
+                proxied(segments.get(1)) + "\n" +
+                "#EXTINF:4.0,\n" +
+                proxied(segments.get(2)) + "\n" +
+                "#EXT-X-ENDLIST\n";
+        checkBody(expected, playlist.body);
+    }
+
+    private void checkMasterPlaylist() throws ProxyCacheException {
+        String content = "#EXTM3U\n" +
+                "#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"aac\",NAME=\"en\",URI=\"audio/en.m3u8\"\n" +
+                "#EXT-X-STREAM-INF:BANDWIDTH=800000,AUDIO=\"aac\"\n" +
+                "low/index.m3u8\n" +
+                "#EXT-X-I-FRAME-STREAM-INF:BANDWIDTH=100000,URI=\"/iframes.m3u8\"\n" +
+                "#EXT-X-STREAM-INF:BANDWIDTH=2000000\n" +
+                "http://cdn2.example.com/high/index.m3u8";
+        HlsPlaylist playlist = HlsPlaylist.rewrite(content, BASE + "master.m3u8", proxy);
+        check(playlist.segments.isEmpty(), "variants aren't segments " + playlist.segments);
+        check(playlist.initSections.isEmpty(), "init sections " + playlist.initSections);
+        String expected = "#EXTM3U\n" +
+                "#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"aac\",NAME=\"en\",URI=\"" + proxied(BASE + "audio/en.m3u8") + "\"\n" +
+                "#EXT-X-STREAM-INF:BANDWIDTH=800000,AUDIO=\"aac\"\n" +
+                proxied(BASE + "low/index.m3u8") + "\n" +
+                "#EXT-X-I-FRAME-STREAM-INF:BANDWIDTH=100000,URI=\"" + proxied("http://cdn.example.com/iframes.m3u8") + "\"\n" +
+                "#EXT-X-STREAM-INF:BANDWIDTH=2000000\n" +
+                proxied("http://cdn2.example.com/high/index.m3u8") + "\n";
+        checkBody(expected, playlist.body);
+    }
+
+    private void checkMalformed() {
+        try {
+            HlsPlaylist.rewrite("#EXTM3U\n", "not a url", proxy);
+            throw new AssertionError("Malformed playlist url is accepted");
+        } catch (ProxyCacheException e) {
+            // expected
+        }
+    }
+
+    private static void checkPlaylistUrls() {
+        check(HlsPlaylist.isPlaylistUrl(BASE + "index.m3u8"), "playlist");
+        check(HlsPlaylist.isPlaylistUrl(BASE + "INDEX.M3U8?token=a.ts"), "playlist with query");
+        check(HlsPlaylist.isPlaylistUrl(BASE + "index.m3u8#t=10"), "playlist with fragment");
+        check(!HlsPlaylist.isPlaylistUrl(BASE + "seg0.ts?list=index.m3u8"), "segment with playlist in query");
+        check(!HlsPlaylist.isPlaylistUrl(BASE + "index.m3u8.ts"), "segment");
+    }
+
+    private String proxied(String url) {
+        return proxy.getProxyUrl(url, false);
+    }
+
+    private static void checkBody(String expected, String body) {
+        if (!expected.equals(body)) {
+            throw new AssertionError("Rewritten playlist:\n" + body + "\ninstead of:\n" + expected);
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        File cacheRoot = Benchmarks.newTempDirectory("hls-check");
+        HttpProxyCacheServer proxy = Benchmarks.newProxyBuilder(cacheRoot).hls(0).build();
+        int status = 0;
+        try {
+            HlsPlaylistCheck check = new HlsPlaylistCheck(proxy);
+            check.checkMediaPlaylist();
+            check.checkMasterPlaylist();
+            check.checkMalformed();
+            checkPlaylistUrls();
+            System.out.println("Playlists are rewritten correctly");
+        } catch (AssertionError e) {
+            System.out.println(e.getMessage());
+            status = 1;
+        } finally {
+            proxy.shutdown();
+            Benchmarks.delete(cacheRoot);
+        }
+        // disk usage of proxy keeps its worker thread, it isn't stopped by shutdown of proxy
+        System.exit(status);
+    }
+}
@@ -0,0 +1,112 @@
+package com.danikula.videocache;
+
+import java.util.Random;
+
+/**
+ * Compares throughput of reading whole source by {@link HttpUrlSource} with reading it by
+ * {@link ParallelHttpUrlSource} from origin limiting speed of every connection, like CDN throttling single streams.
+ * It is run on JVM by {@link #main(String[])}, see {@link Benchmarks} for requirements.
+ */
+public final class ParallelFetchBenchmark {
+
+    private final byte[] data;
+    private final long firstByteDelayMs;
+    private final long connectionBytesPerSecond;
+
+    /**
+     * @param data                     data of video.
+     * @param firstByteDelayMs         delay of origin before every response.
+     * @param connectionBytesPerSecond max speed of every connection to origin.
+     */
+    public ParallelFetchBenchmark(byte[] data, long firstByteDelayMs, long connectionBytesPerSecond) {
+        this.data = data;
+        this.firstByteDelayMs = firstByteDelayMs;
+        this.connectionBytesPerSecond = connectionBytesPerSecond;
+    }
+
+    /**
+     * Reads whole video from new origin.
+     *
+     * @param connectionsCount count of connections, {@code 1} for reading by {@link HttpUrlSource}.
+     */
+    public Result run(int connectionsCount) throws Exception {
+        ThrottledOrigin origin = new ThrottledOrigin(data, firstByteDelayMs, connectionBytesPerSecond, 0);
+        try {
+            HttpUrlSource httpSource = new HttpUrlSource(origin.getUrl("video.mp4"));
+            httpSource.length(); // source info is known before reading, as for partially cached video
+            Source source = connectionsCount > 1 ? new ParallelHttpUrlSource(httpSource, connectionsCount) : httpSource;
+            byte[] buffer = new byte[ProxyCacheUtils.DEFAULT_BUFFER_SIZE];
+            long started = System.nanoTime();
+            long firstByteNanos = -1;
+            long total = 0;
+            source.open(0);
+            try {
+                int read;
+                while ((read = source.read(buffer)) != -1) {
+                    if (firstByteNanos < 0) {
+                        firstByteNanos = System.nanoTime() - started;
+                    }
+                    total += read;
+                }
+            } finally {
+                source.close();
+            }
+            if (total != data.length) {
+                throw new IllegalStateException("Read " + total + " bytes instead of " + data.length);
+            }
+            String name = connectionsCount > 1 ? "parallel x" + connectionsCount : "single";
+            return new Result(name, total, firstByteNanos / 1000000, (System.nanoTime() - started) / 1000000);
+        } finally {
+            origin.stop();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int connectionsCount = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        long connectionBytesPerSecond = args.length > 1 ? Long.parseLong(args[1]) : 1024 * 1024;
+        byte[] data = new byte[8 * 1024 * 1024];
+        new Random(connectionsCount).nextBytes(data);
+        ParallelFetchBenchmark benchmark = new ParallelFetchBenchmark(data, 50, connectionBytesPerSecond);
+        for (int round = 0; round < 3; round++) {
+            System.out.println(benchmark.run(1) + " " + benchmark.run(connectionsCount));
+        }
+    }
+
+    /**
+     * Timings of reading video by one of sources.
+     */
+    public static final class Result {
+
+        private final String name;
+        private final long bytes;
+        private final long firstByteMs;
+        private final long totalMs;
+
+        private Result(String name, long bytes, long firstByteMs, long totalMs) {
+            this.name = name;
+            this.bytes = bytes;
+            this.firstByteMs = firstByteMs;
+            this.totalMs = totalMs;
+        }
+
+        public long getFirstByteMs() {
+            return firstByteMs;
+        }
+
+        public long getTotalMs() {
+            return totalMs;
+        }
+
+        /**
+         * Returns throughput in kilobytes per second.
+         */
+        public long getThroughput() {
+            return totalMs == 0 ? 0 : bytes * 1000 / 1024 / totalMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s{first byte %d ms, total %d ms, %d KB/s}", name, firstByteMs, totalMs, getThroughput());
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.danikula.videocache;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures playback competing with preloads for slow network: preloads of several videos are started, then player
+ * requests another video and reads it to the end. Origin limits speed of all connections together, like constrained
+ * link of device. It compares proxy that pauses preloads while player's buffer is low ({@link DownloadScheduler})
+ * with proxy fetching all sources at once. It is run on JVM by {@link #main(String[])}, see {@link Benchmarks}
+ * for requirements.
+ */
+public final class PreloadContentionBenchmark {
+
+    private static final long PRELOADS_HEAD_START_MS = 500;
+
+    private final byte[] data;
+    private final int preloadsCount;
+    private final long totalBytesPerSecond;
+
+    /**
+     * @param data                data of every video.
+     * @param preloadsCount       count of videos preloaded while player reads its video.
+     * @param totalBytesPerSecond max speed of all connections to origin together.
+     */
+    public PreloadContentionBenchmark(byte[] data, int preloadsCount, long totalBytesPerSecond) {
+        this.data = data;
+        this.preloadsCount = preloadsCount;
+        this.totalBytesPerSecond = totalBytesPerSecond;
+    }
+
+    /**
+     * Runs player against new proxy with empty cache.
+     *
+     * @param scheduled {@code true} to pause preloads while player's buffer is low, {@code false} to fetch all
+     *                  sources at once.
+     */
+    public Result run(boolean scheduled) throws Exception {
+        File cacheRoot = Benchmarks.newTempDirectory("contention-benchmark");
+        ThrottledOrigin origin = new ThrottledOrigin(data, 50, 0, totalBytesPerSecond);
+        HttpProxyCacheServer.Builder builder = Benchmarks.newProxyBuilder(cacheRoot);
+        if (!scheduled) {
+            builder.maxConcurrentDownloads(Integer.MAX_VALUE, 0);
+        }
+        HttpProxyCacheServer proxy = builder.build();
+        List<PreloadHandle> preloads = new ArrayList<>(preloadsCount);
+        try {
+            for (int i = 0; i < preloadsCount; i++) {
+                preloads.add(proxy.preload(origin.getUrl("preload" + i + ".mp4"), data.length, HttpProxyCacheServer.PRIORITY_FAR_PRELOAD));
+            }
+            Thread.sleep(PRELOADS_HEAD_START_MS);
+            long servedBefore = origin.getServedBytes();
+            long started = System.nanoTime();
+            HttpURLConnection connection = Benchmarks.open(proxy.getProxyUrl(origin.getUrl("video.mp4")));
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IllegalStateException("Unexpected response " + connection.getResponseCode());
+            }
+            long headersMs = (System.nanoTime() - started) / 1000000;
+            long length = Benchmarks.readFully(connection, new byte[8192]);
+            long totalMs = (System.nanoTime() - started) / 1000000;
+            if (length != data.length) {
+                throw new IllegalStateException("Read " + length + " bytes instead of " + data.length);
+            }
+            // bytes are counted when they are sent by origin, so they can exceed played bytes by bytes in flight
+            long preloadedBytes = Math.max(0, origin.getServedBytes() - servedBefore - length);
+            return new Result(scheduled ? "scheduled" : "unscheduled", headersMs, totalMs, length, preloadedBytes);
+        } finally {
+            for (PreloadHandle preload : preloads) {
+                preload.cancel();
+            }
+            proxy.shutdown();
+            origin.stop();
+            Benchmarks.delete(cacheRoot);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int preloadsCount = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        long totalBytesPerSecond = args.length > 1 ? Long.parseLong(args[1]) : 4 * 1024 * 1024;
+        byte[] data = new byte[8 * 1024 * 1024];
+        new Random(preloadsCount).nextBytes(data);
+        PreloadContentionBenchmark benchmark = new PreloadContentionBenchmark(data, preloadsCount, totalBytesPerSecond);
+        for (int round = 0; round < 3; round++) {
+            System.out.println(benchmark.run(false) + " " + benchmark.run(true));
+        }
+        // disk usage of every proxy keeps its worker thread, it isn't stopped by shutdown of proxy
+        System.exit(0);
+    }
+
+    /**
+     * Timings of player served by proxy in one of modes.
+     */
+    public static final class Result {
+
+        private final String mode;
+        private final long headersMs;
+        private final long totalMs;
+        private final long playedBytes;
+        private final long preloadedBytes;
+
+        private Result(String mode, long headersMs, long totalMs, long playedBytes, long preloadedBytes) {
+            this.mode = mode;
+            this.headersMs = headersMs;
+            this.totalMs = totalMs;
+            this.playedBytes = playedBytes;
+            this.preloadedBytes = preloadedBytes;
+        }
+
+        public long getHeadersMs() {
+            return headersMs;
+        }
+
+        public long getTotalMs() {
+            return totalMs;
+        }
+
+        /**
+         * Returns throughput of player in kilobytes per second.
+         */
+        public long getThroughput() {
+            return totalMs == 0 ? 0 : playedBytes * 1000 / 1024 / totalMs;
+        }
+
+        /**
+         * Returns count of bytes sent by origin for preloads while player read its video.
+         */
+        public long getPreloadedBytes() {
+            return preloadedBytes;
+        }
+
+        @Override
+        public String toString() {
+            String format = "%s{headers %d ms, total %d ms, %d KB/s, preloaded meanwhile %d KB}";
+            return String.format(format, mode, headersMs, totalMs, getThroughput(), preloadedBytes / 1024);
+        }
+    }
+}
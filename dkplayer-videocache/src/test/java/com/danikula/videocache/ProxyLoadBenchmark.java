@@ -0,0 +1,152 @@
+package com.danikula.videocache;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Load test of proxy: many players request different not cached videos at once from origin with slow first byte, and
+ * time to response headers and to whole body is measured for every player. It compares blocking mode, where every
+ * connection occupies thread of bounded pool, with non-blocking mode. It is run on JVM by {@link #main(String[])},
+ * see {@link Benchmarks} for requirements.
+ */
+public final class ProxyLoadBenchmark {
+
+    private final byte[] data;
+    private final int clientsCount;
+    private final long firstByteDelayMs;
+
+    /**
+     * @param data             data of every video.
+     * @param clientsCount     count of players requesting videos at once.
+     * @param firstByteDelayMs delay of origin before every response.
+     */
+    public ProxyLoadBenchmark(byte[] data, int clientsCount, long firstByteDelayMs) {
+        this.data = data;
+        this.clientsCount = clientsCount;
+        this.firstByteDelayMs = firstByteDelayMs;
+    }
+
+    /**
+     * Runs players against new proxy with empty cache.
+     *
+     * @param nioSelectorsCount count of selectors, {@code 0} for blocking mode.
+     */
+    public Result run(int nioSelectorsCount) throws Exception {
+        File cacheRoot = Benchmarks.newTempDirectory("load-benchmark");
+        ThrottledOrigin origin = new ThrottledOrigin(data, firstByteDelayMs, 0, 0);
+        final HttpProxyCacheServer proxy = Benchmarks.newProxyBuilder(cacheRoot).nioSelectors(nioSelectorsCount).build();
+        ExecutorService players = Executors.newFixedThreadPool(clientsCount);
+        try {
+            final CountDownLatch startSignal = new CountDownLatch(1);
+            List<Future<long[]>> results = new ArrayList<>(clientsCount);
+            for (int i = 0; i < clientsCount; i++) {
+                final String url = proxy.getProxyUrl(origin.getUrl("video" + i + ".mp4"));
+                results.add(players.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() throws Exception {
+                        startSignal.await();
+                        return play(url);
+                    }
+                }));
+            }
+            long started = System.nanoTime();
+            startSignal.countDown();
+            long[] headersMs = new long[clientsCount];
+            long[] bodyMs = new long[clientsCount];
+            for (int i = 0; i < clientsCount; i++) {
+                long[] timings = results.get(i).get();
+                headersMs[i] = timings[0];
+                bodyMs[i] = timings[1];
+            }
+            long totalMs = (System.nanoTime() - started) / 1000000;
+            String mode = nioSelectorsCount > 0 ? "nio" : "blocking";
+            return new Result(mode, headersMs, bodyMs, totalMs);
+        } finally {
+            players.shutdownNow();
+            proxy.shutdown();
+            origin.stop();
+            Benchmarks.delete(cacheRoot);
+        }
+    }
+
+    /**
+     * Returns time to response headers and time to the end of body in milliseconds.
+     */
+    private long[] play(String url) throws Exception {
+        long started = System.nanoTime();
+        HttpURLConnection connection = Benchmarks.open(url);
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IllegalStateException("Unexpected response " + connection.getResponseCode() + " for " + url);
+        }
+        long headers = System.nanoTime();
+        long length = Benchmarks.readFully(connection, new byte[8192]);
+        if (length != data.length) {
+            throw new IllegalStateException("Read " + length + " bytes instead of " + data.length + " for " + url);
+        }
+        return new long[]{(headers - started) / 1000000, (System.nanoTime() - started) / 1000000};
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clientsCount = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        long firstByteDelayMs = args.length > 1 ? Long.parseLong(args[1]) : 300;
+        byte[] data = new byte[256 * 1024];
+        new Random(clientsCount).nextBytes(data);
+        ProxyLoadBenchmark benchmark = new ProxyLoadBenchmark(data, clientsCount, firstByteDelayMs);
+        for (int round = 0; round < 3; round++) {
+            System.out.println(benchmark.run(0) + " " + benchmark.run(2));
+        }
+        // disk usage of every proxy keeps its worker thread, it isn't stopped by shutdown of proxy
+        System.exit(0);
+    }
+
+    /**
+     * Timings of players served by proxy in one of modes.
+     */
+    public static final class Result {
+
+        private final String mode;
+        private final long[] headersMs;
+        private final long[] bodyMs;
+        private final long totalMs;
+
+        private Result(String mode, long[] headersMs, long[] bodyMs, long totalMs) {
+            this.mode = mode;
+            this.headersMs = headersMs.clone();
+            this.bodyMs = bodyMs.clone();
+            this.totalMs = totalMs;
+            Arrays.sort(this.headersMs);
+            Arrays.sort(this.bodyMs);
+        }
+
+        public long getMedianHeadersMs() {
+            return headersMs[headersMs.length / 2];
+        }
+
+        public long getMaxHeadersMs() {
+            return headersMs[headersMs.length - 1];
+        }
+
+        public long getMaxBodyMs() {
+            return bodyMs[bodyMs.length - 1];
+        }
+
+        public long getTotalMs() {
+            return totalMs;
+        }
+
+        @Override
+        public String toString() {
+            String format = "%s{headers median %d ms, max %d ms, body max %d ms, total %d ms}";
+            return String.format(format, mode, getMedianHeadersMs(), getMaxHeadersMs(), getMaxBodyMs(), totalMs);
+        }
+    }
+}
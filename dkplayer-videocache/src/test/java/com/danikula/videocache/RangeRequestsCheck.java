@@ -0,0 +1,210 @@
+package com.danikula.videocache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks responses of proxy for range requests: suffix ranges, overlapping and out of order ranges, not satisfiable
+ * ranges and {@code multipart/byteranges} bodies. Requests are sent by raw socket, so response is checked byte
+ * by byte, both in blocking and non-blocking mode. It is run on JVM by {@link #main(String[])}, see {@link Benchmarks}
+ * for requirements, and exits with non-zero status if any check fails.
+ */
+public final class RangeRequestsCheck {
+
+    private static final int LENGTH = 10000;
+
+    private final byte[] data;
+    private final ThrottledOrigin origin;
+    private final HttpProxyCacheServer proxy;
+    private final File cacheRoot;
+    private int requestsCount;
+
+    private RangeRequestsCheck(byte[] data, int nioSelectorsCount) throws IOException {
+        this.data = data;
+        this.origin = new ThrottledOrigin(data, 0, 0, 0);
+        this.cacheRoot = Benchmarks.newTempDirectory("range-check");
+        this.proxy = Benchmarks.newProxyBuilder(cacheRoot).nioSelectors(nioSelectorsCount).build();
+    }
+
+    private void checkAll() throws IOException {
+        // the first request of every video is served before source info is known
+        checkSingle("bytes=-20000", 0, LENGTH);
+        checkSingle("bytes=-100", LENGTH - 100, LENGTH);
+        checkSingle("bytes=9990-20000", 9990, LENGTH);
+        checkSingle("bytes=0-99,50-199", 0, 200);
+        checkSingle("bytes=100-199,0-99", 0, 200);
+        checkSingle("bytes=500-599,0-99,50-549", 0, 600);
+        checkSingle("bytes=20000-,0-9", 0, 10);
+        checkNotSatisfiable("bytes=20000-");
+        checkNotSatisfiable("bytes=10000-10005");
+        checkNotSatisfiable("bytes=-0");
+        checkMultipart("bytes=500-599,0-99", new long[]{500, 600, 0, 100});
+        checkMultipart("bytes=0-9,100-109,9990-", new long[]{0, 10, 100, 110, 9990, LENGTH});
+        checkMultipart("bytes=-10,0-9", new long[]{LENGTH - 10, LENGTH, 0, 10});
+    }
+
+    private void checkSingle(String range, long start, long end) throws IOException {
+        Response response = request(range);
+        check(response.status == 206, range + ": status " + response.status);
+        String contentRange = String.format(Locale.US, "bytes %d-%d/%d", start, end - 1, LENGTH);
+        check(contentRange.equals(response.headers.get("content-range")), range + ": " + response.headers);
+        checkContentLength(range, response);
+        check(Arrays.equals(Arrays.copyOfRange(data, (int) start, (int) end), response.body), range + ": wrong body");
+    }
+
+    private void checkNotSatisfiable(String range) throws IOException {
+        Response response = request(range);
+        check(response.status == 416, range + ": status " + response.status);
+        check(("bytes */" + LENGTH).equals(response.headers.get("content-range")), range + ": " + response.headers);
+        checkContentLength(range, response);
+        check(response.body.length == 0, range + ": body " + response.body.length);
+    }
+
+    private void checkMultipart(String range, long[] parts) throws IOException {
+        Response response = request(range);
+        check(response.status == 206, range + ": status " + response.status);
+        checkContentLength(range, response);
+        String contentType = response.headers.get("content-type");
+        String boundaryPrefix = "multipart/byteranges; boundary=";
+        check(contentType != null && contentType.startsWith(boundaryPrefix), range + ": " + response.headers);
+        String boundary = contentType.substring(boundaryPrefix.length());
+        int position = 0;
+        for (int i = 0; i < parts.length; i += 2) {
+            String delimiter = "\r\n--" + boundary + "\r\n";
+            check(startsWith(response.body, position, delimiter), range + ": no delimiter of part " + i / 2);
+            position += delimiter.length();
+            int headersEnd = indexOf(response.body, position, "\r\n\r\n");
+            check(headersEnd > 0, range + ": no headers end of part " + i / 2);
+            String partHeaders = new String(response.body, position, headersEnd - position, "US-ASCII");
+            String contentRange = String.format(Locale.US, "Content-Range: bytes %d-%d/%d", parts[i], parts[i + 1] - 1, LENGTH);
+            check(partHeaders.contains(contentRange), range + ": part headers " + partHeaders);
+            position = headersEnd + 4;
+            int partLength = (int) (parts[i + 1] - parts[i]);
+            check(position + partLength <= response.body.length, range + ": short part " + i / 2);
+            byte[] expected = Arrays.copyOfRange(data, (int) parts[i], (int) parts[i + 1]);
+            check(Arrays.equals(expected, Arrays.copyOfRange(response.body, position, position + partLength)), range + ": wrong part " + i / 2);
+            position += partLength;
+        }
+        String closing = "\r\n--" + boundary + "--\r\n";
+        check(startsWith(response.body, position, closing), range + ": no closing delimiter");
+        check(position + closing.length() == response.body.length, range + ": data after closing delimiter");
+    }
+
+    private void checkContentLength(String range, Response response) {
+        String contentLength = response.headers.get("content-length");
+        check(String.valueOf(response.body.length).equals(contentLength), range + ": body " + response.body.length + ", headers " + response.headers);
+    }
+
+    private Response request(String range) throws IOException {
+        // every request is sent for new video, so it is also served before source info is known
+        URL url = new URL(proxy.getProxyUrl(origin.getUrl("video" + requestsCount++ + ".mp4"), false));
+        Socket socket = new Socket(url.getHost(), url.getPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            String request = "GET " + url.getFile() + " HTTP/1.1\r\nHost: " + url.getAuthority() + "\r\nRange: " + range + "\r\nConnection: close\r\n\r\n";
+            out.write(request.getBytes("US-ASCII"));
+            out.flush();
+            return Response.read(socket.getInputStream());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void close() {
+        proxy.shutdown();
+        origin.stop();
+        Benchmarks.delete(cacheRoot);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, String prefix) {
+        return indexOf(bytes, offset, prefix) == offset;
+    }
+
+    private static int indexOf(byte[] bytes, int offset, String string) {
+        byte[] pattern = string.getBytes();
+        for (int i = offset; i <= bytes.length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && bytes[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) throws Exception {
+        byte[] data = new byte[LENGTH];
+        new Random(LENGTH).nextBytes(data);
+        int status = 0;
+        for (int nioSelectorsCount : new int[]{0, 1}) {
+            String mode = nioSelectorsCount > 0 ? "nio" : "blocking";
+            RangeRequestsCheck check = new RangeRequestsCheck(data, nioSelectorsCount);
+            try {
+                check.checkAll();
+                System.out.println(mode + ": " + check.requestsCount + " requests are served correctly");
+            } catch (AssertionError e) {
+                System.out.println(mode + ": " + e.getMessage());
+                status = 1;
+            } finally {
+                check.close();
+            }
+        }
+        // disk usage of every proxy keeps its worker thread, it isn't stopped by shutdown of proxy
+        System.exit(status);
+    }
+
+    /**
+     * Response read up to closing of connection.
+     */
+    private static final class Response {
+
+        final int status;
+        final Map<String, String> headers;
+        final byte[] body;
+
+        private Response(int status, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        static Response read(InputStream in) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            byte[] response = bytes.toByteArray();
+            // proxy ends header lines by "\n"
+            int headersEnd = indexOf(response, 0, "\n\n");
+            check(headersEnd > 0, "No headers end in response of " + response.length + " bytes");
+            String[] lines = new String(response, 0, headersEnd, "US-ASCII").split("\r?\n");
+            int status = Integer.parseInt(lines[0].split(" ")[1]);
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US), lines[i].substring(colon + 1).trim());
+            }
+            return new Response(status, headers, Arrays.copyOfRange(response, headersEnd + 2, response.length));
+        }
+    }
+}
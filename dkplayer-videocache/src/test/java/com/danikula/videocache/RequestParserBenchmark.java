@@ -0,0 +1,124 @@
+package com.danikula.videocache;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares latency and allocations of parsing proxy requests by {@link RequestParser} with parsing by lines and
+ * regular expressions, as proxy did before. It is run on JVM by {@link #main(String[])}.
+ * <p/>
+ * Allocated bytes are {@code -1} if JVM doesn't provide them, see {@link Benchmarks#allocatedBytes()}.
+ */
+public final class RequestParserBenchmark {
+
+    private static final Pattern RANGE_HEADER_PATTERN = Pattern.compile("[R,r]ange:[ ]?bytes=(\\d*)-");
+    private static final Pattern URL_PATTERN = Pattern.compile("GET /(.*) HTTP");
+
+    private final byte[] request;
+    private final int iterations;
+
+    /**
+     * @param request    bytes of request including empty line after headers.
+     * @param iterations count of parsed requests per run.
+     */
+    public RequestParserBenchmark(byte[] request, int iterations) {
+        this.request = request;
+        this.iterations = iterations;
+    }
+
+    /**
+     * Parses request by {@link GetRequest#read(InputStream, ByteBuffer)} with buffer reused for all requests.
+     */
+    public Result runBytes() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ProxyCacheUtils.DEFAULT_BUFFER_SIZE);
+        long allocated = Benchmarks.allocatedBytes();
+        long started = System.nanoTime();
+        long checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            GetRequest getRequest = GetRequest.read(new ByteArrayInputStream(request), buffer);
+            checksum += getRequest.uri.length() + getRequest.rangeOffset;
+        }
+        return new Result("bytes", iterations, System.nanoTime() - started, Benchmarks.allocatedBytes() - allocated, checksum);
+    }
+
+    /**
+     * Parses request by lines and regular expressions.
+     */
+    public Result runLines() throws IOException {
+        long allocated = Benchmarks.allocatedBytes();
+        long started = System.nanoTime();
+        long checksum = 0;
+        for (int i = 0; i < iterations; i++) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(request), "UTF-8"));
+            StringBuilder stringRequest = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                stringRequest.append(line).append('\n');
+            }
+            Matcher url = URL_PATTERN.matcher(stringRequest);
+            Matcher range = RANGE_HEADER_PATTERN.matcher(stringRequest);
+            checksum += (url.find() ? url.group(1).length() : 0) + (range.find() ? Long.parseLong(range.group(1)) : 0);
+        }
+        return new Result("lines", iterations, System.nanoTime() - started, Benchmarks.allocatedBytes() - allocated, checksum);
+    }
+
+    public static void main(String[] args) throws IOException {
+        StringBuilder url = new StringBuilder("http://cdn.example.com/videos/clip.mp4?expires=1700000000&signature=");
+        int urlLength = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+        while (url.length() < urlLength) {
+            url.append("0123456789abcdef");
+        }
+        String request = "GET /" + ProxyCacheUtils.encode(url.toString()) + " HTTP/1.1\r\n" +
+                "User-Agent: stagefright/1.2 (Linux;Android 9)\r\n" +
+                "Host: 127.0.0.1:45678\r\n" +
+                "Connection: Keep-Alive\r\n" +
+                "Accept-Encoding: gzip\r\n" +
+                "Range: bytes=1048576-\r\n\r\n";
+        RequestParserBenchmark benchmark = new RequestParserBenchmark(request.getBytes("UTF-8"), 100000);
+        for (int round = 0; round < 5; round++) {
+            System.out.println(benchmark.runLines() + " " + benchmark.runBytes());
+        }
+    }
+
+    /**
+     * Result of parsing requests by one of ways.
+     */
+    public static final class Result {
+
+        private final String name;
+        private final int count;
+        private final long nanos;
+        private final long allocatedBytes;
+        private final long checksum;
+
+        private Result(String name, int count, long nanos, long allocatedBytes, long checksum) {
+            this.name = name;
+            this.count = count;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+            this.checksum = checksum;
+        }
+
+        public long getNanosPerRequest() {
+            return count == 0 ? 0 : nanos / count;
+        }
+
+        /**
+         * Returns bytes allocated per request or {@code -1} if it is unknown.
+         */
+        public long getAllocatedBytesPerRequest() {
+            return count == 0 || allocatedBytes < 0 ? -1 : allocatedBytes / count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s{%d ns, %d bytes per request, checksum=%d}", name, getNanosPerRequest(), getAllocatedBytesPerRequest(), checksum);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.danikula.videocache;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal http server on loopback interface serving the same data for every path, used by benchmarks as slow origin.
+ * Every response is delayed before the first byte, and data is sent with limited speed of every connection and of all
+ * connections together, like through constrained link. Range requests are supported, connections are not reused.
+ */
+public final class ThrottledOrigin {
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("[Rr]ange: ?bytes=(\\d+)-(\\d*)");
+    private static final int CHUNK_SIZE = 4 * 1024;
+
+    private final byte[] data;
+    private final long firstByteDelayMs;
+    private final long connectionBytesPerSecond;
+    private final long totalBytesPerSecond;
+    private final ServerSocket serverSocket;
+    private final AtomicLong servedBytes = new AtomicLong();
+    private final AtomicLong requestsCount = new AtomicLong();
+    private final Object linkLock = new Object();
+    private long linkFreeNanos; // guarded by linkLock
+
+    /**
+     * @param data                     data served for every path.
+     * @param firstByteDelayMs         delay of every response before headers.
+     * @param connectionBytesPerSecond max speed of every connection or {@code 0} if it is unlimited.
+     * @param totalBytesPerSecond      max speed of all connections together or {@code 0} if it is unlimited.
+     */
+    public ThrottledOrigin(byte[] data, long firstByteDelayMs, long connectionBytesPerSecond, long totalBytesPerSecond) throws IOException {
+        this.data = data;
+        this.firstByteDelayMs = firstByteDelayMs;
+        this.connectionBytesPerSecond = connectionBytesPerSecond;
+        this.totalBytesPerSecond = totalBytesPerSecond;
+        this.serverSocket = new ServerSocket(0, 256, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "Throttled origin");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/" + path;
+    }
+
+    public long getServedBytes() {
+        return servedBytes.get();
+    }
+
+    public long getRequestsCount() {
+        return requestsCount.get();
+    }
+
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                final Socket socket = serverSocket.accept();
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                }, "Throttled origin connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // server is stopped
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+            String requestLine = reader.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            requestsCount.incrementAndGet();
+            long start = 0;
+            long end = data.length - 1;
+            boolean partial = false;
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                Matcher matcher = RANGE_PATTERN.matcher(line);
+                if (matcher.find()) {
+                    partial = true;
+                    start = Long.parseLong(matcher.group(1));
+                    end = matcher.group(2).isEmpty() ? end : Math.min(end, Long.parseLong(matcher.group(2)));
+                }
+            }
+            Thread.sleep(firstByteDelayMs);
+            OutputStream out = socket.getOutputStream();
+            String headers = (partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n") +
+                    "Content-Type: video/mp4\r\n" +
+                    "Accept-Ranges: bytes\r\n" +
+                    "Content-Length: " + (end - start + 1) + "\r\n" +
+                    (partial ? "Content-Range: bytes " + start + "-" + end + "/" + data.length + "\r\n" : "") +
+                    "Connection: close\r\n\r\n";
+            out.write(headers.getBytes("US-ASCII"));
+            if (requestLine.startsWith("HEAD")) {
+                return;
+            }
+            long startedNanos = System.nanoTime();
+            long sent = 0;
+            for (long offset = start; offset <= end; offset += CHUNK_SIZE) {
+                int length = (int) Math.min(CHUNK_SIZE, end + 1 - offset);
+                throttle(startedNanos, sent, length);
+                out.write(data, (int) offset, length);
+                sent += length;
+                servedBytes.addAndGet(length);
+            }
+            out.flush();
+        } catch (IOException | InterruptedException e) {
+            // client closed connection
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private void throttle(long startedNanos, long sent, int length) throws InterruptedException {
+        long waitNanos = 0;
+        if (connectionBytesPerSecond > 0) {
+            waitNanos = startedNanos + (sent + length) * 1000000000L / connectionBytesPerSecond - System.nanoTime();
+        }
+        if (totalBytesPerSecond > 0) {
+            synchronized (linkLock) {
+                long now = System.nanoTime();
+                linkFreeNanos = Math.max(linkFreeNanos, now) + length * 1000000000L / totalBytesPerSecond;
+                waitNanos = Math.max(waitNanos, linkFreeNanos - now);
+            }
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+}
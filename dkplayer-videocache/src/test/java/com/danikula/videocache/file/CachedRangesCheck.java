@@ -0,0 +1,134 @@
+package com.danikula.videocache.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks merging of {@link CachedRanges}, available bytes by ranges and by their snapshot, and persisting of ranges.
+ * Random ranges are also checked against bitmap of cached bytes. It is run on JVM by {@link #main(String[])} and exits
+ * with non-zero status if any check fails.
+ */
+public final class CachedRangesCheck {
+
+    private CachedRangesCheck() {
+    }
+
+    private static void checkMerging() {
+        CachedRanges ranges = new CachedRanges();
+        check(ranges.add(100, 200), "first range is new");
+        check(!ranges.add(150, 250), "overlapping range is merged");
+        check(!ranges.add(250, 300), "adjacent range is merged");
+        check(!ranges.add(120, 130), "contained range is merged");
+        check(ranges.add(400, 500), "separate range is new");
+        check(ranges.add(0, 50), "range before is new");
+        check(!ranges.add(500, 500), "empty range is ignored");
+        checkRanges(ranges, 0, 50, 100, 300, 400, 500);
+        check(!ranges.add(40, 450), "bridging range is merged");
+        checkRanges(ranges, 0, 500);
+        check(ranges.cachedBytes() == 500, "cached bytes " + ranges.cachedBytes());
+    }
+
+    private static void checkAvailable() {
+        CachedRanges ranges = new CachedRanges();
+        ranges.add(100, 200);
+        ranges.add(300, 400);
+        long[] snapshot = ranges.toArray();
+        long[][] expected = {{0, 0}, {99, 0}, {100, 100}, {150, 50}, {199, 1}, {200, 0}, {250, 0}, {300, 100}, {399, 1}, {400, 0}, {1000, 0}};
+        for (long[] offsetAndAvailable : expected) {
+            long offset = offsetAndAvailable[0];
+            check(ranges.available(offset) == offsetAndAvailable[1], "available from " + offset + ": " + ranges.available(offset));
+            check(CachedRanges.available(snapshot, offset) == offsetAndAvailable[1], "snapshot available from " + offset);
+        }
+        check(ranges.startsRange(50) && !ranges.startsRange(100) && !ranges.startsRange(200) && ranges.startsRange(250), "starts range");
+        check(!ranges.isContiguous(), "ranges with gap aren't contiguous");
+        check(ranges.cachedBytes() == 200, "cached bytes " + ranges.cachedBytes());
+        CachedRanges contiguous = new CachedRanges();
+        contiguous.add(0, 100);
+        check(contiguous.isContiguous() && new CachedRanges().isContiguous(), "range from the beginning is contiguous");
+    }
+
+    private static void checkRandom() {
+        Random random = new Random(42);
+        for (int round = 0; round < 1000; round++) {
+            CachedRanges ranges = new CachedRanges();
+            boolean[] cached = new boolean[256];
+            for (int i = 0; i < 8; i++) {
+                int start = random.nextInt(cached.length);
+                int end = start + random.nextInt(cached.length - start + 1);
+                ranges.add(start, end);
+                Arrays.fill(cached, start, end, true);
+            }
+            long[] snapshot = ranges.toArray();
+            long cachedBytes = 0;
+            for (int offset = 0; offset < cached.length; offset++) {
+                int expected = 0;
+                while (offset + expected < cached.length && cached[offset + expected]) {
+                    expected++;
+                }
+                cachedBytes += cached[offset] ? 1 : 0;
+                check(ranges.available(offset) == expected, ranges + ": available from " + offset);
+                check(CachedRanges.available(snapshot, offset) == expected, ranges + ": snapshot available from " + offset);
+            }
+            check(ranges.cachedBytes() == cachedBytes, ranges + ": cached bytes " + ranges.cachedBytes());
+            for (int i = 2; i < snapshot.length; i += 2) {
+                check(snapshot[i] > snapshot[i - 1], ranges + ": ranges are not separate");
+            }
+        }
+    }
+
+    private static void checkPersisting() throws IOException {
+        File directory = File.createTempFile("ranges-check", "");
+        check(directory.delete() && directory.mkdir(), "temp directory");
+        File file = new File(directory, "video" + FileCache.TEMP_POSTFIX);
+        try {
+            RandomAccessFile sparse = new RandomAccessFile(file, "rw");
+            sparse.setLength(1000);
+            sparse.close();
+            CachedRanges withoutFile = CachedRanges.load(file);
+            checkRanges(withoutFile, 0, 1000); // file of older version is contiguous
+
+            CachedRanges ranges = new CachedRanges();
+            ranges.add(0, 100);
+            ranges.add(500, 600);
+            ranges.save(file);
+            check(CachedRanges.fileFor(file).exists(), "ranges with gap are saved");
+            checkRanges(CachedRanges.load(file), 0, 100, 500, 600);
+            check(UsageIndex.sizeOf(file) == 200, "size of sparse file " + UsageIndex.sizeOf(file));
+
+            CachedRanges whole = new CachedRanges();
+            whole.add(0, 1000);
+            whole.save(file);
+            check(!CachedRanges.fileFor(file).exists(), "ranges of contiguous file are deleted");
+        } finally {
+            CachedRanges.delete(file);
+            file.delete();
+            directory.delete();
+        }
+    }
+
+    private static void checkRanges(CachedRanges ranges, long... expected) {
+        check(Arrays.equals(expected, ranges.toArray()), "ranges " + ranges + " instead of " + Arrays.toString(expected));
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        try {
+            checkMerging();
+            checkAvailable();
+            checkRandom();
+            checkPersisting();
+            System.out.println("Cached ranges are correct");
+        } catch (AssertionError e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
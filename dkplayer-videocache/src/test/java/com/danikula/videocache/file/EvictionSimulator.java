@@ -0,0 +1,166 @@
+package com.danikula.videocache.file;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Replays trace of accesses to cache files through {@link EvictionPolicy} with limited cache size, the same way
+ * as {@link TotalSizeDiskUsage} does, and reports hit ratios. It allows to choose policy for particular usage pattern
+ * using real traces.
+ * <p/>
+ * Missed file is considered as fully downloaded and cached, the size of file is counted as bytes fetched from origin.
+ */
+public final class EvictionSimulator {
+
+    private final long maxSize;
+    private final List<String> names = new ArrayList<>();
+    private final List<Long> sizes = new ArrayList<>();
+
+    public EvictionSimulator(long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("Max size must be positive number!");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Adds access to file to trace.
+     *
+     * @param name name of file (or url).
+     * @param size size of file in bytes.
+     * @return this simulator.
+     */
+    public EvictionSimulator access(String name, long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Size must not be negative!");
+        }
+        names.add(name);
+        sizes.add(size);
+        return this;
+    }
+
+    /**
+     * Reads trace with one access per line: {@code name size}, empty lines and lines starting with {@code #} are ignored.
+     *
+     * @param reader reader of trace, it is not closed.
+     * @return this simulator.
+     * @throws IOException if trace can't be read or has invalid line.
+     */
+    public EvictionSimulator readTrace(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        String line;
+        while ((line = lines.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int separator = line.lastIndexOf(' ');
+            try {
+                access(line.substring(0, separator).trim(), Long.parseLong(line.substring(separator + 1)));
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid trace line `" + line + "`", e);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Replays trace through policy, policy is cleared before replaying.
+     */
+    public Result run(EvictionPolicy policy) {
+        policy.clear();
+        Map<String, Long> cached = new HashMap<>();
+        long totalSize = 0;
+        Result result = new Result(policy.getClass().getSimpleName());
+        for (int i = 0; i < names.size(); i++) {
+            String name = names.get(i);
+            long size = sizes.get(i);
+            Long cachedSize = cached.put(name, size);
+            if (cachedSize != null) {
+                result.hits++;
+                result.hitBytes += size;
+                totalSize += size - cachedSize;
+            } else {
+                result.misses++;
+                result.missBytes += size;
+                totalSize += size;
+            }
+            policy.onAccess(name, size);
+            String victim;
+            while (totalSize > maxSize && (victim = policy.victim()) != null) {
+                totalSize -= cached.remove(victim);
+                policy.onRemove(victim);
+                result.evictions++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replays trace through every policy.
+     */
+    public List<Result> run(EvictionPolicy... policies) {
+        List<Result> results = new ArrayList<>(policies.length);
+        for (EvictionPolicy policy : policies) {
+            results.add(run(policy));
+        }
+        return results;
+    }
+
+    /**
+     * Result of replaying trace through policy.
+     */
+    public static final class Result {
+
+        private final String policyName;
+        private long hits;
+        private long misses;
+        private long hitBytes;
+        private long missBytes;
+        private long evictions;
+
+        private Result(String policyName) {
+            this.policyName = policyName;
+        }
+
+        public String getPolicyName() {
+            return policyName;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * Returns share of accesses served from cache, from {@code 0} to {@code 1}.
+         */
+        public double getHitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        /**
+         * Returns share of bytes served from cache, from {@code 0} to {@code 1}.
+         */
+        public double getByteHitRatio() {
+            return hitBytes + missBytes == 0 ? 0 : (double) hitBytes / (hitBytes + missBytes);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s{hitRatio=%.4f, byteHitRatio=%.4f, evictions=%d}", policyName, getHitRatio(), getByteHitRatio(), evictions);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.ProxyCacheException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Reads completed cache file through {@link FileCache} by channel reads and by {@link MappedFileWindows} the same way
+ * as proxy reads it while serving cached clip, and reports throughput and page faults of both paths. It allows to
+ * decide whether mapped reads are worth enabling on particular device.
+ * <p/>
+ * Page faults are taken from {@code /proc/self/stat}, they are counted for whole process and are {@code -1} if
+ * platform doesn't provide them. Disk caches are not dropped between runs, so the first run may be slower.
+ */
+public final class MappedReadBenchmark {
+
+    private final File file;
+    private final int bufferSize;
+    private final int passes;
+    private final int randomReadsCount;
+
+    /**
+     * @param file             completed cache file.
+     * @param bufferSize       size of every read, proxy reads by 8 Kb.
+     * @param passes           count of sequential reads of whole file.
+     * @param randomReadsCount count of reads with random offsets after sequential passes, like seeks of player.
+     */
+    public MappedReadBenchmark(File file, int bufferSize, int passes, int randomReadsCount) {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("File " + file + " doesn't exist!");
+        }
+        if (bufferSize <= 0 || passes < 0 || randomReadsCount < 0) {
+            throw new IllegalArgumentException("Buffer size must be positive, counts must not be negative!");
+        }
+        this.file = file;
+        this.bufferSize = bufferSize;
+        this.passes = passes;
+        this.randomReadsCount = randomReadsCount;
+    }
+
+    /**
+     * Reads file by channel reads, as proxy does if mapped reads are disabled.
+     */
+    public Result runChannelReads() throws ProxyCacheException {
+        return run("channel", null);
+    }
+
+    /**
+     * Reads file by mapped windows, windows are kept between runs, so the next run reads already mapped windows.
+     */
+    public Result runMappedReads(MappedFileWindows windows) throws ProxyCacheException {
+        return run("mapped", windows);
+    }
+
+    /**
+     * Runs channel reads and mapped reads by turns.
+     *
+     * @param rounds count of runs of every path.
+     */
+    public List<Result> run(MappedFileWindows windows, int rounds) throws ProxyCacheException {
+        List<Result> results = new ArrayList<>(rounds * 2);
+        for (int i = 0; i < rounds; i++) {
+            results.add(runChannelReads());
+            results.add(runMappedReads(windows));
+        }
+        return results;
+    }
+
+    private Result run(String name, MappedFileWindows windows) throws ProxyCacheException {
+        FileCache cache = new FileCache(file, new UnlimitedDiskUsage(), null, windows);
+        byte[] buffer = new byte[bufferSize];
+        long length = cache.available();
+        Random random = new Random(length);
+        long[] faults = readPageFaults();
+        long started = System.nanoTime();
+        long bytes = 0;
+        long reads = 0;
+        try {
+            for (int pass = 0; pass < passes; pass++) {
+                long offset = 0;
+                int read;
+                while ((read = cache.read(buffer, offset, bufferSize)) > 0) {
+                    offset += read;
+                    reads++;
+                }
+                bytes += offset;
+            }
+            for (int i = 0; i < randomReadsCount && length > 0; i++) {
+                long offset = (long) (random.nextDouble() * length);
+                bytes += Math.max(0, cache.read(buffer, offset, bufferSize));
+                reads++;
+            }
+        } finally {
+            cache.close();
+        }
+        long nanos = System.nanoTime() - started;
+        long[] faultsAfter = readPageFaults();
+        long minorFaults = faults[0] < 0 || faultsAfter[0] < 0 ? -1 : faultsAfter[0] - faults[0];
+        long majorFaults = faults[1] < 0 || faultsAfter[1] < 0 ? -1 : faultsAfter[1] - faults[1];
+        return new Result(name, bytes, reads, nanos, minorFaults, majorFaults);
+    }
+
+    /**
+     * Returns minor and major page faults of process, fields 10 and 12 of {@code /proc/self/stat}.
+     */
+    private static long[] readPageFaults() {
+        long[] faults = {-1, -1};
+        InputStream in = null;
+        try {
+            in = new FileInputStream("/proc/self/stat");
+            byte[] data = new byte[1024];
+            int length = 0;
+            int read;
+            while (length < data.length && (read = in.read(data, length, data.length - length)) != -1) {
+                length += read;
+            }
+            String stat = new String(data, 0, length, "US-ASCII");
+            // process name may contain spaces, fields are counted after it
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            faults[0] = Long.parseLong(fields[7]);
+            faults[1] = Long.parseLong(fields[9]);
+        } catch (IOException | RuntimeException e) {
+            // not linux, page faults are unknown
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return faults;
+    }
+
+    /**
+     * Result of reading file by one of paths.
+     */
+    public static final class Result {
+
+        private final String name;
+        private final long bytes;
+        private final long reads;
+        private final long nanos;
+        private final long minorFaults;
+        private final long majorFaults;
+
+        private Result(String name, long bytes, long reads, long nanos, long minorFaults, long majorFaults) {
+            this.name = name;
+            this.bytes = bytes;
+            this.reads = reads;
+            this.nanos = nanos;
+            this.minorFaults = minorFaults;
+            this.majorFaults = majorFaults;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getReadsCount() {
+            return reads;
+        }
+
+        public long getDurationNanos() {
+            return nanos;
+        }
+
+        /**
+         * Returns throughput in megabytes per second.
+         */
+        public double getThroughput() {
+            return nanos == 0 ? 0 : bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+        }
+
+        /**
+         * Returns count of page faults served without disk access or {@code -1} if it is unknown.
+         */
+        public long getMinorFaults() {
+            return minorFaults;
+        }
+
+        /**
+         * Returns count of page faults that required disk access or {@code -1} if it is unknown.
+         */
+        public long getMajorFaults() {
+            return majorFaults;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s{throughput=%.1f Mb/s, reads=%d, minorFaults=%d, majorFaults=%d}", name, getThroughput(), reads, minorFaults, majorFaults);
+        }
+    }
+}
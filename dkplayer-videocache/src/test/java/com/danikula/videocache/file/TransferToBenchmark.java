@@ -0,0 +1,224 @@
+package com.danikula.videocache.file;
+
+import com.danikula.videocache.Benchmarks;
+import com.danikula.videocache.ProxyCacheException;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+
+/**
+ * Serves completed cache file to loopback socket by copy loop through {@code byte[]} buffer, as proxy did before,
+ * and by {@link FileCache#transferTo(long, long, java.nio.channels.WritableByteChannel)}, and reports throughput,
+ * cpu time and allocations of serving thread for both ways. It is run on JVM by {@link #main(String[])}.
+ * <p/>
+ * Cpu time and allocated bytes are {@code -1} if JVM doesn't provide them, see {@link Benchmarks}.
+ */
+public final class TransferToBenchmark {
+
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+
+    private final File file;
+    private final int passes;
+
+    /**
+     * @param file   completed cache file.
+     * @param passes count of serving whole file per run.
+     */
+    public TransferToBenchmark(File file, int passes) {
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("File " + file + " doesn't exist!");
+        }
+        this.file = file;
+        this.passes = passes;
+    }
+
+    /**
+     * Serves file by reading it to buffer and writing buffer to socket stream.
+     */
+    public Result runCopy() throws IOException, ProxyCacheException {
+        return run(false);
+    }
+
+    /**
+     * Serves file by transferring it from cache file to socket channel.
+     */
+    public Result runTransfer() throws IOException, ProxyCacheException {
+        return run(true);
+    }
+
+    private Result run(boolean transfer) throws IOException, ProxyCacheException {
+        FileCache cache = new FileCache(file, new UnlimitedDiskUsage());
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        SocketChannel client = SocketChannel.open(server.socket().getLocalSocketAddress());
+        SocketChannel socket = server.accept();
+        Sink sink = new Sink(client);
+        sink.start();
+        try {
+            long length = cache.available();
+            long cpu = Benchmarks.cpuNanos();
+            long allocated = Benchmarks.allocatedBytes();
+            long started = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                if (transfer) {
+                    transfer(cache, socket, length);
+                } else {
+                    copy(cache, socket, length);
+                }
+            }
+            socket.shutdownOutput();
+            long received = sink.await();
+            long nanos = System.nanoTime() - started;
+            long cpuNanos = cpu < 0 ? -1 : Benchmarks.cpuNanos() - cpu;
+            long allocatedBytes = allocated < 0 ? -1 : Benchmarks.allocatedBytes() - allocated;
+            if (received != length * passes) {
+                throw new IOException("Received " + received + " bytes instead of " + length * passes);
+            }
+            return new Result(transfer ? "transfer" : "copy", received, nanos, cpuNanos, allocatedBytes);
+        } finally {
+            socket.close();
+            client.close();
+            server.close();
+            cache.close();
+        }
+    }
+
+    private void copy(FileCache cache, SocketChannel socket, long length) throws IOException, ProxyCacheException {
+        OutputStream out = new BufferedOutputStream(socket.socket().getOutputStream());
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        long offset = 0;
+        int read;
+        while (offset < length && (read = cache.read(buffer, offset, buffer.length)) > 0) {
+            out.write(buffer, 0, read);
+            offset += read;
+        }
+        out.flush();
+    }
+
+    private void transfer(FileCache cache, SocketChannel socket, long length) throws ProxyCacheException {
+        long offset = 0;
+        while (offset < length) {
+            offset += cache.transferTo(offset, length - offset, socket);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        File file = File.createTempFile("transfer", ".mp4");
+        file.deleteOnExit();
+        byte[] data = new byte[1024 * 1024];
+        new Random(sizeMb).nextBytes(data);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            for (int i = 0; i < sizeMb; i++) {
+                randomAccessFile.write(data);
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+        TransferToBenchmark benchmark = new TransferToBenchmark(file, 4);
+        for (int round = 0; round < 5; round++) {
+            System.out.println(benchmark.runCopy() + " " + benchmark.runTransfer());
+        }
+    }
+
+    /**
+     * Reads and drops all data from socket until it is closed by other side.
+     */
+    private static final class Sink extends Thread {
+
+        private final SocketChannel channel;
+        private volatile long received;
+        private volatile IOException error;
+
+        Sink(SocketChannel channel) {
+            super("Transfer benchmark sink");
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+            long total = 0;
+            try {
+                int read;
+                while ((read = channel.read(buffer)) != -1) {
+                    total += read;
+                    buffer.clear();
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            received = total;
+        }
+
+        long await() throws IOException {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for sink", e);
+            }
+            if (error != null) {
+                throw error;
+            }
+            return received;
+        }
+    }
+
+    /**
+     * Result of serving file by one of ways.
+     */
+    public static final class Result {
+
+        private final String name;
+        private final long bytes;
+        private final long nanos;
+        private final long cpuNanos;
+        private final long allocatedBytes;
+
+        private Result(String name, long bytes, long nanos, long cpuNanos, long allocatedBytes) {
+            this.name = name;
+            this.bytes = bytes;
+            this.nanos = nanos;
+            this.cpuNanos = cpuNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        /**
+         * Returns throughput in megabytes per second.
+         */
+        public double getThroughput() {
+            return nanos == 0 ? 0 : bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+        }
+
+        /**
+         * Returns cpu time of serving thread in nanoseconds or {@code -1} if it is unknown.
+         */
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        /**
+         * Returns bytes allocated by serving thread or {@code -1} if it is unknown.
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        @Override
+        public String toString() {
+            String format = "%s{%.1f Mb/s, cpu %d ms, allocated %d bytes}";
+            return String.format(format, name, getThroughput(), cpuNanos < 0 ? -1 : cpuNanos / 1000000, allocatedBytes);
+        }
+    }
+}